@@ -0,0 +1,7 @@
+-- Schema changes of the bank database since its creation, by version (see
+-- persistence.PersistenceConfig) : the versions applied are recorded in SCHEMA_VERSION and
+-- only the next ones run. A fresh database gets the schema from the entities and starts at
+-- the last version. Append new versions, never edit an applied one.
+
+-- version 1 : outcome of the settled holds, kept until their purge (0 : held)
+ALTER TABLE HOLDS ADD COLUMN state INTEGER NOT NULL DEFAULT 0;
@@ -0,0 +1,11 @@
+-- Schema changes of the market database since its creation, by version (see
+-- persistence.PersistenceConfig) : the versions applied are recorded in SCHEMA_VERSION and
+-- only the next ones run. A fresh database gets the schema from the entities and starts at
+-- the last version. Append new versions, never edit an applied one.
+
+-- version 1 : listing expiry, walked by the listing reaper
+ALTER TABLE ITEMS ADD COLUMN expires_at BIGINT;
+CREATE INDEX ITEMS_EXPIRES_AT ON ITEMS (expires_at);
+
+-- version 2 : the seller lookups use the index Derby creates for the foreign key of the seller column
+DROP INDEX ITEMS_SELLER;
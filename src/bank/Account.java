@@ -1,8 +1,16 @@
 package bank;
 
+import logging.AsyncLogger;
+import bank.RejectedException.Reason;
+import metrics.MetricsRegistry;
+
 import javax.persistence.*;
 import java.io.Serializable;
 
+/**
+ * Bank account. The balance column is a snapshot : the movements since are entries of the
+ * ledger, folded into the snapshot from time to time (see LedgerEntry and LedgerSnapshotter).
+ */
 @NamedQueries({
         @NamedQuery(
                 name = "deleteAccountWithName",
@@ -19,6 +27,7 @@ import java.io.Serializable;
 public class Account implements Serializable
 {
     private static final long serialVersionUID = -4302632166699642491L;
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(Account.class);
 
     @Id
     @Column(name = "id", nullable = false)
@@ -26,7 +35,13 @@ public class Account implements Serializable
     private long accountId;
 
     @Column(name = "balance", nullable = false)
-    private float balance;
+    private float balance; // At the last snapshot
+
+    @Transient
+    private float pending; // Sum of the ledger entries since the snapshot, when loaded
+
+    @Transient
+    private float held; // Sum of the holds on the account, when loaded
 
     @OneToOne(cascade = CascadeType.ALL)
     @JoinColumn(name = "owner", nullable = false)
@@ -47,45 +62,110 @@ public class Account implements Serializable
         this.balance = balance;
     }
 
+    public long getAccountId()
+    {
+        return accountId;
+    }
+
+    public String getOwnerName()
+    {
+        return owner.getName();
+    }
+
+    /**
+     * @return the funds available : balance less the holds
+     */
     public float getBalance()
     {
-        return balance;
+        return balance + pending - held;
+    }
+
+    void setPending(float pending, float held)
+    {
+        this.pending = pending;
+        this.held = held;
+    }
+
+    /**
+     * Fold ledger entries into the balance snapshot
+     * @param amount sum of the entries folded
+     */
+    void snapshot(float amount)
+    {
+        balance += amount;
+        pending -= amount;
+    }
+
+    /**
+     * @param counterpartyId account the money comes from, null for a deposit
+     * @return the ledger entry to append
+     */
+    public LedgerEntry deposit(float value, Long counterpartyId) throws RejectedException
+    {
+        if (value < 0)
+        {
+            throw reject(Reason.ILLEGAL_VALUE, owner.getName(), value);
+        }
+
+        pending += value;
+        LOG.info("Transaction: Account {}: deposit: ${}", owner.getName(), value);
+        return new LedgerEntry(accountId, value, counterpartyId);
     }
 
-    public void deposit(float value) throws RejectedException
+    /**
+     * Check the balance, up to date only when the account is locked with its pending entries loaded
+     * @param counterpartyId account the money goes to, null for a withdrawal
+     * @return the ledger entry to append
+     */
+    public LedgerEntry withdraw(float value, Long counterpartyId) throws RejectedException
     {
         if (value < 0)
         {
-            throw new RejectedException("Rejected: Account " + owner.getName() +
-                    ": Illegal value: " + value);
+            throw reject(Reason.ILLEGAL_VALUE, owner.getName(), value);
+        }
+
+        if ((getBalance() - value) < 0)
+        {
+            throw reject(Reason.INSUFFICIENT_FUNDS, owner.getName(), "withdraw", getBalance() - value);
         }
 
-        balance += value;
-        System.out.println("Transaction: Account " + owner.getName() + ": deposit: $" +
-                value + ", balance: $" + balance);
+        pending -= value;
+        LOG.info("Transaction: Account {}: withdraw: ${}, balance: ${}", owner.getName(), value, getBalance());
+        return new LedgerEntry(accountId, -value, counterpartyId);
     }
 
-    public void withdraw(float value) throws RejectedException
+    /**
+     * Reserve funds for a payment, checking the balance like withdraw()
+     * @param payee account paid when the hold is committed
+     * @param expiresAt
+     * @return the hold to persist
+     */
+    public Hold hold(Account payee, float value, long expiresAt) throws RejectedException
     {
         if (value < 0)
         {
-            throw new RejectedException("Rejected: Account " + owner.getName() +
-                    ": Illegal value: " + value);
+            throw reject(Reason.ILLEGAL_VALUE, owner.getName(), value);
         }
 
-        if ((balance - value) < 0)
+        if ((getBalance() - value) < 0)
         {
-            throw new RejectedException("Rejected: Account " + owner.getName() +
-                    ": Negative balance on withdraw: " + (balance - value));
+            throw reject(Reason.INSUFFICIENT_FUNDS, owner.getName(), "hold", getBalance() - value);
         }
 
-        balance -= value;
-        System.out.println("Transaction: Account " + owner.getName() + ": deposit: $" +
-                value + ", balance: $" + balance);
+        held += value;
+        LOG.info("Transaction: Account {}: hold: ${} for {}, balance: ${}", owner.getName(), value,
+                payee.getOwnerName(), getBalance());
+        return new Hold(accountId, payee.getAccountId(), value, expiresAt);
+    }
+
+    private static RejectedException reject(Reason reason, Object... args)
+    {
+        MetricsRegistry.getDefault().increment(reason.getCounter());
+        return new RejectedException(reason, args);
     }
 
     public String toString()
     {
-        return "Account for " + owner.getName() + " has balance $" + balance;
+        return "Account for " + owner.getName() + " has balance $" + getBalance();
     }
 }
\ No newline at end of file
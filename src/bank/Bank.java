@@ -13,5 +13,44 @@ public interface Bank extends Remote
 
     public void deposit(String ownerName, float value) throws RemoteException, RejectedException;
 
+    /**
+     * Deposit at most once per request id : a retry with the same id gets the outcome of the first call
+     * @param requestId unique id chosen by the caller, null for no deduplication
+     */
+    public void deposit(String ownerName, float value, String requestId) throws RemoteException, RejectedException;
+
     public void withdraw(String ownerName, float value) throws RemoteException, RejectedException;
+
+    /**
+     * Withdraw at most once per request id : a retry with the same id gets the outcome of the first call
+     * @param requestId unique id chosen by the caller, null for no deduplication
+     */
+    public void withdraw(String ownerName, float value, String requestId) throws RemoteException, RejectedException;
+
+    /**
+     * Move money from an account to another one, at most once per request id
+     * @param requestId unique id chosen by the caller, null for no deduplication
+     */
+    public void transfer(String fromOwnerName, String toOwnerName, float value, String requestId)
+            throws RemoteException, RejectedException;
+
+    /**
+     * Reserve funds of an account for a payment to another one, at most once per request id.
+     * The hold is released if neither committed nor released before the hold timeout of the bank
+     * @param requestId unique id chosen by the caller, null for no deduplication
+     * @return id of the hold
+     */
+    public long reserve(String ownerName, String payeeName, float value, String requestId)
+            throws RemoteException, RejectedException;
+
+    /**
+     * Pay the payee of a hold. A retried commit gets the outcome of the first one
+     * @throws RejectedException if the hold was released or has expired
+     */
+    public void commitHold(long holdId) throws RemoteException, RejectedException;
+
+    /**
+     * Give back the funds of a hold, no effect if it is no longer there
+     */
+    public void releaseHold(long holdId) throws RemoteException;
 }
\ No newline at end of file
@@ -1,25 +1,111 @@
 package bank;
 
+import bank.RejectedException.Reason;
+import idempotency.RequestCache;
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+import metrics.PhaseTimer;
+import persistence.PersistenceConfig;
+import startup.StartupPipeline;
+
 import javax.persistence.*;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @SuppressWarnings("serial")
 public class BankImpl extends UnicastRemoteObject implements Bank
 {
-    private EntityManagerFactory emFactory;
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(BankImpl.class);
+    private static final long HOLD_TIMEOUT_MILLIS = Long.getLong("marketplace.bank.holdTimeout", 60 * 1000);
+    private static final long SETTLED_HOLD_RETENTION_MILLIS = Long.getLong("marketplace.bank.settledHoldRetention",
+            7 * 24 * 60 * 60 * 1000L);
+
+    private final CompletableFuture<EntityManagerFactory> emFactory;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final LedgerSnapshotter snapshotter;
+    private final HoldReaper holdReaper;
+    private final CompletableFuture<Void> started;
+    private final RequestCache requests = new RequestCache(
+            Integer.getInteger("marketplace.idempotency.maxRequests", 100000),
+            Long.getLong("marketplace.idempotency.ttl", 10 * 60 * 1000));
 
     public BankImpl() throws RemoteException
+    {
+        this("bank");
+    }
+
+    /**
+     * Constructor of a bank backed by its own database (e.g. for a replay)
+     * @param databaseName Derby database of the "bank" persistence unit
+     * @throws RemoteException
+     */
+    public BankImpl(String databaseName) throws RemoteException
     {
         super();
-        emFactory = Persistence.createEntityManagerFactory("bank");
+        // The bank is bound while the persistence unit starts : the first calls wait for it
+        StartupPipeline startup = new StartupPipeline("bank");
+        emFactory = startup.start("persistence",
+                () -> PersistenceConfig.createEntityManagerFactory("bank", databaseName));
+        startup.then("warmup", emFactory, factory ->
+        {
+            PersistenceConfig.warmUp(factory, Integer.getInteger("marketplace.startup.warmConnections", 4),
+                    Collections.singletonMap("findAccountWithName",
+                            Collections.<String, Object>singletonMap("ownerName", "")));
+            return factory;
+        });
+        startup.finish();
+
+        snapshotter = new LedgerSnapshotter(this::emFactory,
+                Long.getLong("marketplace.ledger.snapshotInterval", 10 * 1000),
+                Integer.getInteger("marketplace.ledger.snapshotMinEntries", 32),
+                Integer.getInteger("marketplace.ledger.snapshotMaxAccounts", 1000));
+        holdReaper = new HoldReaper(this::emFactory, Long.getLong("marketplace.bank.holdReaperInterval", 5 * 1000),
+                Integer.getInteger("marketplace.bank.holdReaperBatchSize", 500), SETTLED_HOLD_RETENTION_MILLIS);
+
+        // Without its database the bank could only fail its calls : it stops instead
+        started = emFactory.handle((factory, e) ->
+        {
+            if (e == null)
+                return null;
+            LOG.error("Bank stopped, its persistence unit failed to start: {}", e);
+            shutdown();
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        });
+    }
 
+    /**
+     * @return completed once the persistence unit is up, exceptionally if it failed to start :
+     * the bank is then shut down, and its server has to exit
+     */
+    public CompletableFuture<Void> started()
+    {
+        return started;
+    }
 
+    /**
+     * Stop the background work of the bank and stop serving its remote calls
+     */
+    public void shutdown()
+    {
+        snapshotter.shutdown();
+        holdReaper.shutdown();
+        try
+        {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e)
+        {
+            // Already unexported
+        }
     }
 
     public Account newAccount(String name) throws RejectedException
     {
+        PhaseTimer timer = metrics.startTimer("bank.newAccount");
         EntityManager em = null;
         try
         {
@@ -29,7 +115,7 @@ public class BankImpl extends UnicastRemoteObject implements Bank
             if (existingAccounts.size() != 0)
             {
                 // account exists, can not be created.
-                throw new RejectedException("Rejected: Account for: " + name + " already exists");
+                throw reject(Reason.ACCOUNT_EXISTS, name);
             }
 
             // create account.
@@ -41,69 +127,350 @@ public class BankImpl extends UnicastRemoteObject implements Bank
             if (em == null)
                 System.err.println("ERROR");
             commitTransaction(em);
+            timer.stop();
         }
     }
 
     public void deposit(String ownerName, float value) throws RejectedException
     {
-        EntityManager em = null;
+        deposit(ownerName, value, null);
+    }
+
+    public void deposit(String ownerName, float value, String requestId) throws RejectedException
+    {
+        PhaseTimer timer = metrics.startTimer("bank.deposit");
+        RequestCache.Request request = requests.begin(RequestCache.key("deposit", ownerName, requestId));
         try
         {
-            em = beginTransaction();
+            if (request.isReplay())
+            {
+                metrics.increment("bank.deposit.replayed");
+                replay(request.getFailure());
+                return;
+            }
 
-            getAccount(ownerName, em).deposit(value);
+            EntityManager em = beginTransaction();
+            try
+            {
+                Account account = getAccount(ownerName, em, LockModeType.NONE);
+                em.persist(account.deposit(value, null)); // Appended, the account row is not written
+            } finally
+            {
+                commitTransaction(em);
+            }
+            request.succeeded(); // Once committed
+        } catch (RejectedException e)
+        {
+            request.failed(e);
+            throw e;
         } finally
         {
-            commitTransaction(em);
+            request.release();
+            timer.stop();
         }
     }
 
     public void withdraw(String ownerName, float value) throws RejectedException
     {
-        EntityManager em = null;
+        withdraw(ownerName, value, null);
+    }
+
+    public void withdraw(String ownerName, float value, String requestId) throws RejectedException
+    {
+        PhaseTimer timer = metrics.startTimer("bank.withdraw");
+        RequestCache.Request request = requests.begin(RequestCache.key("withdraw", ownerName, requestId));
         try
         {
-            em = beginTransaction();
+            if (request.isReplay())
+            {
+                metrics.increment("bank.withdraw.replayed");
+                replay(request.getFailure());
+                return;
+            }
 
-            getAccount(ownerName, em).withdraw(value);
+            EntityManager em = beginTransaction();
+            try
+            {
+                // Locked until the entry is committed : the debits of the account check the balance one at a time
+                Account account = getAccount(ownerName, em, LockModeType.PESSIMISTIC_WRITE);
+                em.persist(account.withdraw(value, null));
+            } finally
+            {
+                commitTransaction(em);
+            }
+            request.succeeded(); // Once committed
+        } catch (RejectedException e)
+        {
+            request.failed(e);
+            throw e;
         } finally
         {
-            commitTransaction(em);
+            request.release();
+            timer.stop();
         }
     }
 
+    /**
+     * Count a rejection by reason before returning it to be thrown
+     */
+    private RejectedException reject(Reason reason, Object... args)
+    {
+        metrics.increment(reason.getCounter());
+        return new RejectedException(reason, args);
+    }
+
+    /**
+     * Rethrow the rejection of the first execution of a request
+     */
+    private static void replay(Throwable failure) throws RejectedException
+    {
+        if (failure != null)
+            throw (RejectedException) failure;
+    }
+
     public Account findAccount(String ownerName)
     {
+        PhaseTimer timer = metrics.startTimer("bank.findAccount");
         EntityManager em = null;
         try
         {
             em = beginTransaction();
 
-            Account account = getAccount(ownerName, em);
+            Account account = findAccount(ownerName, em);
+            if (account != null)
+                loadBalance(account, em);
             return account;
         } finally
         {
             commitTransaction(em);
+            timer.stop();
         }
     }
 
     public void deleteAccount(String name)
     {
+        PhaseTimer timer = metrics.startTimer("bank.deleteAccount");
         EntityManager em = null;
         try
         {
             em = beginTransaction();
 
-            Account account = getAccount(name, em);
-            em.remove(account);
+            Account account = findAccount(name, em);
+            if (account != null)
+            {
+                em.createNamedQuery("deleteEntriesOfAccount").setParameter("accountId", account.getAccountId()).
+                        executeUpdate();
+                em.remove(account);
+            }
+
+        } finally
+        {
+            commitTransaction(em);
+            timer.stop();
+        }
+    }
+
+    public void transfer(String fromOwnerName, String toOwnerName, float value, String requestId)
+            throws RejectedException
+    {
+        PhaseTimer timer = metrics.startTimer("bank.transfer");
+        RequestCache.Request request = requests.begin(RequestCache.key("transfer", fromOwnerName, requestId));
+        try
+        {
+            if (request.isReplay())
+            {
+                metrics.increment("bank.transfer.replayed");
+                replay(request.getFailure());
+                return;
+            }
+
+            EntityManager em = beginTransaction();
+            try
+            {
+                // Only the debited account is locked
+                Account from = getAccount(fromOwnerName, em, LockModeType.PESSIMISTIC_WRITE);
+                Account to = getAccount(toOwnerName, em, LockModeType.NONE);
+                em.persist(from.withdraw(value, to.getAccountId()));
+                em.persist(to.deposit(value, from.getAccountId()));
+            } finally
+            {
+                commitTransaction(em);
+            }
+            request.succeeded(); // Once committed
+        } catch (RejectedException e)
+        {
+            request.failed(e);
+            throw e;
+        } finally
+        {
+            request.release();
+            timer.stop();
+        }
+    }
+
+    public long reserve(String ownerName, String payeeName, float value, String requestId) throws RejectedException
+    {
+        PhaseTimer timer = metrics.startTimer("bank.reserve");
+        RequestCache.Request request = requests.begin(RequestCache.key("reserve", ownerName, requestId));
+        try
+        {
+            if (request.isReplay())
+            {
+                metrics.increment("bank.reserve.replayed");
+                replay(request.getFailure());
+                return (Long) request.getResult();
+            }
+
+            Hold hold;
+            EntityManager em = beginTransaction();
+            try
+            {
+                // Checked like a debit
+                Account account = getAccount(ownerName, em, LockModeType.PESSIMISTIC_WRITE);
+                Account payee = getAccount(payeeName, em, LockModeType.NONE);
+                hold = account.hold(payee, value, System.currentTimeMillis() + HOLD_TIMEOUT_MILLIS);
+                em.persist(hold);
+            } finally
+            {
+                commitTransaction(em);
+            }
+            request.succeeded(hold.getHoldId()); // Once committed
+            return hold.getHoldId();
+        } catch (RejectedException e)
+        {
+            request.failed(e);
+            throw e;
+        } finally
+        {
+            request.release();
+            timer.stop();
+        }
+    }
+
+    public void commitHold(long holdId) throws RejectedException
+    {
+        PhaseTimer timer = metrics.startTimer("bank.commitHold");
+        RequestCache.Request request = requests.begin("commit/" + holdId);
+        try
+        {
+            if (request.isReplay())
+            {
+                metrics.increment("bank.commitHold.replayed");
+                replay(request.getFailure());
+                return;
+            }
+
+            EntityManager em = beginTransaction();
+            try
+            {
+                Hold hold = em.find(Hold.class, holdId, LockModeType.PESSIMISTIC_WRITE);
+                if (hold == null)
+                {
+                    throw reject(Reason.NO_HOLD, holdId);
+                }
+                if (hold.getState() == Hold.State.COMMITTED)
+                {
+                    // Retried after a lost answer
+                    metrics.increment("bank.commitHold.replayed");
+                } else if (hold.getState() == Hold.State.HELD)
+                {
+                    // The funds are reserved : no balance to check, only the hold is locked
+                    em.persist(new LedgerEntry(hold.getAccountId(), -hold.getAmount(), hold.getPayeeId()));
+                    em.persist(new LedgerEntry(hold.getPayeeId(), hold.getAmount(), hold.getAccountId()));
+                } else
+                {
+                    // Released on expiry while the payer had already committed on its side (payer down,
+                    // bank unreachable) : the payee is still paid, the payer charged like by a transfer
+                    Account from = em.find(Account.class, hold.getAccountId(), LockModeType.PESSIMISTIC_WRITE);
+                    Account to = em.find(Account.class, hold.getPayeeId());
+                    if (from == null || to == null)
+                    {
+                        throw reject(Reason.NO_HOLD, holdId);
+                    }
+                    loadBalance(from, em);
+                    em.persist(from.withdraw(hold.getAmount(), to.getAccountId()));
+                    em.persist(to.deposit(hold.getAmount(), from.getAccountId()));
+                    metrics.increment("bank.commitHold.late");
+                }
+                if (hold.getState() != Hold.State.COMMITTED)
+                {
+                    hold.settle(Hold.State.COMMITTED, System.currentTimeMillis() + SETTLED_HOLD_RETENTION_MILLIS);
+                    LOG.info("Transaction: hold {} committed: ${}", holdId, hold.getAmount());
+                }
+            } finally
+            {
+                commitTransaction(em);
+            }
+            request.succeeded(); // Once committed
+        } catch (RejectedException e)
+        {
+            request.failed(e);
+            throw e;
+        } finally
+        {
+            request.release();
+            timer.stop();
+        }
+    }
+
+    public void releaseHold(long holdId)
+    {
+        PhaseTimer timer = metrics.startTimer("bank.releaseHold");
+        EntityManager em = null;
+        try
+        {
+            em = beginTransaction();
 
+            Hold hold = em.find(Hold.class, holdId, LockModeType.PESSIMISTIC_WRITE);
+            if (hold != null && hold.getState() == Hold.State.HELD)
+            {
+                hold.settle(Hold.State.RELEASED, System.currentTimeMillis() + SETTLED_HOLD_RETENTION_MILLIS);
+                LOG.info("Transaction: hold {} released: ${}", holdId, hold.getAmount());
+            }
         } finally
         {
             commitTransaction(em);
+            timer.stop();
+        }
+    }
+
+    /**
+     * @param lockMode PESSIMISTIC_WRITE to debit the account : its balance is then up to date
+     * @throws RejectedException if there is no such account
+     */
+    private Account getAccount(String ownerName, EntityManager em, LockModeType lockMode) throws RejectedException
+    {
+        Account account;
+        try
+        {
+            account = em.createNamedQuery("findAccountWithName", Account.class).
+                    setParameter("ownerName", ownerName).setLockMode(LockModeType.NONE).getSingleResult();
+        } catch (NoResultException noSuchAccount)
+        {
+            throw reject(Reason.NO_ACCOUNT, ownerName);
         }
+        if (lockMode == LockModeType.PESSIMISTIC_WRITE)
+        {
+            // Derby refuses FOR UPDATE on the join with the owner : the account row alone is locked
+            em.lock(account, lockMode);
+            loadBalance(account, em);
+        }
+        return account;
+    }
+
+    /**
+     * Add the ledger entries not yet in the snapshot, and the holds, to the balance of the account
+     */
+    private void loadBalance(Account account, EntityManager em)
+    {
+        Number pending = em.createNamedQuery("pendingBalance", Number.class).
+                setParameter("accountId", account.getAccountId()).getSingleResult();
+        Number held = em.createNamedQuery("heldBalance", Number.class).
+                setParameter("accountId", account.getAccountId()).getSingleResult();
+        account.setPending(pending == null ? 0 : pending.floatValue(), held == null ? 0 : held.floatValue());
     }
 
-    private Account getAccount(String ownerName, EntityManager em)
+    private Account findAccount(String ownerName, EntityManager em)
     {
         if (ownerName == null)
         {
@@ -122,12 +489,23 @@ public class BankImpl extends UnicastRemoteObject implements Bank
 
     private EntityManager beginTransaction()
     {
-        EntityManager em = emFactory.createEntityManager();
+        EntityManager em = emFactory().createEntityManager();
         EntityTransaction transaction = em.getTransaction();
         transaction.begin();
         return em;
     }
 
+    private EntityManagerFactory emFactory()
+    {
+        try
+        {
+            return emFactory.join();
+        } catch (CompletionException e)
+        {
+            throw new PersistenceException("The bank persistence unit failed to start", e.getCause());
+        }
+    }
+
     private void commitTransaction(EntityManager em)
     {
         em.getTransaction().commit();
@@ -1,5 +1,8 @@
 package bank;
 
+import capture.WorkloadRecorder;
+import metrics.MetricsReporter;
+
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -20,7 +23,8 @@ public class BankServer
         }
         try
         {
-            Bank bankobj = new BankImpl();
+            BankImpl bank = new BankImpl();
+            Bank bankobj = bank;
             try
             {
                 LocateRegistry.getRegistry(1099).list();
@@ -28,8 +32,32 @@ public class BankServer
             {
                 LocateRegistry.createRegistry(1099);
             }
+            // Optional capture of the calls, for a replay
+            WorkloadRecorder recorder = WorkloadRecorder.fromProperty();
+            if (recorder != null)
+            {
+                bankobj = recorder.export(bankobj, Bank.class);
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+            }
             Naming.rebind(bankname, bankobj);
             System.out.println(bankobj + " is ready.");
+            MetricsReporter.startDefault();
+
+            // Startup failed : the bank is already stopped, give back its name and exit
+            bank.started().whenComplete((v, e) ->
+            {
+                if (e == null)
+                    return;
+                try
+                {
+                    Naming.unbind(bankname);
+                } catch (Exception unbind)
+                {
+                    // Registry gone with this JVM, or name rebound since
+                }
+                System.err.println("Bank startup failed: " + e.getCause());
+                System.exit(1);
+            });
 
         } catch (Exception e)
         {
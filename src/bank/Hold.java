@@ -0,0 +1,120 @@
+package bank;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Funds of an account reserved for a payment to another one. The hold is either committed,
+ * which appends the transfer to the ledger, or released; holds neither committed nor released
+ * before their expiry are released by the bank.
+ *
+ * A settled hold is kept with its outcome until its purge time, so that a commit retried
+ * after a lost answer is a no-op, and a commit arriving after the expiry still pays the payee.
+ */
+@NamedQueries({
+        @NamedQuery(
+                name = "heldBalance",
+                query = "SELECT SUM(hold.amount) FROM Hold hold WHERE hold.accountId = :accountId AND " +
+                        "hold.state = bank.Hold.State.HELD"
+        ),
+        @NamedQuery(
+                name = "findExpiredHolds",
+                query = "SELECT hold FROM Hold hold WHERE hold.expiresAt <= :now ORDER BY hold.expiresAt"
+        )
+})
+
+@Entity(name = "Hold")
+@Table(name = "HOLDS", indexes = {
+        @Index(name = "HOLDS_ACCOUNT", columnList = "account"),
+        @Index(name = "HOLDS_EXPIRES_AT", columnList = "expires_at")
+})
+public class Hold implements Serializable
+{
+    private static final long serialVersionUID = -6114806962934290181L;
+
+    public enum State
+    {
+        HELD, COMMITTED, RELEASED
+    }
+
+    @Id
+    @Column(name = "id", nullable = false)
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long holdId;
+
+    @Column(name = "account", nullable = false, updatable = false)
+    private long accountId;
+
+    @Column(name = "payee", nullable = false, updatable = false)
+    private long payeeId;
+
+    @Column(name = "amount", nullable = false, updatable = false)
+    private float amount;
+
+    // Expiry while held, purge time once settled
+    @Column(name = "expires_at", nullable = false)
+    private long expiresAt;
+
+    @Column(name = "state", nullable = false)
+    private State state = State.HELD;
+
+    public Hold()
+    {
+    }
+
+    /**
+     * Constructor
+     * @param accountId account the funds are reserved on
+     * @param payeeId account paid when the hold is committed
+     * @param amount
+     * @param expiresAt time the hold is released if still there (ms since the epoch)
+     */
+    public Hold(long accountId, long payeeId, float amount, long expiresAt)
+    {
+        this.accountId = accountId;
+        this.payeeId = payeeId;
+        this.amount = amount;
+        this.expiresAt = expiresAt;
+    }
+
+    public long getHoldId()
+    {
+        return holdId;
+    }
+
+    public long getAccountId()
+    {
+        return accountId;
+    }
+
+    public long getPayeeId()
+    {
+        return payeeId;
+    }
+
+    public float getAmount()
+    {
+        return amount;
+    }
+
+    public long getExpiresAt()
+    {
+        return expiresAt;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Record the outcome of the hold
+     * @param state COMMITTED or RELEASED
+     * @param purgeAt time the settled hold is deleted (ms since the epoch)
+     */
+    public void settle(State state, long purgeAt)
+    {
+        this.state = state;
+        this.expiresAt = purgeAt;
+    }
+}
@@ -0,0 +1,117 @@
+package bank;
+
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Background release of the expired holds, i.e. funds reserved by a caller which neither
+ * committed nor released them in time (crashed market, lost release). Expired holds are
+ * marked released in batches along the expires_at index, one short transaction per batch;
+ * settled holds are deleted the same way once their retention is over.
+ */
+public class HoldReaper
+{
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(HoldReaper.class);
+
+    private final Supplier<EntityManagerFactory> emFactory;
+    private final int batchSize;
+    private final long settledRetentionMillis;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread t = new Thread(r, "bank-hold-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor
+     * @param emFactory waits for the persistence unit to start
+     * @param intervalMillis delay between two cycles
+     * @param batchSize holds released per transaction
+     * @param settledRetentionMillis time the settled holds are kept
+     */
+    public HoldReaper(Supplier<EntityManagerFactory> emFactory, long intervalMillis, int batchSize,
+                      long settledRetentionMillis)
+    {
+        this.emFactory = emFactory;
+        this.batchSize = batchSize;
+        this.settledRetentionMillis = settledRetentionMillis;
+        scheduler.scheduleWithFixedDelay(this::cycle, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown()
+    {
+        scheduler.shutdown();
+    }
+
+    private void cycle()
+    {
+        long now = System.currentTimeMillis();
+        int[] counts = new int[2]; // Released, purged
+
+        try
+        {
+            while (releaseBatch(now, counts) == batchSize)
+            {
+                // Next batch
+            }
+        } catch (RuntimeException e)
+        {
+            LOG.error("Hold reaper cycle failed: {}", e);
+        }
+
+        if (counts[0] > 0)
+        {
+            metrics.counter("bank.holds.expired").add(counts[0]);
+            LOG.warn("{} expired holds released", counts[0]);
+        }
+        if (counts[1] > 0)
+        {
+            metrics.counter("bank.holds.purged").add(counts[1]);
+        }
+    }
+
+    private int releaseBatch(long now, int[] counts)
+    {
+        EntityManager em = emFactory.get().createEntityManager();
+        try
+        {
+            em.getTransaction().begin();
+
+            List<Hold> expired = em.createNamedQuery("findExpiredHolds", Hold.class).
+                    setParameter("now", now).setMaxResults(batchSize).getResultList();
+            int released = 0;
+            for (Hold hold : expired)
+            {
+                if (hold.getState() == Hold.State.HELD)
+                {
+                    hold.settle(Hold.State.RELEASED, now + settledRetentionMillis);
+                    released++;
+                } else
+                {
+                    em.remove(hold);
+                }
+            }
+
+            em.getTransaction().commit();
+            counts[0] += released;
+            counts[1] += expired.size() - released;
+            return expired.size();
+        } finally
+        {
+            if (em.getTransaction().isActive())
+                em.getTransaction().rollback();
+            em.close();
+        }
+    }
+}
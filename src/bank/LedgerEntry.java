@@ -0,0 +1,90 @@
+package bank;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Immutable movement of money on an account, not yet folded into the balance snapshot
+ * of the account. A transfer appends two entries, one per account.
+ */
+@NamedQueries({
+        @NamedQuery(
+                name = "pendingBalance",
+                query = "SELECT SUM(le.amount) FROM LedgerEntry le WHERE le.accountId = :accountId"
+        ),
+        @NamedQuery(
+                name = "pendingEntries",
+                query = "SELECT le FROM LedgerEntry le WHERE le.accountId = :accountId"
+        ),
+        @NamedQuery(
+                name = "accountsToSnapshot",
+                query = "SELECT le.accountId FROM LedgerEntry le GROUP BY le.accountId " +
+                        "HAVING COUNT(le) >= :minEntries"
+        ),
+        @NamedQuery(
+                name = "deleteEntriesOfAccount",
+                query = "DELETE FROM LedgerEntry le WHERE le.accountId = :accountId"
+        )
+})
+
+@Entity(name = "LedgerEntry")
+@Table(name = "LEDGER", indexes = @Index(name = "LEDGER_ACCOUNT", columnList = "account"))
+public class LedgerEntry implements Serializable
+{
+    private static final long serialVersionUID = 2817305596416728045L;
+
+    @Id
+    @Column(name = "id", nullable = false)
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long entryId;
+
+    @Column(name = "account", nullable = false, updatable = false)
+    private long accountId;
+
+    @Column(name = "amount", nullable = false, updatable = false)
+    private float amount;
+
+    @Column(name = "counterparty", updatable = false)
+    private Long counterpartyId;
+
+    @Column(name = "time", nullable = false, updatable = false)
+    private long time;
+
+    public LedgerEntry()
+    {
+    }
+
+    /**
+     * Constructor
+     * @param accountId
+     * @param amount positive for a credit, negative for a debit
+     * @param counterpartyId other account of a transfer, null for a deposit or a withdrawal
+     */
+    public LedgerEntry(long accountId, float amount, Long counterpartyId)
+    {
+        this.accountId = accountId;
+        this.amount = amount;
+        this.counterpartyId = counterpartyId;
+        this.time = System.currentTimeMillis();
+    }
+
+    public long getAccountId()
+    {
+        return accountId;
+    }
+
+    public float getAmount()
+    {
+        return amount;
+    }
+
+    public Long getCounterpartyId()
+    {
+        return counterpartyId;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+}
@@ -0,0 +1,136 @@
+package bank;
+
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Background folding of the ledger entries into the balance snapshots of the accounts.
+ *
+ * Credits only append entries and debits only lock the account they check, so the account
+ * rows are written here alone : each cycle takes the accounts having enough entries and, for
+ * each one in its own short transaction, locks the account, adds its entries to the snapshot
+ * and deletes them. Entries appended meanwhile are left to the next cycle.
+ */
+public class LedgerSnapshotter
+{
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(LedgerSnapshotter.class);
+
+    private final Supplier<EntityManagerFactory> emFactory;
+    private final int minEntries;
+    private final int maxAccounts;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread t = new Thread(r, "bank-ledger-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor
+     * @param emFactory waits for the persistence unit to start
+     * @param intervalMillis delay between two cycles
+     * @param minEntries entries an account needs to be folded
+     * @param maxAccounts accounts folded per cycle
+     */
+    public LedgerSnapshotter(Supplier<EntityManagerFactory> emFactory, long intervalMillis, int minEntries,
+                             int maxAccounts)
+    {
+        this.emFactory = emFactory;
+        this.minEntries = minEntries;
+        this.maxAccounts = maxAccounts;
+        scheduler.scheduleWithFixedDelay(this::cycle, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown()
+    {
+        scheduler.shutdown();
+    }
+
+    private void cycle()
+    {
+        long start = System.nanoTime();
+        int folded = 0;
+
+        try
+        {
+            for (Long accountId : accountsToSnapshot())
+                folded += snapshot(accountId);
+        } catch (RuntimeException e)
+        {
+            LOG.error("Ledger snapshot cycle failed: {}", e);
+        }
+
+        metrics.histogram("bank.ledger.snapshot").record(System.nanoTime() - start);
+        if (folded > 0)
+        {
+            metrics.counter("bank.ledger.folded").add(folded);
+            LOG.info("Ledger snapshot folded {} entries in {} ms", folded,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private List<Long> accountsToSnapshot()
+    {
+        EntityManager em = emFactory.get().createEntityManager();
+        try
+        {
+            return em.createNamedQuery("accountsToSnapshot", Long.class).
+                    setParameter("minEntries", (long) minEntries).setMaxResults(maxAccounts).getResultList();
+        } finally
+        {
+            em.close();
+        }
+    }
+
+    /**
+     * @return number of entries folded
+     */
+    private int snapshot(long accountId)
+    {
+        EntityManager em = emFactory.get().createEntityManager();
+        try
+        {
+            em.getTransaction().begin();
+
+            // Waits for the debits in progress, and keeps the next ones out
+            Account account = em.find(Account.class, accountId, LockModeType.PESSIMISTIC_WRITE);
+            if (account == null)
+            {
+                // Entries left by a deleted account
+                int deleted = em.createNamedQuery("deleteEntriesOfAccount").
+                        setParameter("accountId", accountId).executeUpdate();
+                em.getTransaction().commit();
+                return deleted;
+            }
+
+            List<LedgerEntry> entries = em.createNamedQuery("pendingEntries", LedgerEntry.class).
+                    setParameter("accountId", accountId).getResultList();
+            float amount = 0;
+            for (LedgerEntry entry : entries)
+            {
+                amount += entry.getAmount();
+                em.remove(entry);
+            }
+            account.snapshot(amount);
+
+            em.getTransaction().commit();
+            return entries.size();
+        } finally
+        {
+            if (em.getTransaction().isActive())
+                em.getTransaction().rollback();
+            em.close();
+        }
+    }
+}
@@ -1,11 +1,70 @@
 package bank;
 
+/**
+ * Refusal of a bank operation. Like the rejections of the market, it captures no stack trace
+ * and its message is only formatted when asked for.
+ */
 public class RejectedException extends Exception
 {
     private static final long serialVersionUID = 4601687973395175716L;
 
+    public enum Reason
+    {
+        ACCOUNT_EXISTS("Rejected: Account for: %s already exists"),
+        NO_ACCOUNT("Rejected: no account for %s"),
+        ILLEGAL_VALUE("Rejected: Account %s: Illegal value: %s"),
+        INSUFFICIENT_FUNDS("Rejected: Account %s: Negative balance on %s: %s"),
+        NO_HOLD("Rejected: hold %s released or expired"),
+        OTHER("%s");
+
+        private final String format;
+        private final String counter = "bank.rejected." + name().toLowerCase();
+
+        Reason(String format)
+        {
+            this.format = format;
+        }
+
+        /**
+         * @return name of the metrics counter of the rejections for this reason
+         */
+        public String getCounter()
+        {
+            return counter;
+        }
+    }
+
+    private final Reason reason;
+    private final Object[] args;
+    private transient String message;
+
     public RejectedException(String reason)
     {
-        super(reason);
+        this(Reason.OTHER, reason);
+    }
+
+    /**
+     * Constructor
+     * @param reason
+     * @param args arguments of the message of the reason, serializable
+     */
+    public RejectedException(Reason reason, Object... args)
+    {
+        super(null, null, false, false); // Stackless
+        this.reason = reason;
+        this.args = args;
+    }
+
+    public Reason getReason()
+    {
+        return reason;
+    }
+
+    @Override
+    public String getMessage()
+    {
+        if (message == null)
+            message = String.format(reason.format, args);
+        return message;
     }
-}
\ No newline at end of file
+}
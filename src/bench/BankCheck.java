@@ -0,0 +1,112 @@
+package bench;
+
+
+import bank.Bank;
+import bank.BankImpl;
+import persistence.PersistenceConfig;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * Functional check of the bank : starts a bank in this JVM (fresh embedded Derby database,
+ * local registry), looks it up as the market does and checks the accounts, the ledger and
+ * its snapshots, the holds and the deduplication of the requests. Prints one line per check
+ * and exits with 1 if any failed.
+ */
+public class BankCheck {
+    private static final int DEFAULT_REGISTRY_PORT_NUMBER = 1099;
+    private static final float EPSILON = 0.001f;
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 200;
+
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final Bank bank;
+    private int failures = 0;
+
+    public BankCheck(Registry registry) throws Exception {
+        String bankName = "BankCheck-" + runId;
+        registry.rebind(bankName, new BankImpl("bankcheck_" + runId));
+        bank = (Bank) registry.lookup(bankName);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Entirely local by default, ledger folded often
+        if (System.getProperty(PersistenceConfig.MODE_PROPERTY) == null)
+            System.setProperty(PersistenceConfig.MODE_PROPERTY, PersistenceConfig.EMBEDDED);
+        System.setProperty("marketplace.ledger.snapshotInterval", Long.toString(SNAPSHOT_INTERVAL_MILLIS));
+        System.setProperty("marketplace.ledger.snapshotMinEntries", "1");
+
+        Registry registry;
+        try {
+            registry = LocateRegistry.getRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+            registry.list();
+        } catch (RemoteException e) {
+            registry = LocateRegistry.createRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+        }
+
+        BankCheck check = new BankCheck(registry);
+        try {
+            check.run();
+        } catch (Exception e) {
+            check.check("no unexpected failure (" + e + ")", false);
+        }
+        System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " check(s) failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    public void run() throws Exception {
+        String payer = "payer-" + runId;
+        String payee = "payee-" + runId;
+        check("accounts opened", !fails(() -> bank.newAccount(payer)) && !fails(() -> bank.newAccount(payee)));
+        check("second account of an owner refused", fails(() -> bank.newAccount(payer)));
+
+        bank.deposit(payer, 100f);
+        bank.withdraw(payer, 30f);
+        check("deposit and withdrawal on the ledger", balance(payer, 70f));
+        check("withdrawal beyond the balance refused", fails(() -> bank.withdraw(payer, 1000f)));
+
+        bank.transfer(payer, payee, 20f, "check-transfer-" + runId);
+        bank.transfer(payer, payee, 20f, "check-transfer-" + runId);
+        check("transfer applied once per request id", balance(payer, 50f) && balance(payee, 20f));
+
+        long hold = bank.reserve(payer, payee, 40f, "check-reserve-" + runId);
+        check("reserved funds no longer available", balance(payer, 10f) && balance(payee, 20f));
+        check("reservation beyond the available funds refused",
+                fails(() -> bank.reserve(payer, payee, 20f, "check-overdraw-" + runId)));
+        bank.commitHold(hold);
+        bank.commitHold(hold);
+        check("hold committed once to the payee", balance(payer, 10f) && balance(payee, 60f));
+
+        long released = bank.reserve(payer, payee, 5f, "check-release-" + runId);
+        bank.releaseHold(released);
+        check("released hold gives the funds back", balance(payer, 10f) && balance(payee, 60f));
+
+        // The snapshotter folds the ledger entries into the balances
+        Thread.sleep(5 * SNAPSHOT_INTERVAL_MILLIS);
+        check("balances unchanged by the ledger snapshots", balance(payer, 10f) && balance(payee, 60f));
+    }
+
+    private boolean balance(String owner, float expected) throws RemoteException {
+        return Math.abs(bank.findAccount(owner).getBalance() - expected) < EPSILON;
+    }
+
+    private interface Call {
+        void run() throws Exception;
+    }
+
+    private static boolean fails(Call call) {
+        try {
+            call.run();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private void check(String description, boolean passed) {
+        if (!passed)
+            failures++;
+        System.out.println((passed ? "PASS " : "FAIL ") + description);
+    }
+}
@@ -0,0 +1,238 @@
+package bench;
+
+
+import bank.BankImpl;
+import market.Item;
+import market.AdmissionControl;
+import market.MarketImpl;
+import metrics.LatencyHistogram;
+import persistence.PersistenceConfig;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator : runs a bank and a market in this JVM (embedded Derby by default,
+ * local registry) and drives them with thousands of in-process traders issuing the console
+ * client commands (register, login, sell, buy, wish, list, stats) at a target rate.
+ *
+ * Scheduling is open-loop : commands are issued at fixed intended start times whatever the
+ * response times, and latencies are measured from the intended start, so that a stalled
+ * market shows up in the percentiles instead of silently slowing the load down
+ * (no coordinated omission).
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_MIX = "register=1,login=4,sell=25,buy=30,wish=5,list=10,stats=25";
+    private static final String USAGE = "java bench.LoadGenerator [<NB_TRADERS> [<RATE_PER_SECOND> " +
+            "[<DURATION_SECONDS> [<MIX>]]]]\n" +
+            "  MIX : comma separated command=weight, default " + DEFAULT_MIX;
+    private static final int DEFAULT_REGISTRY_PORT_NUMBER = 1099;
+    private static final String BANK_NAME = "LoadBank";
+    private static final String PASSWORD = "loadtest";
+    private static final int NB_ITEM_NAMES = 1000;
+    private static final int RECENT_LISTINGS = 4096;
+    private static final float INITIAL_BALANCE = 1000000f;
+
+    enum Command { register, login, sell, buy, wish, list, stats }
+
+    private final BankImpl bank;
+    private final MarketImpl market;
+    private final List<LocalTrader> traders = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextTraderId = new AtomicInteger();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    // Recently listed items, so that most buys target something actually on the market
+    private final AtomicLongArray recentListings = new AtomicLongArray(RECENT_LISTINGS);
+    private final AtomicLong nextListing = new AtomicLong();
+    private final LongAdder skippedBuys = new LongAdder(); // Drawn before any listing was recorded
+
+    private final Map<Command, LatencyHistogram> latencies = new EnumMap<>(Command.class);
+    private final Map<Command, LongAdder> rejected = new EnumMap<>(Command.class);
+    private final Map<Command, LongAdder> failed = new EnumMap<>(Command.class);
+
+    public LoadGenerator(Registry registry) throws RemoteException {
+        bank = new BankImpl();
+        registry.rebind(BANK_NAME, bank);
+        market = new MarketImpl(BANK_NAME, DEFAULT_REGISTRY_PORT_NUMBER);
+
+        for (Command command : Command.values()) {
+            latencies.put(command, new LatencyHistogram());
+            rejected.put(command, new LongAdder());
+            failed.put(command, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 4 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        int nbTraders = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int duration = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        Map<Command, Integer> mix = parseMix(args.length > 3 ? args[3] : DEFAULT_MIX);
+
+        // Entirely local by default
+        if (System.getProperty(PersistenceConfig.MODE_PROPERTY) == null)
+            System.setProperty(PersistenceConfig.MODE_PROPERTY, PersistenceConfig.EMBEDDED);
+
+        // Measure the market, not its admission control
+        if (System.getProperty(AdmissionControl.ENABLED_PROPERTY) == null)
+            System.setProperty(AdmissionControl.ENABLED_PROPERTY, "false");
+
+        Registry registry;
+        try {
+            registry = LocateRegistry.getRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+            registry.list();
+        } catch (RemoteException e) {
+            registry = LocateRegistry.createRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+        }
+
+        LoadGenerator generator = new LoadGenerator(registry);
+        System.out.println("Creating " + nbTraders + " traders...");
+        for (int i = 0; i < nbTraders; i++)
+            generator.newTrader();
+
+        System.out.println("Running " + mix + " at " + rate + " commands/s for " + duration + " s...");
+        generator.run(mix, rate, duration);
+        generator.report(duration);
+        System.exit(0);
+    }
+
+    private static Map<Command, Integer> parseMix(String mix) {
+        Map<Command, Integer> weights = new EnumMap<>(Command.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            weights.put(Command.valueOf(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    private LocalTrader newTrader() throws Exception {
+        LocalTrader trader = new LocalTrader("trader-" + runId + "-" + nextTraderId.getAndIncrement());
+        bank.newAccount(trader.getClientName());
+        bank.deposit(trader.getClientName(), INITIAL_BALANCE);
+        market.register(trader, PASSWORD);
+        traders.add(trader);
+        return trader;
+    }
+
+    /**
+     * Issue the commands at fixed intended start times for the given duration
+     */
+    public void run(Map<Command, Integer> mix, int rate, int durationSeconds) throws InterruptedException {
+        Command[] schedule = weightedSchedule(mix);
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.max(16, Runtime.getRuntime().availableProcessors() * 8));
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long n = 0;
+
+        for (long intendedStart = start; intendedStart < end; intendedStart = start + (++n) * intervalNanos) {
+            long wait = intendedStart - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+
+            Command command = schedule[ThreadLocalRandom.current().nextInt(schedule.length)];
+            long scheduled = intendedStart;
+            workers.execute(() -> execute(command, scheduled));
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private static Command[] weightedSchedule(Map<Command, Integer> mix) {
+        List<Command> schedule = new ArrayList<>();
+        for (Map.Entry<Command, Integer> entry : mix.entrySet())
+            for (int i = 0; i < entry.getValue(); i++)
+                schedule.add(entry.getKey());
+        return schedule.toArray(new Command[0]);
+    }
+
+    private void execute(Command command, long intendedStart) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        LocalTrader trader = traders.get(random.nextInt(traders.size()));
+
+        long listing = 0;
+        if (command == Command.buy) {
+            // Only the slots already reserved may hold a listing, and a reserved slot is 0 until written
+            listing = recentListings.get(random.nextInt((int) Math.min(Math.max(1, nextListing.get()),
+                    RECENT_LISTINGS)));
+            if (listing == 0) {
+                skippedBuys.increment();
+                return;
+            }
+        }
+
+        try {
+            switch (command) {
+                case register:
+                    newTrader();
+                    break;
+                case login:
+                    market.logout(trader.getClientName());
+                    market.login(trader, PASSWORD);
+                    break;
+                case sell:
+                    int nameIndex = random.nextInt(NB_ITEM_NAMES);
+                    int priceCents = 100 + random.nextInt(100);
+                    market.sell(new Item(itemName(nameIndex), priceCents / 100f, 1 + random.nextInt(5)), trader);
+                    recentListings.set((int) (nextListing.getAndIncrement() & (RECENT_LISTINGS - 1)),
+                            ((long) nameIndex << 32) | priceCents);
+                    break;
+                case buy:
+                    market.buy(new Item(itemName((int) (listing >>> 32)), (int) listing / 100f, 1), trader);
+                    break;
+                case wish:
+                    market.wish(new Item(itemName(random.nextInt(NB_ITEM_NAMES)), 1 + random.nextInt(2), 1), trader);
+                    break;
+                case list:
+                    market.getAllItems();
+                    break;
+                case stats:
+                    market.getStats(trader.getClientName());
+                    break;
+            }
+        } catch (market.RejectedException | bank.RejectedException e) {
+            rejected.get(command).increment();
+        } catch (Exception e) {
+            failed.get(command).increment();
+        } finally {
+            latencies.get(command).record(System.nanoTime() - intendedStart);
+        }
+    }
+
+    private static String itemName(int index) {
+        return "item-" + index;
+    }
+
+    private void report(int durationSeconds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-9s %9s %9s %9s %8s %10s %10s %10s %10s %10s%n", "command", "count", "rejected",
+                "failed", "ops/s", "p50(ms)", "p90(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+
+        for (Command command : Command.values()) {
+            LatencyHistogram h = latencies.get(command);
+            if (h.getCount() == 0)
+                continue;
+            sb.append(String.format("%-9s %9d %9d %9d %8.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n", command,
+                    h.getCount(), rejected.get(command).sum(), failed.get(command).sum(),
+                    h.getCount() / (double) durationSeconds, h.getPercentile(50) / 1e6, h.getPercentile(90) / 1e6,
+                    h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6, h.getMax() / 1e6));
+        }
+        if (skippedBuys.sum() > 0)
+            sb.append(String.format("%d buys skipped, drawn before any listing was recorded%n", skippedBuys.sum()));
+        System.out.print(sb);
+    }
+}
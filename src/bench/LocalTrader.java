@@ -0,0 +1,33 @@
+package bench;
+
+
+import client.Trader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process trader used by the benchmarks : it is called directly by the market
+ * (no RMI export) and only counts the callbacks it receives.
+ */
+public class LocalTrader implements Trader {
+    private final String clientName;
+    private final AtomicLong callbacks = new AtomicLong();
+
+    public LocalTrader(String clientName) {
+        this.clientName = clientName;
+    }
+
+    @Override
+    public void callback(String message) {
+        callbacks.incrementAndGet();
+    }
+
+    @Override
+    public String getClientName() {
+        return clientName;
+    }
+
+    public long getCallbacks() {
+        return callbacks.get();
+    }
+}
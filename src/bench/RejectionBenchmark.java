@@ -0,0 +1,101 @@
+package bench;
+
+
+import market.Item;
+import market.RejectedException;
+import market.RejectedException.Reason;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares the cost of a rejection (e.g. insufficient stock during a flash sale) built the
+ * former way, an exception with a stack trace and a message concatenated when thrown, with
+ * the stackless RejectedException carrying a reason code. Each rejection is thrown from a
+ * stack as deep as an RMI dispatch, caught, and optionally serialized as RMI returns it to
+ * the client.
+ */
+public class RejectionBenchmark {
+    private static final String USAGE = "java bench.RejectionBenchmark [iterations]";
+    private static final int DEFAULT_ITERATIONS = 1000000;
+    private static final int STACK_DEPTH = 40; // Frames of an RMI call to the market
+    private static final Item ITEM = new Item("flash-sale", 9.99f, 1);
+
+    private interface Rejection {
+        Exception create(int requested, int remaining);
+    }
+
+    /**
+     * Rejection as it was built before the reason codes
+     */
+    private static class LegacyRejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private LegacyRejectedException(String reason) {
+            super(reason);
+        }
+    }
+
+    private static final Rejection LEGACY = (requested, remaining) -> new LegacyRejectedException(
+            "Buy failed: you cannot buy " + requested + " items " + ITEM + " : there is only " + remaining +
+                    " items remaining on the market");
+
+    private static final Rejection REASON_CODE = (requested, remaining) -> new RejectedException(
+            Reason.INSUFFICIENT_STOCK, requested, ITEM, remaining);
+
+    private static long sink = 0; // Keeps the results alive
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        // Warm up
+        run(LEGACY, iterations / 10, false);
+        run(REASON_CODE, iterations / 10, false);
+
+        System.out.println("rejection    mode            ops/s        bytes");
+        report("legacy", "throw", LEGACY, iterations, false);
+        report("reason code", "throw", REASON_CODE, iterations, false);
+        report("legacy", "throw+serialize", LEGACY, iterations / 10, true);
+        report("reason code", "throw+serialize", REASON_CODE, iterations / 10, true);
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static void report(String name, String mode, Rejection rejection, int iterations, boolean serialize)
+            throws IOException {
+        long elapsed = run(rejection, iterations, serialize);
+        System.out.println(String.format("%-12s %-15s %10.0f %12d", name, mode, iterations / (elapsed / 1e9),
+                serialize(rejection.create(2, 1)).length));
+    }
+
+    private static long run(Rejection rejection, int iterations, boolean serialize) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            try {
+                throwFrom(STACK_DEPTH, rejection, i);
+            } catch (Exception e) {
+                sink += serialize ? serialize(e).length : e.hashCode();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void throwFrom(int depth, Rejection rejection, int i) throws Exception {
+        if (depth == 0)
+            throw rejection.create(i + 2, i + 1);
+        throwFrom(depth - 1, rejection, i);
+    }
+
+    private static byte[] serialize(Exception e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,224 @@
+package bench;
+
+
+import bank.Bank;
+import bank.BankImpl;
+import client.Trader;
+import market.*;
+import persistence.PersistenceConfig;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Functional check of a sharded market : runs a bank and several market shards in this JVM
+ * (fresh embedded Derby databases, local registry), looks the shards up as a client does and
+ * checks the routing, the merged reads, the settlement of a buy at the bank and the undo of
+ * a login or a registration refused by one shard. Prints one line per check and exits with 1
+ * if any failed.
+ */
+public class ShardedMarketCheck {
+    private static final String USAGE = "java bench.ShardedMarketCheck [<NB_SHARDS>]";
+    private static final int DEFAULT_REGISTRY_PORT_NUMBER = 1099;
+    private static final String PASSWORD = "shardcheck";
+    private static final int NB_ITEMS = 60;
+    private static final float EPSILON = 0.001f;
+    private static final long SETTLEMENT_WAIT_MILLIS = 10 * 1000;
+
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final List<Market> shards = new ArrayList<>();
+    private final ShardedMarket market;
+    private final Bank bank;
+    private int failures = 0;
+
+    public ShardedMarketCheck(Registry registry, int nbShards) throws Exception {
+        String bankName = "ShardCheckBank-" + runId;
+        registry.rebind(bankName, new BankImpl("shardcheck_bank_" + runId));
+        String marketName = "ShardCheck-" + runId;
+        for (int i = 0; i < nbShards; i++) {
+            MarketImpl shard = new MarketImpl(bankName, DEFAULT_REGISTRY_PORT_NUMBER,
+                    "shardcheck_market_" + runId + "_" + i);
+            registry.rebind(ShardedMarket.shardName(marketName, i), shard);
+        }
+        market = ShardedMarket.lookup(registry, marketName, nbShards);
+        for (int i = 0; i < nbShards; i++)
+            shards.add((Market) registry.lookup(ShardedMarket.shardName(marketName, i)));
+        bank = (Bank) registry.lookup(bankName);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        int nbShards = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        if (nbShards < 2) {
+            System.err.println("At least 2 shards");
+            System.exit(1);
+        }
+
+        // Entirely local by default
+        if (System.getProperty(PersistenceConfig.MODE_PROPERTY) == null)
+            System.setProperty(PersistenceConfig.MODE_PROPERTY, PersistenceConfig.EMBEDDED);
+        if (System.getProperty(AdmissionControl.ENABLED_PROPERTY) == null)
+            System.setProperty(AdmissionControl.ENABLED_PROPERTY, "false");
+
+        Registry registry;
+        try {
+            registry = LocateRegistry.getRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+            registry.list();
+        } catch (RemoteException e) {
+            registry = LocateRegistry.createRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+        }
+
+        ShardedMarketCheck check = new ShardedMarketCheck(registry, nbShards);
+        try {
+            check.run();
+        } catch (Exception e) {
+            check.check("no unexpected failure (" + e + ")", false);
+        }
+        System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " check(s) failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    public void run() throws Exception {
+        Trader seller = trader("seller");
+        Trader buyer = trader("buyer");
+        market.register(seller, PASSWORD);
+        market.register(buyer, PASSWORD);
+        bank.newAccount(seller.getClientName());
+        bank.newAccount(buyer.getClientName());
+        bank.deposit(buyer.getClientName(), 1000000f);
+
+        // Listings routed by name, read back merged
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < NB_ITEMS; i++) {
+            String name = "item-" + i;
+            names.add(name);
+            market.sell(new Item(name, 10f + i, 5), seller);
+        }
+        Set<String> listed = new HashSet<>();
+        for (Item item : market.getAllItems())
+            listed.add(item.getName());
+        check("all listings read back from the shards", listed.containsAll(names));
+
+        int onShards = 0;
+        boolean routed = true;
+        for (int i = 0; i < shards.size(); i++) {
+            for (Item item : shards.get(i).getAllItems()) {
+                if (names.contains(item.getName())) {
+                    onShards++;
+                    routed &= ShardedMarket.shardOf(item.getName(), shards.size()) == i;
+                }
+            }
+        }
+        check("each listing on the shard of its name", routed && onShards == NB_ITEMS);
+
+        Inventory page = market.getMyItems(seller, 10, 20);
+        check("inventory pages merged across shards", page.getNbListings() == NB_ITEMS &&
+                page.getItems().size() == 20 && page.getItems().get(0).getName().equals(sorted(names).get(10)));
+        Inventory last = market.getMyItems(seller, NB_ITEMS - 5, Integer.MAX_VALUE);
+        check("last inventory page with an unbounded limit", last.getItems().size() == 5 &&
+                last.getItems().get(0).getName().equals(sorted(names).get(NB_ITEMS - 5)));
+
+        // Buy : funds reserved, trade committed, then the hold committed to the seller
+        float buyerFunds = balance(buyer);
+        float sellerFunds = balance(seller);
+        check("buy accepted", !fails(() -> market.buy(new Item("item-7", 17f, 2), buyer)));
+        check("buy routed to the shard of the item", amountListed("item-7") == 3);
+        check("buyer debited by the buy", near(balance(buyer), buyerFunds - 34f));
+        check("seller paid once the hold is committed", settled(seller, sellerFunds + 34f));
+
+        // Buy beyond the funds of the buyer : refused by the bank, nothing traded
+        Trader poor = trader("poor");
+        market.register(poor, PASSWORD);
+        bank.newAccount(poor.getClientName());
+        bank.deposit(poor.getClientName(), 10f);
+        check("buy beyond the funds refused", fails(() -> market.buy(new Item("item-8", 18f, 1), poor)));
+        check("refused buy leaves the listing and the funds", amountListed("item-8") == 5 &&
+                near(balance(poor), 10f) && near(balance(seller), sellerFunds + 34f));
+
+        // Registration refused by one shard : undone on the others
+        Trader late = trader("late");
+        shards.get(1).register(late, PASSWORD);
+        shards.get(1).logout(late.getClientName());
+        check("registration refused by a shard", fails(() -> market.register(late, PASSWORD)));
+        check("registration undone on the first shard", fails(() -> shards.get(0).login(late, PASSWORD)));
+
+        // Login refused by one shard : undone on the others
+        Trader twice = trader("twice");
+        market.register(twice, PASSWORD);
+        market.logout(twice.getClientName());
+        shards.get(1).login(twice, PASSWORD);
+        check("login refused by a shard", fails(() -> market.login(twice, PASSWORD)));
+        check("login undone on the other shards", fails(() -> shards.get(0).logout(twice.getClientName())));
+        check("shard which refused the login untouched", !fails(() -> shards.get(1).logout(twice.getClientName())));
+        check("login accepted again by every shard", !fails(() -> market.login(twice, PASSWORD)));
+    }
+
+    private float balance(Trader trader) throws RemoteException {
+        return bank.findAccount(trader.getClientName()).getBalance();
+    }
+
+    private static boolean near(float actual, float expected) {
+        return Math.abs(actual - expected) < EPSILON;
+    }
+
+    /**
+     * @return true once the balance of the trader is the one expected, false if it is not in time
+     */
+    private boolean settled(Trader trader, float expected) throws Exception {
+        long deadline = System.currentTimeMillis() + SETTLEMENT_WAIT_MILLIS;
+        while (!near(balance(trader), expected)) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    private int amountListed(String name) throws RemoteException {
+        for (Item item : market.getAllItems()) {
+            if (item.getName().equals(name))
+                return item.getAmount();
+        }
+        return 0;
+    }
+
+    private interface Call {
+        void run() throws Exception;
+    }
+
+    private static boolean fails(Call call) {
+        try {
+            call.run();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private Trader trader(String role) throws RemoteException {
+        LocalTrader trader = new LocalTrader(role + "-" + runId);
+        UnicastRemoteObject.exportObject(trader, 0); // Called back by the shards through RMI
+        return trader;
+    }
+
+    private static List<String> sorted(Set<String> names) {
+        List<String> list = new ArrayList<>(names);
+        list.sort(null);
+        return list;
+    }
+
+    private void check(String description, boolean passed) {
+        if (!passed)
+            failures++;
+        System.out.println((passed ? "PASS " : "FAIL ") + description);
+    }
+}
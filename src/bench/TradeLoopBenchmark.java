@@ -0,0 +1,104 @@
+package bench;
+
+
+import bank.BankImpl;
+import market.Item;
+import market.AdmissionControl;
+import market.MarketImpl;
+import metrics.LatencyHistogram;
+import persistence.PersistenceConfig;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * Compares the trade loop (sell then buy of the same item) when the bank and the market
+ * reach Derby through the network server and when they run an embedded Derby engine.
+ * The bank and the market run in this JVM; the network mode needs a Derby network server
+ * listening on localhost:1527.
+ */
+public class TradeLoopBenchmark {
+    private static final String USAGE = "java bench.TradeLoopBenchmark [network|embedded|both] [iterations]";
+    private static final int DEFAULT_REGISTRY_PORT_NUMBER = 1099;
+    private static final int DEFAULT_ITERATIONS = 2000;
+    private static final String PASSWORD = "benchmark";
+    private static final float PRICE = 1f;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 2 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        String mode = args.length > 0 ? args[0] : "both";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        Registry registry;
+        try {
+            registry = LocateRegistry.getRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+            registry.list();
+        } catch (RemoteException e) {
+            registry = LocateRegistry.createRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+        }
+
+        if (mode.equals("both") || mode.equals(PersistenceConfig.EMBEDDED))
+            run(registry, PersistenceConfig.EMBEDDED, iterations);
+        if (mode.equals("both") || mode.equals(PersistenceConfig.NETWORK))
+            run(registry, PersistenceConfig.NETWORK, iterations);
+
+        System.exit(0);
+    }
+
+    private static void run(Registry registry, String mode, int iterations) throws Exception {
+        System.setProperty(PersistenceConfig.MODE_PROPERTY, mode);
+        // Measure the market, not its admission control
+        if (System.getProperty(AdmissionControl.ENABLED_PROPERTY) == null)
+            System.setProperty(AdmissionControl.ENABLED_PROPERTY, "false");
+
+        String bankName = "Bench-" + mode;
+        BankImpl bank = new BankImpl();
+        registry.rebind(bankName, bank);
+        MarketImpl market = new MarketImpl(bankName, DEFAULT_REGISTRY_PORT_NUMBER);
+
+        String runId = mode + "-" + System.currentTimeMillis();
+        LocalTrader seller = new LocalTrader("seller-" + runId);
+        LocalTrader buyer = new LocalTrader("buyer-" + runId);
+        bank.newAccount(seller.getClientName());
+        bank.newAccount(buyer.getClientName());
+        bank.deposit(buyer.getClientName(), PRICE * 2 * iterations);
+        market.register(seller, PASSWORD);
+        market.register(buyer, PASSWORD);
+
+        Item item = new Item("bench-item-" + runId, PRICE, 1);
+
+        // Warm up the JIT, the connection and the Derby page cache
+        tradeLoop(market, seller, buyer, item, iterations / 2, new LatencyHistogram());
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long start = System.nanoTime();
+        tradeLoop(market, seller, buyer, item, iterations, latencies);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-8s : %d trades in %.1f ms, %.0f trades/s, " +
+                        "p50=%.1fus p99=%.1fus max=%.1fus",
+                mode, iterations, elapsed / 1e6, iterations / (elapsed / 1e9),
+                latencies.getPercentile(50) / 1000.0, latencies.getPercentile(99) / 1000.0,
+                latencies.getMax() / 1000.0));
+
+        market.unregister(seller);
+        market.unregister(buyer);
+        bank.deleteAccount(seller.getClientName());
+        bank.deleteAccount(buyer.getClientName());
+    }
+
+    private static void tradeLoop(MarketImpl market, LocalTrader seller, LocalTrader buyer, Item item,
+                                  int iterations, LatencyHistogram latencies) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            market.sell(item, seller);
+            market.buy(item, buyer);
+            latencies.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package bench;
+
+
+import bank.Bank;
+import bank.BankImpl;
+import capture.WorkloadFile;
+import capture.WorkloadFile.Call;
+import market.AdmissionControl;
+import market.Market;
+import market.MarketDataListener;
+import market.MarketImpl;
+import metrics.LatencyHistogram;
+import persistence.PersistenceConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays workloads captured by capture.WorkloadRecorder against a fresh bank and market run
+ * in this JVM (new databases, embedded Derby by default), and reports per method the calls
+ * whose outcome (success, rejection reason, failure) diverged from the capture and the
+ * recorded and replayed latencies.
+ *
+ * The captures of the market and of the bank are merged by start time. Calls are replayed
+ * in that order, one after the other at max speed (deterministic), or at their original
+ * pacing, in lanes per trader so that the calls of a trader keep their order. Calls the
+ * market makes to the bank (holds, auction settlements) are not replayed : the replayed
+ * market makes them itself.
+ */
+public class WorkloadReplayer {
+    private static final String USAGE = "java bench.WorkloadReplayer [paced|max] <CAPTURE_FILE>...";
+    private static final int DEFAULT_REGISTRY_PORT_NUMBER = 1099;
+    private static final int NB_LANES = 64;
+    private static final int MAX_DIVERGENCES_SHOWN = 20;
+    private static final Set<String> MARKET_ISSUED = new HashSet<>(Arrays.asList(
+            "reserve(String,String,float,String)", "commitHold(long)", "releaseHold(long)"));
+
+    private final BankImpl bank;
+    private final MarketImpl market;
+    private final Map<String, Method> methods = new HashMap<>(); // By target and signature
+    private final List<Replay> calls = new ArrayList<>();
+    private final ConcurrentMap<String, LocalTrader> traders = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, MarketDataListener> listeners = new ConcurrentHashMap<>();
+    private final Map<String, Stats> stats = new TreeMap<>();
+    private final LongAdder divergencesShown = new LongAdder();
+    private int skipped = 0;
+
+    private static class Replay {
+        private final Method method;
+        private final Call call;
+        private final long startMicros; // Since the epoch
+
+        private Replay(Method method, Call call, long startMicros) {
+            this.method = method;
+            this.call = call;
+            this.startMicros = startMicros;
+        }
+    }
+
+    private static class Stats {
+        private final LatencyHistogram recorded = new LatencyHistogram();
+        private final LatencyHistogram replayed = new LatencyHistogram();
+        private final LongAdder diverged = new LongAdder();
+    }
+
+    public WorkloadReplayer(Registry registry) throws RemoteException {
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        String bankName = "Replay-" + runId;
+        bank = new BankImpl("replay_bank_" + runId);
+        registry.rebind(bankName, bank);
+        market = new MarketImpl(bankName, DEFAULT_REGISTRY_PORT_NUMBER, "replay_market_" + runId);
+
+        for (Method method : WorkloadFile.methods())
+            methods.put(WorkloadFile.target(method) + WorkloadFile.signature(method), method);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args[0].equalsIgnoreCase("-h")) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        boolean paced = args[0].equals("paced");
+        int firstFile = paced || args[0].equals("max") ? 1 : 0;
+
+        // Entirely local by default
+        if (System.getProperty(PersistenceConfig.MODE_PROPERTY) == null)
+            System.setProperty(PersistenceConfig.MODE_PROPERTY, PersistenceConfig.EMBEDDED);
+
+        // Replay the calls the admission control let through, not the limits
+        if (System.getProperty(AdmissionControl.ENABLED_PROPERTY) == null)
+            System.setProperty(AdmissionControl.ENABLED_PROPERTY, "false");
+
+        Registry registry;
+        try {
+            registry = LocateRegistry.getRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+            registry.list();
+        } catch (RemoteException e) {
+            registry = LocateRegistry.createRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+        }
+
+        WorkloadReplayer replayer = new WorkloadReplayer(registry);
+        for (int i = firstFile; i < args.length; i++)
+            replayer.load(new File(args[i]));
+
+        System.out.println("Replaying " + replayer.calls.size() + " calls " + (paced ? "at their pacing" :
+                "at max speed") + " (" + replayer.skipped + " skipped)...");
+        long start = System.nanoTime();
+        if (paced)
+            replayer.runPaced();
+        else
+            replayer.runMaxSpeed();
+        replayer.report(System.nanoTime() - start);
+        System.exit(0);
+    }
+
+    /**
+     * Add the calls of a capture file
+     */
+    public void load(File file) throws IOException {
+        try (WorkloadFile.Reader reader = new WorkloadFile.Reader(file)) {
+            long startMicros = reader.getStartMillis() * 1000;
+            Call call;
+            while ((call = reader.next()) != null) {
+                String signature = reader.getSignature(call.getMethodId());
+                Method method = methods.get(reader.getTarget(call.getMethodId()) + signature);
+                if (method == null || isMarketIssued(method, signature, call)) {
+                    skipped++;
+                    continue;
+                }
+                calls.add(new Replay(method, call, startMicros + call.getStartMicros()));
+                stats.computeIfAbsent(signature, s -> new Stats());
+            }
+        }
+        calls.sort(Comparator.comparingLong(r -> r.startMicros));
+    }
+
+    private static boolean isMarketIssued(Method method, String signature, Call call) {
+        if (method.getDeclaringClass() != Bank.class)
+            return false;
+        // Transfers of the auction settlements carry no request id
+        return MARKET_ISSUED.contains(signature) ||
+                (method.getName().equals("transfer") && call.getArgs()[3] == null);
+    }
+
+    public void runMaxSpeed() {
+        for (Replay replay : calls)
+            replay(replay);
+    }
+
+    /**
+     * Issue each call at its original offset from the first one
+     */
+    public void runPaced() throws InterruptedException {
+        ExecutorService[] lanes = new ExecutorService[NB_LANES];
+        for (int i = 0; i < NB_LANES; i++)
+            lanes[i] = Executors.newSingleThreadExecutor();
+
+        long start = System.nanoTime();
+        long firstMicros = calls.isEmpty() ? 0 : calls.get(0).startMicros;
+        for (Replay replay : calls) {
+            long wait = TimeUnit.MICROSECONDS.toNanos(replay.startMicros - firstMicros) - (System.nanoTime() - start);
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            lanes[Math.floorMod(lane(replay.call).hashCode(), NB_LANES)].execute(() -> replay(replay));
+        }
+
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+            lane.awaitTermination(1, TimeUnit.HOURS);
+        }
+    }
+
+    /**
+     * @return the trader of a call (trader, or name of the trader / owner), "" if none
+     */
+    private static Object lane(Call call) {
+        for (Object arg : call.getArgs()) {
+            if (arg instanceof WorkloadFile.TraderRef)
+                return ((WorkloadFile.TraderRef) arg).getName();
+        }
+        Object[] args = call.getArgs();
+        return args.length > 0 && args[0] instanceof String ? args[0] : "";
+    }
+
+    private void replay(Replay replay) {
+        Object[] args = replay.call.getArgs();
+        Object[] actualArgs = new Object[args.length];
+        for (int i = 0; i < args.length; i++)
+            actualArgs[i] = resolve(args[i]);
+        Object target = replay.method.getDeclaringClass() == Bank.class ? bank : market;
+
+        Throwable failure = null;
+        long start = System.nanoTime();
+        try {
+            replay.method.invoke(target, actualArgs);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        } catch (IllegalAccessException e) {
+            failure = e;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Stats methodStats = stats.get(WorkloadFile.signature(replay.method));
+        methodStats.recorded.record(TimeUnit.MICROSECONDS.toNanos(replay.call.getDurationMicros()));
+        methodStats.replayed.record(elapsed);
+        if (WorkloadFile.outcomeOf(failure) != replay.call.getOutcome() ||
+                !WorkloadFile.detailOf(failure).equals(replay.call.getDetail())) {
+            methodStats.diverged.increment();
+            if (divergencesShown.sum() < MAX_DIVERGENCES_SHOWN) {
+                divergencesShown.increment();
+                System.out.println("Diverged: " + replay.method.getName() + Arrays.toString(actualArgs) +
+                        " recorded " + describe(replay.call.getOutcome(), replay.call.getDetail()) +
+                        ", replayed " + describe(WorkloadFile.outcomeOf(failure), WorkloadFile.detailOf(failure)));
+            }
+        }
+    }
+
+    private Object resolve(Object arg) {
+        if (arg instanceof WorkloadFile.TraderRef)
+            return traders.computeIfAbsent(((WorkloadFile.TraderRef) arg).getName(), LocalTrader::new);
+        if (arg instanceof WorkloadFile.ListenerRef)
+            return listeners.computeIfAbsent(((WorkloadFile.ListenerRef) arg).getId(), id -> frame -> {});
+        return arg;
+    }
+
+    private static String describe(byte outcome, String detail) {
+        String[] outcomes = {"ok", "rejected", "overloaded", "failed"};
+        return outcomes[outcome] + (detail.isEmpty() ? "" : " " + detail);
+    }
+
+    private void report(long elapsedNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-45s %8s %8s %12s %12s %12s %12s%n", "method", "calls", "diverged",
+                "rec p50(ms)", "rec p99(ms)", "rep p50(ms)", "rep p99(ms)"));
+        long total = 0;
+        long diverged = 0;
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            if (s.replayed.getCount() == 0)
+                continue;
+            total += s.replayed.getCount();
+            diverged += s.diverged.sum();
+            sb.append(String.format("%-45s %8d %8d %12.2f %12.2f %12.2f %12.2f%n", entry.getKey(),
+                    s.replayed.getCount(), s.diverged.sum(), s.recorded.getPercentile(50) / 1e6,
+                    s.recorded.getPercentile(99) / 1e6, s.replayed.getPercentile(50) / 1e6,
+                    s.replayed.getPercentile(99) / 1e6));
+        }
+        sb.append(String.format("%d calls replayed in %.1f s, %d diverged%n", total, elapsedNanos / 1e9, diverged));
+        System.out.print(sb);
+    }
+}
@@ -0,0 +1,406 @@
+package capture;
+
+
+import bank.Bank;
+import client.Trader;
+import market.Item;
+import market.Market;
+import market.MarketDataListener;
+import market.OverloadedException;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.*;
+
+/**
+ * Binary format of a captured workload : a header listing the captured methods, then one
+ * frame per call, in the order the calls ended.
+ *
+ * Header : magic, version, capture start (epoch millis), number of methods, then for each
+ * method its target (market or bank) and signature. Frame : varint length, then varint
+ * method id, varlong start (microseconds since the capture start), varlong duration
+ * (microseconds), outcome, outcome detail, varint number of arguments and the arguments.
+ *
+ * Arguments are written by type : strings, numbers, items (name, price, amount, time to live),
+ * traders (by name), market data listeners (by capture-wide id) and string lists; any other
+ * value is serialized.
+ */
+public final class WorkloadFile {
+    private static final int MAGIC = 0x4D4B5457;
+    private static final int VERSION = 1;
+
+    public static final byte MARKET = 0;
+    public static final byte BANK = 1;
+
+    // Outcomes
+    public static final byte OK = 0;
+    public static final byte REJECTED = 1;   // Detail : market.<reason> or bank.<reason>
+    public static final byte OVERLOADED = 2;
+    public static final byte FAILED = 3;     // Detail : exception class
+
+    // Argument tags
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte ITEM = 6;
+    private static final byte TRADER = 7;
+    private static final byte LISTENER = 8;
+    private static final byte STRING_LIST = 9;
+    private static final byte SERIALIZED = 10;
+
+    /**
+     * Argument standing for a trader during the replay
+     */
+    public static class TraderRef {
+        private final String name;
+
+        public TraderRef(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Argument standing for a market data listener during the replay
+     */
+    public static class ListenerRef {
+        private final int id;
+
+        public ListenerRef(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+    }
+
+    /**
+     * One captured call
+     */
+    public static class Call {
+        private final int methodId;
+        private final long startMicros;
+        private final long durationMicros;
+        private final byte outcome;
+        private final String detail;
+        private final Object[] args;
+
+        public Call(int methodId, long startMicros, long durationMicros, byte outcome, String detail,
+                    Object[] args) {
+            this.methodId = methodId;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.outcome = outcome;
+            this.detail = detail;
+            this.args = args;
+        }
+
+        public int getMethodId() {
+            return methodId;
+        }
+
+        public long getStartMicros() {
+            return startMicros;
+        }
+
+        public long getDurationMicros() {
+            return durationMicros;
+        }
+
+        public byte getOutcome() {
+            return outcome;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * @return arguments, traders and listeners replaced by a TraderRef / ListenerRef
+         */
+        public Object[] getArgs() {
+            return args;
+        }
+    }
+
+    private WorkloadFile() { }
+
+    /**
+     * @return the methods which may be captured, in a stable order : their index is their id
+     */
+    public static List<Method> methods() {
+        List<Method> methods = new ArrayList<>();
+        for (Class<?> target : Arrays.asList(Market.class, Bank.class)) {
+            List<Method> targetMethods = new ArrayList<>(Arrays.asList(target.getMethods()));
+            targetMethods.sort(Comparator.comparing(WorkloadFile::signature));
+            methods.addAll(targetMethods);
+        }
+        return methods;
+    }
+
+    public static String signature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+        Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++)
+            signature.append(i > 0 ? "," : "").append(types[i].getSimpleName());
+        return signature.append(')').toString();
+    }
+
+    public static byte target(Method method) {
+        return method.getDeclaringClass() == Bank.class ? BANK : MARKET;
+    }
+
+    /**
+     * @param failure exception thrown by the call, null if it returned
+     */
+    public static byte outcomeOf(Throwable failure) {
+        if (failure == null)
+            return OK;
+        if (failure instanceof market.RejectedException || failure instanceof bank.RejectedException)
+            return REJECTED;
+        return failure instanceof OverloadedException ? OVERLOADED : FAILED;
+    }
+
+    /**
+     * @param failure exception thrown by the call, null if it returned
+     */
+    public static String detailOf(Throwable failure) {
+        if (failure instanceof market.RejectedException)
+            return "market." + ((market.RejectedException) failure).getReason();
+        if (failure instanceof bank.RejectedException)
+            return "bank." + ((bank.RejectedException) failure).getReason();
+        if (failure == null || failure instanceof OverloadedException)
+            return "";
+        return failure instanceof RemoteException ? "RemoteException" : failure.getClass().getSimpleName();
+    }
+
+    // Header
+    static void writeHeader(DataOutputStream out, long startMillis, List<Method> methods) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(startMillis);
+        writeVarLong(out, methods.size());
+        for (Method method : methods) {
+            out.writeByte(target(method));
+            out.writeUTF(signature(method));
+        }
+    }
+
+    /**
+     * Reader of a capture file
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private final List<Byte> targets = new ArrayList<>();
+        private final List<String> signatures = new ArrayList<>();
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a workload capture");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported capture version " + version);
+            startMillis = in.readLong();
+            int nbMethods = (int) readVarLong(in);
+            for (int i = 0; i < nbMethods; i++) {
+                targets.add(in.readByte());
+                signatures.add(in.readUTF());
+            }
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public byte getTarget(int methodId) {
+            return targets.get(methodId);
+        }
+
+        public String getSignature(int methodId) {
+            return signatures.get(methodId);
+        }
+
+        /**
+         * @return the next call, null at the end of the file (a frame cut by a crash ends it)
+         */
+        public Call next() throws IOException {
+            byte[] frame;
+            try {
+                frame = new byte[(int) readVarLong(in)];
+                in.readFully(frame);
+            } catch (EOFException e) {
+                return null;
+            }
+
+            DataInputStream call = new DataInputStream(new ByteArrayInputStream(frame));
+            int methodId = (int) readVarLong(call);
+            long start = readVarLong(call);
+            long duration = readVarLong(call);
+            byte outcome = call.readByte();
+            String detail = call.readUTF();
+            Object[] args = new Object[(int) readVarLong(call)];
+            for (int i = 0; i < args.length; i++)
+                args[i] = readValue(call);
+            return new Call(methodId, start, duration, outcome, detail, args);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Frames
+    static byte[] encodeCall(int methodId, long startMicros, long durationMicros, Throwable failure, Object[] args,
+                             ValueNames names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVarLong(out, methodId);
+        writeVarLong(out, startMicros);
+        writeVarLong(out, durationMicros);
+        out.writeByte(outcomeOf(failure));
+        out.writeUTF(detailOf(failure));
+        writeVarLong(out, args == null ? 0 : args.length);
+        if (args != null) {
+            for (Object arg : args)
+                writeValue(out, arg, names);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Identity of the remote references passed as arguments
+     */
+    interface ValueNames {
+        String traderName(Trader trader);
+
+        int listenerId(MarketDataListener listener);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, ValueNames names) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, (Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Item) {
+            Item item = (Item) value;
+            out.writeByte(ITEM);
+            out.writeUTF(item.getName());
+            out.writeFloat(item.getPrice());
+            writeVarLong(out, item.getAmount());
+            writeVarLong(out, item.getTtlMillis());
+        } else if (value instanceof Trader) {
+            out.writeByte(TRADER);
+            out.writeUTF(names.traderName((Trader) value));
+        } else if (value instanceof MarketDataListener) {
+            out.writeByte(LISTENER);
+            writeVarLong(out, names.listenerId((MarketDataListener) value));
+        } else if (value instanceof List && isStringList((List<?>) value)) {
+            List<?> list = (List<?>) value;
+            out.writeByte(STRING_LIST);
+            writeVarLong(out, list.size());
+            for (Object s : list)
+                out.writeUTF((String) s);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream serialized = new ObjectOutputStream(bytes)) {
+                serialized.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            writeVarLong(out, bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private static boolean isStringList(List<?> list) {
+        for (Object o : list) {
+            if (!(o instanceof String))
+                return false;
+        }
+        return true;
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readUTF();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return readVarLong(in);
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case ITEM:
+                Item item = new Item(in.readUTF(), in.readFloat(), (int) readVarLong(in));
+                item.setTtlMillis(readVarLong(in));
+                return item;
+            case TRADER:
+                return new TraderRef(in.readUTF());
+            case LISTENER:
+                return new ListenerRef((int) readVarLong(in));
+            case STRING_LIST:
+                int size = (int) readVarLong(in);
+                ArrayList<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(in.readUTF());
+                return list;
+            case SERIALIZED:
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                try (ObjectInputStream serialized = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return serialized.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown argument class", e);
+                }
+            default:
+                throw new IOException("Unknown argument tag " + tag);
+        }
+    }
+
+    // Unsigned LEB128 : 7 bits per byte, small values in a single byte
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package capture;
+
+
+import client.Trader;
+import logging.AsyncLogger;
+import market.Item;
+import market.MarketDataListener;
+import metrics.MetricsRegistry;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional recorder of the calls to a market and a bank, for a later replay (see
+ * bench.WorkloadReplayer). Enabled with -Dmarketplace.capture.file=<file>.
+ *
+ * The servers export, instead of their implementation, a proxy which times each call and
+ * queues it, with a copy of its arguments, for a writer thread encoding and appending it to the
+ * capture file (WorkloadFile). The calls never wait for the disk nor for the traders : when the
+ * queue is full the call is dropped from the capture and counted in capture.dropped. Traders are
+ * recorded by name, asked once per trader by the writer thread.
+ *
+ * The proxy implements every remote interface of the target, so that it can be bound instead
+ * of it, but only the calls of the Market and Bank interfaces are recorded.
+ */
+public class WorkloadRecorder implements Closeable {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(WorkloadRecorder.class);
+    public static final String FILE_PROPERTY = "marketplace.capture.file";
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int MAX_TRADERS = 100000;
+
+    private final Map<Method, Integer> methodIds = new HashMap<>();
+    private final long startNanos = System.nanoTime();
+    private final BlockingQueue<Call> queue;
+    private final DataOutputStream out;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final ConcurrentMap<Trader, String> traderNames = new ConcurrentHashMap<>();
+    private final ConcurrentMap<MarketDataListener, Integer> listenerIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextListenerId = new AtomicInteger();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Writer thread only
+    private final WorkloadFile.ValueNames names = new WorkloadFile.ValueNames() {
+        @Override
+        public String traderName(Trader trader) {
+            String name = traderNames.get(trader);
+            if (name == null) {
+                try {
+                    name = trader.getClientName();
+                } catch (RemoteException e) {
+                    return "?";
+                }
+                if (traderNames.size() >= MAX_TRADERS)
+                    traderNames.clear();
+                traderNames.put(trader, name);
+            }
+            return name;
+        }
+
+        @Override
+        public int listenerId(MarketDataListener listener) {
+            return listenerIds.computeIfAbsent(listener, l -> nextListenerId.getAndIncrement());
+        }
+    };
+
+    /**
+     * @return the recorder of -Dmarketplace.capture.file, null if none
+     */
+    public static WorkloadRecorder fromProperty() throws IOException {
+        String file = System.getProperty(FILE_PROPERTY);
+        return file == null ? null : new WorkloadRecorder(new File(file),
+                Integer.getInteger("marketplace.capture.queue", 65536));
+    }
+
+    /**
+     * Constructor : truncates the file
+     * @param file
+     * @param queueCapacity calls waiting for the writer thread
+     * @throws IOException
+     */
+    public WorkloadRecorder(File file, int queueCapacity) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        List<Method> methods = WorkloadFile.methods();
+        for (int i = 0; i < methods.size(); i++)
+            methodIds.put(methods.get(i), i);
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        WorkloadFile.writeHeader(out, System.currentTimeMillis(), methods);
+        out.flush();
+
+        writer = new Thread(this::write, "workload-capture");
+        writer.setDaemon(true);
+        writer.start();
+        LOG.info("Capturing the workload to {}", file);
+    }
+
+    /**
+     * Export a recording proxy of a remote object, to be bound instead of it
+     * @param target exported remote object (market or bank)
+     * @param type its recorded remote interface
+     * @return the exported proxy, which also implements the other remote interfaces of the target
+     */
+    public <T extends Remote> T export(T target, Class<T> type) throws RemoteException {
+        // The recorded interface first : a method it shares with another one is dispatched as its own
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        interfaces.add(type);
+        for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass())
+            addRemoteInterfaces(c, interfaces);
+
+        T proxy = type.cast(Proxy.newProxyInstance(type.getClassLoader(), interfaces.toArray(new Class<?>[0]),
+                new Recording(target)));
+        UnicastRemoteObject.exportObject(proxy, 0);
+        return proxy;
+    }
+
+    private static void addRemoteInterfaces(Class<?> c, Set<Class<?>> interfaces) {
+        for (Class<?> i : c.getInterfaces()) {
+            if (Remote.class.isAssignableFrom(i))
+                interfaces.add(i);
+        }
+    }
+
+    /**
+     * Write the calls queued so far and close the file
+     */
+    @Override
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void record(Method method, long start, long end, Throwable failure, Object[] args) {
+        Integer methodId = methodIds.get(method);
+        if (methodId == null)
+            return; // Not a method of Market or Bank, e.g. toString() or a replication call
+        Call call = new Call(method, methodId, TimeUnit.NANOSECONDS.toMicros(start - startNanos),
+                TimeUnit.NANOSECONDS.toMicros(end - start), failure, copy(args));
+        if (!queue.offer(call))
+            metrics.increment("capture.dropped");
+    }
+
+    /**
+     * Arguments as they were at the call : the target may keep and change the items and lists
+     */
+    private static Object[] copy(Object[] args) {
+        if (args == null)
+            return null;
+        Object[] copy = args.clone();
+        for (int i = 0; i < copy.length; i++) {
+            if (copy[i] instanceof Item) {
+                Item item = (Item) copy[i];
+                Item value = new Item(item.getName(), item.getPrice(), item.getAmount());
+                value.setTtlMillis(item.getTtlMillis());
+                copy[i] = value;
+            } else if (copy[i] instanceof List) {
+                copy[i] = new ArrayList<>((List<?>) copy[i]);
+            }
+        }
+        return copy;
+    }
+
+    // Writer thread
+    private void write() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Call call;
+                try {
+                    call = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    call = queue.poll(); // Stopping : drain what is left
+                    if (call == null)
+                        break;
+                }
+                if (call == null) {
+                    out.flush();
+                    continue;
+                }
+                byte[] frame;
+                try {
+                    frame = WorkloadFile.encodeCall(call.methodId, call.startMicros, call.durationMicros,
+                            call.failure, call.args, names);
+                } catch (IOException | RuntimeException e) {
+                    metrics.increment("capture.dropped");
+                    LOG.debug("Call to {} not captured: {}", call.method.getName(), e);
+                    continue;
+                }
+                WorkloadFile.writeVarLong(out, frame.length);
+                out.write(frame);
+                metrics.increment("capture.calls");
+            }
+        } catch (IOException e) {
+            LOG.error("Workload capture stopped: {}", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Call waiting for the writer thread
+     */
+    private static class Call {
+        private final Method method;
+        private final int methodId;
+        private final long startMicros;
+        private final long durationMicros;
+        private final Throwable failure;
+        private final Object[] args;
+
+        private Call(Method method, int methodId, long startMicros, long durationMicros, Throwable failure,
+                     Object[] args) {
+            this.method = method;
+            this.methodId = methodId;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.failure = failure;
+            this.args = args;
+        }
+    }
+
+    private class Recording implements InvocationHandler {
+        private final Object target;
+
+        private Recording(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            long start = System.nanoTime();
+            Throwable failure = null;
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                failure = e.getCause();
+                throw failure;
+            } finally {
+                record(method, start, System.nanoTime(), failure, args);
+            }
+        }
+    }
+}
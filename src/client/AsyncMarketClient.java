@@ -0,0 +1,305 @@
+package client;
+
+
+import bank.Account;
+import bank.Bank;
+import market.*;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous client of a market and its bank, for programs (e.g. trading bots) rather than
+ * the console : every operation returns at once a CompletableFuture, completed with the result
+ * of the remote call or exceptionally with its RemoteException / RejectedException.
+ *
+ * Calls run on a pool of at most maxInFlight threads, each one waiting for one remote call :
+ * independent calls are pipelined up to that bound, the next ones wait in a bounded queue and
+ * the calls beyond fail at once with a RejectedExecutionException. Callbacks of the market are
+ * handed to a single background thread, so that slow handlers neither hold the market nor
+ * delay the calls. Handlers must not wait for a future of this client.
+ */
+public class AsyncMarketClient extends UnicastRemoteObject implements Trader, MarketDataListener {
+    private static final long serialVersionUID = -2290941532093541307L;
+    private static final int DEFAULT_REGISTRY_PORT_NUMBER = 1099;
+
+    private interface RemoteCall<T> {
+        T call() throws Exception;
+    }
+
+    private interface RemoteAction {
+        void run() throws Exception;
+    }
+
+    private final String clientName;
+    private final Market market;
+    private final Bank bank;
+    private final ThreadPoolExecutor calls;
+    private final ExecutorService callbacks;
+    private volatile Consumer<String> callbackHandler = message -> {};
+    private volatile Consumer<MarketDataEvent> marketDataHandler = event -> {};
+
+    /**
+     * Constructor
+     * @param clientName name of the trader
+     * @param market
+     * @param bank
+     * @param maxInFlight calls in progress at once
+     * @param maxQueued calls waiting for one of the calls in progress
+     * @throws RemoteException
+     */
+    public AsyncMarketClient(String clientName, Market market, Bank bank, int maxInFlight, int maxQueued)
+            throws RemoteException {
+        super(); // Exportation in RMI Runtime
+        this.clientName = clientName;
+        this.market = market;
+        this.bank = bank;
+        this.calls = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueued), daemon(clientName + "-call"));
+        this.calls.allowCoreThreadTimeOut(true);
+        this.callbacks = Executors.newSingleThreadExecutor(daemon(clientName + "-callbacks"));
+    }
+
+    /**
+     * Client of the market and the bank bound in a registry
+     * @param clientName
+     * @param marketName
+     * @param bankName
+     * @param maxInFlight
+     * @throws Exception if the registry, the market or the bank cannot be reached
+     */
+    public static AsyncMarketClient connect(String clientName, String marketName, String bankName, int maxInFlight)
+            throws Exception {
+        Registry registry = LocateRegistry.getRegistry(DEFAULT_REGISTRY_PORT_NUMBER);
+        int nbShards = Integer.getInteger("marketplace.market.shards", 0);
+        Market market = nbShards > 0 ? ShardedMarket.lookup(registry, marketName, nbShards)
+                : (Market) registry.lookup(marketName);
+        return new AsyncMarketClient(clientName, market, (Bank) registry.lookup(bankName), maxInFlight,
+                maxInFlight * 16);
+    }
+
+    public void setCallbackHandler(Consumer<String> handler) {
+        this.callbackHandler = handler;
+    }
+
+    public void setMarketDataHandler(Consumer<MarketDataEvent> handler) {
+        this.marketDataHandler = handler;
+    }
+
+    /**
+     * @return number of calls in progress or waiting
+     */
+    public int getPending() {
+        return calls.getActiveCount() + calls.getQueue().size();
+    }
+
+    /**
+     * Stop accepting calls, let the pending ones finish and leave the RMI runtime
+     */
+    public void close() {
+        calls.shutdown();
+        callbacks.shutdown();
+        try {
+            UnicastRemoteObject.unexportObject(this, false);
+        } catch (NoSuchObjectException e) {}
+    }
+
+    // Trader and MarketDataListener : called by the market on RMI threads
+    @Override
+    public void callback(String message) {
+        Consumer<String> handler = callbackHandler;
+        callbacks.execute(() -> handler.accept(message));
+    }
+
+    @Override
+    public void onMarketData(byte[] frame) {
+        Consumer<MarketDataEvent> handler = marketDataHandler;
+        callbacks.execute(() -> {
+            for (MarketDataEvent event : MarketDataEvent.decode(frame))
+                handler.accept(event);
+        });
+    }
+
+    @Override
+    public String getClientName() {
+        return clientName;
+    }
+
+    // Market
+    public CompletableFuture<Void> register(String password) {
+        return run(() -> market.register(this, password));
+    }
+
+    public CompletableFuture<Void> unregister() {
+        return run(() -> market.unregister(this));
+    }
+
+    public CompletableFuture<Void> login(String password) {
+        return run(() -> market.login(this, password));
+    }
+
+    public CompletableFuture<Void> logout() {
+        return run(() -> market.logout(clientName));
+    }
+
+    /**
+     * Sell, with a new request id : the future of a retried sell must be built with the same id
+     */
+    public CompletableFuture<Void> sell(Item item) {
+        return sell(item, UUID.randomUUID().toString());
+    }
+
+    public CompletableFuture<Void> sell(Item item, String requestId) {
+        return run(() -> market.sell(item, this, requestId));
+    }
+
+    /**
+     * Buy, with a new request id : the future of a retried buy must be built with the same id
+     */
+    public CompletableFuture<Void> buy(Item item) {
+        return buy(item, UUID.randomUUID().toString());
+    }
+
+    public CompletableFuture<Void> buy(Item item, String requestId) {
+        return run(() -> market.buy(item, this, requestId));
+    }
+
+    public CompletableFuture<Void> wish(Item item) {
+        return run(() -> market.wish(item, this));
+    }
+
+    public CompletableFuture<ArrayList<Item>> getAllItems() {
+        return submit(market::getAllItems);
+    }
+
+    public CompletableFuture<ArrayList<String>> getStats() {
+        return submit(() -> market.getStats(clientName));
+    }
+
+    public CompletableFuture<Inventory> getMyItems(int offset, int limit) {
+        return submit(() -> market.getMyItems(this, offset, limit));
+    }
+
+    public CompletableFuture<CatalogImport> openImport() {
+        return submit(() -> market.openImport(this));
+    }
+
+    /**
+     * @param mine export the listings of this trader only, else the whole catalog
+     */
+    public CompletableFuture<CatalogExport> openExport(boolean mine) {
+        return submit(() -> market.openExport(mine ? this : null));
+    }
+
+    public CompletableFuture<ArrayList<TradeRecord>> getTradeHistory(long beforeTime, long beforeId, int limit) {
+        return submit(() -> market.getTradeHistory(this, beforeTime, beforeId, limit));
+    }
+
+    public CompletableFuture<ArrayList<Item>> searchItems(String query, int limit) {
+        return submit(() -> market.searchItems(query, limit));
+    }
+
+    public CompletableFuture<ArrayList<PriceBar>> getPriceHistory(String itemName, long from, long to,
+                                                                 PriceBar.Resolution resolution) {
+        return submit(() -> market.getPriceHistory(itemName, from, to, resolution));
+    }
+
+    public CompletableFuture<Void> subscribe(ArrayList<String> itemNames) {
+        return run(() -> market.subscribe(this, itemNames));
+    }
+
+    public CompletableFuture<Void> unsubscribe() {
+        return run(() -> market.unsubscribe(this));
+    }
+
+    public CompletableFuture<Void> startAuction(Item item, long durationMillis) {
+        return run(() -> market.startAuction(item, durationMillis, this));
+    }
+
+    public CompletableFuture<Void> bid(Item item) {
+        return run(() -> market.bid(item, this));
+    }
+
+    public CompletableFuture<ArrayList<AuctionInfo>> getAuctions() {
+        return submit(market::getAuctions);
+    }
+
+    // Bank
+    public CompletableFuture<Account> newAccount() {
+        return submit(() -> bank.newAccount(clientName));
+    }
+
+    public CompletableFuture<Account> findAccount() {
+        return submit(() -> bank.findAccount(clientName));
+    }
+
+    public CompletableFuture<Void> deleteAccount() {
+        return run(() -> bank.deleteAccount(clientName));
+    }
+
+    public CompletableFuture<Void> deposit(float value) {
+        String requestId = UUID.randomUUID().toString();
+        return run(() -> bank.deposit(clientName, value, requestId));
+    }
+
+    public CompletableFuture<Void> withdraw(float value) {
+        String requestId = UUID.randomUUID().toString();
+        return run(() -> bank.withdraw(clientName, value, requestId));
+    }
+
+    public CompletableFuture<Void> transfer(String toOwnerName, float value) {
+        String requestId = UUID.randomUUID().toString();
+        return run(() -> bank.transfer(clientName, toOwnerName, value, requestId));
+    }
+
+    public CompletableFuture<Long> reserve(String payeeName, float value) {
+        String requestId = UUID.randomUUID().toString();
+        return submit(() -> bank.reserve(clientName, payeeName, value, requestId));
+    }
+
+    public CompletableFuture<Void> commitHold(long holdId) {
+        return run(() -> bank.commitHold(holdId));
+    }
+
+    public CompletableFuture<Void> releaseHold(long holdId) {
+        return run(() -> bank.releaseHold(holdId));
+    }
+
+    private CompletableFuture<Void> run(RemoteAction action) {
+        return submit(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(RemoteCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            calls.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e); // Too many calls pending, or closed
+        }
+        return future;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
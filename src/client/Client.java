@@ -4,22 +4,41 @@ package client;
 import bank.Account;
 import bank.Bank;
 import bank.RejectedException;
+import market.AuctionInfo;
+import market.CatalogExport;
+import market.CatalogImport;
+import market.ImportError;
+import market.Inventory;
 import market.Item;
 import market.Market;
+import market.MarketDataEvent;
+import market.MarketCatalog;
+import market.MarketDataListener;
+import market.OverloadedException;
+import market.PriceBar;
+import market.ShardedMarket;
+import market.TradeRecord;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.Vector;
 
-public class Client extends UnicastRemoteObject implements Trader {
+public class Client extends UnicastRemoteObject implements Trader, MarketDataListener {
     private static final String USAGE = "java market.Client <CLIENT_NAME> <REGISTRY_PORT_NUMBER>";
     private static final String DEFAULT_BANK = "Nordea";
     private static final String DEFAULT_MARKET = "Market";
@@ -28,11 +47,20 @@ public class Client extends UnicastRemoteObject implements Trader {
     private static final int APP_COMMAND = 1;
     private static final int BANK_COMMAND = 2;
     private static final int MARKET_COMMAND = 3;
+    private static final long DEFAULT_AUCTION_DURATION_SECONDS = 60;
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    private static final int INVENTORY_PAGE = 100;
+    private static final int TRADES_SHOWN = 50;
+    private static final int TRANSFER_CHUNK = 1000; // Rows per call of upload / download
+    private static final long HISTORY_DAYS = 365;
+    private static final int MAX_ATTEMPTS = Integer.getInteger("marketplace.client.attempts", 3);
+    private static final long RETRY_DELAY_MILLIS = 500;
 
 
     private String clientName;
     private String marketName;
     Market market;
+    private ArrayList<MarketCatalog> replicas = new ArrayList<>();
     private String bankName;
     Bank bankobj;
     Account account;
@@ -40,8 +68,12 @@ public class Client extends UnicastRemoteObject implements Trader {
     // Enumeration of possible commands
     enum CommandName {
         register(MARKET_COMMAND), unregister(MARKET_COMMAND), login(MARKET_COMMAND),
-        logout(MARKET_COMMAND), stats(MARKET_COMMAND), sell(MARKET_COMMAND), buy(MARKET_COMMAND), wish(MARKET_COMMAND),
-        list(MARKET_COMMAND), newAccount(BANK_COMMAND), deleteAccount(BANK_COMMAND),
+        logout(MARKET_COMMAND), stats(MARKET_COMMAND), myitems(MARKET_COMMAND), trades(MARKET_COMMAND),
+        upload(MARKET_COMMAND), download(MARKET_COMMAND),
+        sell(MARKET_COMMAND), buy(MARKET_COMMAND), wish(MARKET_COMMAND),
+        list(MARKET_COMMAND), watch(MARKET_COMMAND), unwatch(MARKET_COMMAND), auction(MARKET_COMMAND),
+        bid(MARKET_COMMAND), auctions(MARKET_COMMAND), search(MARKET_COMMAND),
+        history(MARKET_COMMAND), newAccount(BANK_COMMAND), deleteAccount(BANK_COMMAND),
         deposit(BANK_COMMAND), withdraw(BANK_COMMAND), balance(BANK_COMMAND),
         quit(APP_COMMAND), help(APP_COMMAND);
 
@@ -85,7 +117,20 @@ public class Client extends UnicastRemoteObject implements Trader {
                 remoteRegistry = LocateRegistry.createRegistry(DEFAULT_REMOTE_REGISTRY_PORT_NUMBER);
             }
             bankobj = (Bank) remoteRegistry.lookup(bankName);
-            market = (Market) remoteRegistry.lookup(marketName);
+
+            // Sharded market : route to the shards bound as <marketName>-<i>
+            int nbShards = Integer.getInteger("marketplace.market.shards", 0);
+            if (nbShards > 0)
+                market = ShardedMarket.lookup(remoteRegistry, marketName, nbShards);
+            else
+                market = (Market) remoteRegistry.lookup(marketName);
+
+            // Read replicas serving the listing and the statistics
+            String replicaNames = System.getProperty("marketplace.market.replicas");
+            if (replicaNames != null) {
+                for (String replicaName : replicaNames.split(","))
+                    replicas.add((MarketCatalog) remoteRegistry.lookup(replicaName.trim()));
+            }
 
         } catch (Exception e) {
             System.err.println("The runtime failed: " + e.getMessage());
@@ -109,6 +154,13 @@ public class Client extends UnicastRemoteObject implements Trader {
         System.out.println("[CALLBACK] " + message);
     }
 
+    @Override
+    public void onMarketData(byte[] frame) throws RemoteException {
+        // Just display the market data events
+        for (MarketDataEvent event : MarketDataEvent.decode(frame))
+            System.out.println("[FEED] " + event);
+    }
+
 
     // Getters and setters
     public String getClientName() {
@@ -127,6 +179,12 @@ public class Client extends UnicastRemoteObject implements Trader {
         return account;
     }
 
+    private MarketCatalog pickReplica() {
+        if (replicas.isEmpty())
+            return null;
+        return replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -145,6 +203,35 @@ public class Client extends UnicastRemoteObject implements Trader {
         return result;
     }
 
+    private interface IdempotentCall {
+        void run(String requestId) throws RemoteException, bank.RejectedException, market.RejectedException;
+    }
+
+    /**
+     * Execute a call with a new request id, and again with the same id while the server does not
+     * answer : the server executes it at most once
+     */
+    private static void withRetries(IdempotentCall call)
+            throws RemoteException, bank.RejectedException, market.RejectedException {
+        String requestId = UUID.randomUUID().toString();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                call.run(requestId);
+                return;
+            } catch (RemoteException e) {
+                if (attempt >= MAX_ATTEMPTS)
+                    throw e;
+                System.err.println("No answer from the server (" + e.getMessage() + "), retrying");
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
     // Console application
     public void run() {
 
@@ -160,7 +247,11 @@ public class Client extends UnicastRemoteObject implements Trader {
             } catch (market.RejectedException | bank.RejectedException re) {
                 System.err.println(re);
             } catch (IOException e) {
-                e.printStackTrace();
+                // Refused by the admission control of the market, wrapped by RMI
+                if (e instanceof OverloadedException || e.getCause() instanceof OverloadedException)
+                    System.err.println((e instanceof OverloadedException ? e : e.getCause()).getMessage());
+                else
+                    e.printStackTrace();
             }
         }
     }
@@ -181,6 +272,8 @@ public class Client extends UnicastRemoteObject implements Trader {
         String itemName = null;
         float itemPrice = 0f;
         int itemAmount = 1;
+        long itemTtlSeconds = 0;
+        int searchLimit = DEFAULT_SEARCH_LIMIT;
 
         float amount = 0; // Bank amout
         int userInputTokenNo = 1;
@@ -218,7 +311,9 @@ public class Client extends UnicastRemoteObject implements Trader {
                     switch (userInputTokenNo) {
                         case 2:
                             if (commandName.equals(CommandName.logout) || commandName.equals(CommandName.list) ||
-                             commandName.equals(CommandName.stats)) {
+                             commandName.equals(CommandName.stats) || commandName.equals(CommandName.unwatch) ||
+                             commandName.equals(CommandName.auctions) || commandName.equals(CommandName.myitems) ||
+                             commandName.equals(CommandName.trades)) {
                                 System.err.println("Illegal number of arguments");
                                 return null;
                             }
@@ -230,8 +325,19 @@ public class Client extends UnicastRemoteObject implements Trader {
                                 itemName = tokenizer.nextToken();
                             break;
                         case 3:
+                            if (commandName.equals(CommandName.search)) {
+                                try {
+                                    searchLimit = Integer.parseInt(tokenizer.nextToken());
+                                } catch (NumberFormatException e) {
+                                    System.err.println("Illegal number of results");
+                                    return null;
+                                }
+                                break;
+                            }
+
                             if (!(commandName.equals(CommandName.buy) || commandName.equals(CommandName.sell) ||
-                                    commandName.equals(CommandName.wish))) {
+                                    commandName.equals(CommandName.wish) || commandName.equals(CommandName.auction) ||
+                                    commandName.equals(CommandName.bid))) {
                                 System.err.println("Illegal number of arguments");
                                 return null;
                             }
@@ -244,7 +350,8 @@ public class Client extends UnicastRemoteObject implements Trader {
                             }
                             break;
                         case 4:
-                            if (!(commandName.equals(CommandName.buy) || commandName.equals(CommandName.sell))) {
+                            if (!(commandName.equals(CommandName.buy) || commandName.equals(CommandName.sell) ||
+                                    commandName.equals(CommandName.auction))) {
                                 System.err.println("Illegal number of arguments");
                                 return null;
                             }
@@ -256,6 +363,19 @@ public class Client extends UnicastRemoteObject implements Trader {
                                 return null;
                             }
                             break;
+                        case 5:
+                            if (!commandName.equals(CommandName.sell)) {
+                                System.err.println("Illegal number of arguments");
+                                return null;
+                            }
+
+                            try {
+                                itemTtlSeconds = Long.parseLong(tokenizer.nextToken());
+                            } catch (NumberFormatException e) {
+                                System.err.println("Illegal time to live");
+                                return null;
+                            }
+                            break;
                         default:
                             System.err.println("Illegal market command");
                             return null;
@@ -275,15 +395,25 @@ public class Client extends UnicastRemoteObject implements Trader {
                 break;
             case MARKET_COMMAND:
                 if ((commandName.equals(CommandName.sell) || commandName.equals(CommandName.buy) ||
-                        commandName.equals(CommandName.wish)) && (itemName == null)) {
+                        commandName.equals(CommandName.wish) || commandName.equals(CommandName.watch) ||
+                        commandName.equals(CommandName.auction) || commandName.equals(CommandName.bid) ||
+                        commandName.equals(CommandName.search) || commandName.equals(CommandName.history) ||
+                        commandName.equals(CommandName.upload) || commandName.equals(CommandName.download)) &&
+                        (itemName == null)) {
                     System.err.println("You need to specify the item name");
                     return null;
                 }
 
                 if (commandName.equals(CommandName.register) || commandName.equals(CommandName.login))
                     command = new CommandMarket(commandName, this, password);
-                else
-                    command = new CommandMarket(commandName, new Item(itemName, itemPrice, itemAmount), this);
+                else if (commandName.equals(CommandName.search))
+                    // The item carries the query and the number of results
+                    command = new CommandMarket(commandName, new Item(itemName, 0f, searchLimit), this);
+                else {
+                    Item item = new Item(itemName, itemPrice, itemAmount);
+                    item.setTtlMillis(itemTtlSeconds * 1000);
+                    command = new CommandMarket(commandName, item, this);
+                }
                 break;
             case BANK_COMMAND:
                 command = new CommandBank(commandName, this.clientName, amount);
@@ -359,7 +489,17 @@ public class Client extends UnicastRemoteObject implements Trader {
                     market.unregister(trader);
                     return;
                 case stats:
-                    ArrayList<String> stats = market.getStats(clientName);
+                    ArrayList<String> stats = null;
+                    MarketCatalog statsReplica = pickReplica();
+                    if (statsReplica != null) {
+                        try {
+                            stats = statsReplica.getStats(clientName);
+                        } catch (RemoteException | market.RejectedException e) {
+                            // Stale or unreachable replica : ask the primary
+                        }
+                    }
+                    if (stats == null)
+                        stats = market.getStats(clientName);
                     StringBuilder sb  = new StringBuilder();
                     sb.append(" ------------------------------------\n");
                     sb.append("|----------- MY STATISTICS ----------|\n");
@@ -371,16 +511,26 @@ public class Client extends UnicastRemoteObject implements Trader {
                     System.out.println(sb.toString());
                     return;
                 case buy:
-                    market.buy(this.item, this.trader);
+                    withRetries(requestId -> market.buy(this.item, this.trader, requestId));
                     return;
                 case sell:
-                    market.sell(this.item, this.trader);
+                    withRetries(requestId -> market.sell(this.item, this.trader, requestId));
                     return;
                 case wish:
                     market.wish(this.item, this.trader);
                     return;
                 case list:
-                    ArrayList<Item> items = market.getAllItems();
+                    ArrayList<Item> items = null;
+                    MarketCatalog listReplica = pickReplica();
+                    if (listReplica != null) {
+                        try {
+                            items = listReplica.getAllItems();
+                        } catch (RemoteException | market.RejectedException e) {
+                            // Stale or unreachable replica : ask the primary
+                        }
+                    }
+                    if (items == null)
+                        items = market.getAllItems();
                     StringBuilder sl  = new StringBuilder();
                     sl.append(" ------------------------------------\n");
                     sl.append("|-------- ITEMS ON THE MARKET -------|\n");
@@ -394,12 +544,201 @@ public class Client extends UnicastRemoteObject implements Trader {
                     sl.append("-------------------------------------");
                     System.out.println(sl.toString());
                     return;
+                case watch:
+                    ArrayList<String> names = new ArrayList<>(1);
+                    names.add(this.item.getName());
+                    market.subscribe(Client.this, names);
+                    return;
+                case unwatch:
+                    market.unsubscribe(Client.this);
+                    return;
+                case auction:
+                    long duration = Long.getLong("marketplace.auction.duration", DEFAULT_AUCTION_DURATION_SECONDS);
+                    market.startAuction(this.item, duration * 1000, this.trader);
+                    return;
+                case bid:
+                    market.bid(this.item, this.trader);
+                    return;
+                case search:
+                    ArrayList<Item> found = market.searchItems(this.item.getName(), this.item.getAmount());
+                    StringBuilder sr  = new StringBuilder();
+                    sr.append(" ------------------------------------\n");
+                    sr.append("|---------- SEARCH RESULTS ----------|\n");
+                    sr.append(" ------------------------------------\n\n");
+                    if (found.size() == 0)
+                        sr.append("No item matching " + this.item.getName() + "\n");
+                    else {
+                        for (Item i : found)
+                            sr.append(i.toString() + "\n");
+                    }
+                    sr.append("-------------------------------------");
+                    System.out.println(sr.toString());
+                    return;
+                case history:
+                    PriceBar.Resolution resolution = PriceBar.Resolution.valueOf(
+                            System.getProperty("marketplace.history.resolution", "day").toUpperCase());
+                    long now = System.currentTimeMillis();
+                    ArrayList<PriceBar> bars = market.getPriceHistory(this.item.getName(),
+                            now - HISTORY_DAYS * PriceBar.Resolution.DAY.getMillis(), now, resolution);
+                    StringBuilder sh  = new StringBuilder();
+                    sh.append(" ------------------------------------\n");
+                    sh.append("|----------- PRICE HISTORY ----------|\n");
+                    sh.append(" ------------------------------------\n\n");
+                    if (bars.size() == 0)
+                        sh.append("No trade of " + this.item.getName() + "\n");
+                    else {
+                        for (PriceBar b : bars)
+                            sh.append(b.toString() + "\n");
+                    }
+                    sh.append("-------------------------------------");
+                    System.out.println(sh.toString());
+                    return;
+                case myitems:
+                    StringBuilder si  = new StringBuilder();
+                    si.append(" ------------------------------------\n");
+                    si.append("|-------------- MY ITEMS ------------|\n");
+                    si.append(" ------------------------------------\n\n");
+                    Inventory inventory;
+                    int offset = 0;
+                    do {
+                        inventory = market.getMyItems(this.trader, offset, INVENTORY_PAGE);
+                        for (Item i : inventory.getItems())
+                            si.append(i.toString() + "\n");
+                        offset += inventory.getItems().size();
+                    } while (inventory.hasMore() && !inventory.getItems().isEmpty());
+                    si.append("\n" + inventory + "\n");
+                    si.append("-------------------------------------");
+                    System.out.println(si.toString());
+                    return;
+                case upload:
+                    upload(this.item.getName());
+                    return;
+                case download:
+                    download(this.item.getName());
+                    return;
+                case trades:
+                    ArrayList<TradeRecord> trades = market.getTradeHistory(this.trader, Long.MAX_VALUE, Long.MAX_VALUE,
+                            TRADES_SHOWN);
+                    StringBuilder st  = new StringBuilder();
+                    st.append(" ------------------------------------\n");
+                    st.append("|------------- MY TRADES ------------|\n");
+                    st.append(" ------------------------------------\n\n");
+                    if (trades.size() == 0)
+                        st.append("No trade\n");
+                    else {
+                        for (TradeRecord t : trades)
+                            st.append(t.toString() + "\n");
+                    }
+                    st.append("-------------------------------------");
+                    System.out.println(st.toString());
+                    return;
+                case auctions:
+                    ArrayList<AuctionInfo> auctions = market.getAuctions();
+                    StringBuilder sa  = new StringBuilder();
+                    sa.append(" ------------------------------------\n");
+                    sa.append("|-------------- AUCTIONS ------------|\n");
+                    sa.append(" ------------------------------------\n\n");
+                    if (auctions.size() == 0)
+                        sa.append("No open auction\n");
+                    else {
+                        for (AuctionInfo a : auctions)
+                            sa.append(a.toString() + "\n");
+                    }
+                    sa.append("-------------------------------------");
+                    System.out.println(sa.toString());
+                    return;
                 default:
                     System.err.println("Illegal market command to be executed");
             }
         }
     }
 
+    /**
+     * Put on the market the items of a file, one "name,price,amount[,ttlSeconds]" per line
+     */
+    private void upload(String fileName) throws RemoteException, market.RejectedException {
+        BitSet unreadable = new BitSet(); // Rows sent empty, reported here
+        long nbRows = 0;
+        long nbErrors = 0;
+        CatalogImport session = market.openImport(this);
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            ArrayList<Item> chunk = new ArrayList<>(TRANSFER_CHUNK);
+            String line;
+            while ((line = in.readLine()) != null) {
+                Item item = parseRow(line);
+                if (item == null) {
+                    System.err.println("Line " + (nbRows + 1) + ": expected name,price,amount[,ttlSeconds]");
+                    unreadable.set((int) nbRows);
+                }
+                chunk.add(item);
+                nbRows++;
+                if (chunk.size() == TRANSFER_CHUNK) {
+                    nbErrors += report(session.send(chunk), unreadable);
+                    chunk = new ArrayList<>(TRANSFER_CHUNK);
+                }
+            }
+            if (!chunk.isEmpty())
+                nbErrors += report(session.send(chunk), unreadable);
+        } catch (IOException e) {
+            session.abort();
+            System.err.println("Upload failed: " + e.getMessage());
+            return;
+        }
+        nbErrors += report(session.finish(), unreadable);
+        System.out.println((nbRows - nbErrors - unreadable.cardinality()) + " of " + nbRows +
+                " rows put on the market");
+    }
+
+    private static Item parseRow(String line) {
+        String[] fields = line.split(",");
+        if (fields.length < 3 || fields.length > 4)
+            return null;
+        try {
+            Item item = new Item(fields[0].trim(), Float.parseFloat(fields[1].trim()),
+                    Integer.parseInt(fields[2].trim()));
+            if (fields.length == 4)
+                item.setTtlMillis(Long.parseLong(fields[3].trim()) * 1000);
+            return item;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of errors printed, the unreadable rows being already reported
+     */
+    private static int report(ArrayList<ImportError> errors, BitSet unreadable) {
+        int printed = 0;
+        for (ImportError error : errors) {
+            if (unreadable.get((int) error.getRow()))
+                continue;
+            System.err.println("Line " + (error.getRow() + 1) + ": " + error.getMessage());
+            printed++;
+        }
+        return printed;
+    }
+
+    /**
+     * Write the listings of the trader to a file, in the format read by upload
+     */
+    private void download(String fileName) throws RemoteException, market.RejectedException {
+        CatalogExport session = market.openExport(this);
+        long nbItems = 0;
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+            ArrayList<Item> chunk;
+            while (!(chunk = session.next(TRANSFER_CHUNK)).isEmpty()) {
+                for (Item item : chunk)
+                    out.println(item.getName() + "," + item.getPrice() + "," + item.getAmount());
+                nbItems += chunk.size();
+            }
+        } catch (IOException e) {
+            session.close();
+            System.err.println("Download failed: " + e.getMessage());
+            return;
+        }
+        System.out.println(nbItems + " listings written to " + fileName);
+    }
+
     private class CommandBank extends Command {
         private String userName;
         private float amount;
@@ -433,10 +772,10 @@ public class Client extends UnicastRemoteObject implements Trader {
             // all further commands require a Account reference
             switch (this.getCommandName()) {
                 case deposit:
-                    bankobj.deposit(clientName, amount);
+                    withRetries(requestId -> bankobj.deposit(clientName, amount, requestId));
                     break;
                 case withdraw:
-                    bankobj.withdraw(clientName, amount);
+                    withRetries(requestId -> bankobj.withdraw(clientName, amount, requestId));
                     break;
                 case balance:
                     System.out.println("balance: $" + bankobj.findAccount(clientName).getBalance());
@@ -0,0 +1,183 @@
+package idempotency;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Outcomes of the last requests carrying a client supplied id, so that a retried request
+ * gets the outcome of its first execution instead of being executed again.
+ *
+ * Only definitive outcomes are kept (success and its result, or a rejection recorded with
+ * failed()) : a request released without one, e.g. after a RemoteException, is forgotten and
+ * its retry is executed. A retry arriving while the first execution is running waits for it.
+ *
+ * Request ids are chosen by the clients : they are scoped by the operation and the caller
+ * (see key()), so that two clients choosing the same id never get each other's outcome.
+ *
+ * Bounded : outcomes are kept for a given time and at most a given number of them, the
+ * oldest first evicted. Requests still running are never evicted, so that their retries keep
+ * waiting for them : the bound may be exceeded by the requests in flight. The cache is in
+ * memory : a restart forgets it.
+ */
+public class RequestCache {
+    private static final Outcome SUCCESS = new Outcome(null, null);
+    private static final Outcome ABANDONED = new Outcome(null, null);
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String, Request> requests = new LinkedHashMap<>(); // Insertion ordered, guarded by this
+
+    /**
+     * Constructor
+     * @param maxEntries
+     * @param ttlMillis time an outcome is kept
+     */
+    public RequestCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param operation e.g. "buy"
+     * @param caller trader or account owner making the request
+     * @param requestId id chosen by the client, null for a request which is not deduplicated
+     * @return the key of the request in the cache, null if it is not deduplicated
+     */
+    public static String key(String operation, String caller, String requestId) {
+        if (requestId == null)
+            return null;
+        // Length prefixed, so that no caller name and id can forge the key of another caller
+        String scope = String.valueOf(caller);
+        return operation + '/' + scope.length() + ':' + scope + '/' + requestId;
+    }
+
+    /**
+     * Start a request
+     * @param requestId key of the request (see key()), null for a request which is not deduplicated
+     * @return the request, to be executed unless it is a replay of a previous one
+     */
+    public Request begin(String requestId) {
+        if (requestId == null)
+            return new Request(null, System.currentTimeMillis(), null);
+
+        while (true) {
+            Request first;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                evict(now);
+                first = requests.get(requestId);
+                if (first == null) {
+                    Request request = new Request(requestId, now, new CompletableFuture<>());
+                    requests.put(requestId, request);
+                    return request;
+                }
+            }
+
+            Outcome outcome = first.outcome.join();
+            if (outcome != ABANDONED)
+                return new Request(requestId, first.time, CompletableFuture.completedFuture(outcome), true);
+            // The first execution gave up : execute this one
+        }
+    }
+
+    public synchronized int size() {
+        return requests.size();
+    }
+
+    // Called with the lock held
+    private void evict(long now) {
+        for (Iterator<Request> it = requests.values().iterator(); it.hasNext(); ) {
+            Request oldest = it.next();
+            if (requests.size() <= maxEntries && now - oldest.time < ttlMillis)
+                break;
+            if (oldest.outcome.isDone())
+                it.remove(); // In flight : kept until its outcome, its retries wait for it
+        }
+    }
+
+    private synchronized void forget(Request request) {
+        if (requests.get(request.id) == request)
+            requests.remove(request.id);
+    }
+
+    public class Request {
+        private final String id;
+        private final long time;
+        private final CompletableFuture<Outcome> outcome;
+        private final boolean replay;
+
+        private Request(String id, long time, CompletableFuture<Outcome> outcome) {
+            this(id, time, outcome, false);
+        }
+
+        private Request(String id, long time, CompletableFuture<Outcome> outcome, boolean replay) {
+            this.id = id;
+            this.time = time;
+            this.outcome = outcome;
+            this.replay = replay;
+        }
+
+        /**
+         * @return true if the request was already executed : it must not be executed again
+         */
+        public boolean isReplay() {
+            return replay;
+        }
+
+        /**
+         * @return the rejection of the first execution, null if it succeeded
+         */
+        public Throwable getFailure() {
+            return outcome.join().failure;
+        }
+
+        /**
+         * @return the result of the first execution
+         */
+        public Object getResult() {
+            return outcome.join().result;
+        }
+
+        public void succeeded() {
+            if (outcome != null)
+                outcome.complete(SUCCESS);
+        }
+
+        /**
+         * Record a success, and its result returned to the retries
+         */
+        public void succeeded(Object result) {
+            if (outcome != null)
+                outcome.complete(new Outcome(result, null));
+        }
+
+        /**
+         * Record a definitive failure, returned to the retries
+         */
+        public void failed(Throwable rejection) {
+            if (outcome != null)
+                outcome.complete(new Outcome(null, rejection));
+        }
+
+        /**
+         * To be called once the request is over : forgets it if it has no outcome
+         */
+        public void release() {
+            if (outcome != null && !replay && outcome.complete(ABANDONED))
+                forget(this);
+        }
+    }
+
+    private static class Outcome {
+        private final Object result;
+        private final Throwable failure;
+
+        private Outcome(Object result, Throwable failure) {
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+}
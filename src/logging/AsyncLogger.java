@@ -0,0 +1,184 @@
+package logging;
+
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous, level-gated logger.
+ *
+ * Calling threads only check the level and enqueue the message template with its
+ * arguments : formatting and writing to the console are done by a single background
+ * thread, so the market and bank threads never contend on the stdout lock.
+ * Messages use "{}" placeholders. When the queue is full, messages are dropped and counted.
+ *
+ * The level is read from the "marketplace.log.level" system property (DEBUG, INFO, WARN, ERROR).
+ */
+public final class AsyncLogger {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final Level THRESHOLD = Level.valueOf(
+            System.getProperty("marketplace.log.level", Level.INFO.name()).toUpperCase());
+
+    private static final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(AsyncLogger::writeLoop, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Do not lose the tail of the log on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLogger::flush));
+    }
+
+    private final String name;
+
+    private AsyncLogger(String name) {
+        this.name = name;
+    }
+
+    public static AsyncLogger getLogger(String name) {
+        return new AsyncLogger(name);
+    }
+
+    public static AsyncLogger getLogger(Class<?> clazz) {
+        return new AsyncLogger(clazz.getSimpleName());
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String template, Object... args) {
+        if (isEnabled(Level.DEBUG))
+            enqueue(Level.DEBUG, template, args);
+    }
+
+    public void info(String template) {
+        if (isEnabled(Level.INFO))
+            enqueue(Level.INFO, template, null);
+    }
+
+    public void info(String template, Object arg) {
+        if (isEnabled(Level.INFO))
+            enqueue(Level.INFO, template, new Object[]{arg});
+    }
+
+    public void info(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO))
+            enqueue(Level.INFO, template, new Object[]{arg1, arg2});
+    }
+
+    public void info(String template, Object... args) {
+        if (isEnabled(Level.INFO))
+            enqueue(Level.INFO, template, args);
+    }
+
+    public void warn(String template, Object... args) {
+        if (isEnabled(Level.WARN))
+            enqueue(Level.WARN, template, args);
+    }
+
+    public void error(String template, Object... args) {
+        if (isEnabled(Level.ERROR))
+            enqueue(Level.ERROR, template, args);
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private void enqueue(Level level, String template, Object[] args) {
+        if (!queue.offer(new Record(System.currentTimeMillis(), level, name, template, args)))
+            dropped.increment();
+    }
+
+    private static void writeLoop() {
+        List<Record> batch = new ArrayList<>(1024);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, 1023);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private static synchronized void flush() {
+        List<Record> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        write(batch);
+    }
+
+    private static void write(List<Record> batch) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        StringBuilder out = new StringBuilder(128 * batch.size());
+        StringBuilder err = null;
+
+        for (Record record : batch) {
+            StringBuilder sb = out;
+            if (record.level.compareTo(Level.WARN) >= 0) {
+                if (err == null)
+                    err = new StringBuilder();
+                sb = err;
+            }
+            sb.append(dateFormat.format(new Date(record.time))).append(' ').append(record.level)
+                    .append(" [").append(record.name).append("] ");
+            format(sb, record.template, record.args);
+            sb.append(System.lineSeparator());
+        }
+
+        print(System.out, out);
+        if (err != null)
+            print(System.err, err);
+    }
+
+    private static void print(PrintStream stream, StringBuilder sb) {
+        if (sb.length() > 0) {
+            stream.print(sb);
+            stream.flush();
+        }
+    }
+
+    static void format(StringBuilder sb, String template, Object[] args) {
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (args != null && argIndex < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            sb.append(template, from, at).append(args[argIndex++]);
+            from = at + 2;
+        }
+        sb.append(template, from, template.length());
+    }
+
+    private static class Record {
+        private final long time;
+        private final Level level;
+        private final String name;
+        private final String template;
+        private final Object[] args;
+
+        private Record(long time, Level level, String name, String template, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.name = name;
+            this.template = template;
+            this.args = args;
+        }
+    }
+}
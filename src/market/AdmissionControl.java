@@ -0,0 +1,148 @@
+package market;
+
+
+import metrics.MetricsRegistry;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Admission control at the market boundary : a token bucket per caller and per operation
+ * class, and a global bound on the calls in progress.
+ *
+ * The buckets are GCRA ones (a single "theoretical arrival time" per bucket, moved forward
+ * by a CAS for each admitted call), so accepting a call takes no lock and allocates nothing
+ * once the caller is known. The global limiter admits the trades up to the bound, listings and
+ * stats only while a part of it is free : under overload the reads are shed first. A rejected
+ * call fails right away with an OverloadedException, nothing is queued.
+ */
+public class AdmissionControl {
+    public static final String ENABLED_PROPERTY = "marketplace.admission.enabled";
+    private static final int MAX_CALLERS = 1 << 16; // Above, idle callers are forgotten
+
+    public enum Priority {
+        TRADE(50, 100, 100), LISTING(10, 20, 75), STATS(5, 10, 50);
+
+        private final int defaultRate;
+        private final int defaultBurst;
+        private final int concurrencyPercent; // Part of the global bound usable by the class
+        private final String rateCounter = "market.admission.rate_limited." + name().toLowerCase();
+        private final String overloadCounter = "market.admission.overloaded." + name().toLowerCase();
+
+        Priority(int defaultRate, int defaultBurst, int concurrencyPercent) {
+            this.defaultRate = defaultRate;
+            this.defaultBurst = defaultBurst;
+            this.concurrencyPercent = concurrencyPercent;
+        }
+    }
+
+    private final ConcurrentMap<Object, AtomicLongArray> callers = new ConcurrentHashMap<>();
+    private final long[] interval = new long[Priority.values().length]; // Nanos between two calls
+    private final long[] tolerance = new long[Priority.values().length]; // Burst, in nanos
+    private final int[] maxInFlight = new int[Priority.values().length];
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    /**
+     * Constructor : limits read from the system properties
+     * marketplace.admission.[trade|listing|stats].rate (calls per second, 0 for no limit),
+     * marketplace.admission.[trade|listing|stats].burst and marketplace.admission.maxConcurrent
+     * (0 for no limit). marketplace.admission.enabled=false disables all of them
+     */
+    public AdmissionControl() {
+        boolean enabled = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+        int maxConcurrent = enabled ? Integer.getInteger("marketplace.admission.maxConcurrent", 64) : 0;
+        for (Priority priority : Priority.values()) {
+            String prefix = "marketplace.admission." + priority.name().toLowerCase();
+            int rate = enabled ? Integer.getInteger(prefix + ".rate", priority.defaultRate) : 0;
+            int burst = Integer.getInteger(prefix + ".burst", priority.defaultBurst);
+            int i = priority.ordinal();
+            interval[i] = rate > 0 ? 1000000000L / rate : 0;
+            tolerance[i] = interval[i] * Math.max(burst - 1, 0);
+            maxInFlight[i] = maxConcurrent > 0 ? Math.max(1, maxConcurrent * priority.concurrencyPercent / 100)
+                    : Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Admit a call, to be followed by exit() once it is over
+     * @param priority class of the operation
+     * @param caller trader stub or client host the call is accounted to
+     * @throws OverloadedException if the caller exceeds its rate or the market is saturated
+     */
+    public void enter(Priority priority, Object caller) throws OverloadedException {
+        int i = priority.ordinal();
+        if (interval[i] > 0 && !tryAcquire(buckets(caller), i, System.nanoTime())) {
+            metrics.increment(priority.rateCounter);
+            throw new OverloadedException("Too many requests, slow down");
+        }
+
+        int n;
+        do {
+            n = inFlight.get();
+            if (n >= maxInFlight[i]) {
+                metrics.increment(priority.overloadCounter);
+                throw new OverloadedException("Market overloaded, try again later");
+            }
+        } while (!inFlight.compareAndSet(n, n + 1));
+    }
+
+    public void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Forget a caller, e.g. when it unregisters
+     */
+    public void forget(Object caller) {
+        callers.remove(caller);
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private boolean tryAcquire(AtomicLongArray arrivals, int i, long now) {
+        while (true) {
+            long tat = arrivals.get(i);
+            long start = tat - now > 0 ? tat : now;
+            if (start - now > tolerance[i])
+                return false;
+            if (arrivals.compareAndSet(i, tat, start + interval[i]))
+                return true;
+        }
+    }
+
+    private AtomicLongArray buckets(Object caller) {
+        AtomicLongArray arrivals = callers.get(caller);
+        if (arrivals != null)
+            return arrivals;
+
+        if (callers.size() >= MAX_CALLERS)
+            evictIdle(System.nanoTime());
+        long now = System.nanoTime();
+        return callers.computeIfAbsent(caller, c -> {
+            AtomicLongArray a = new AtomicLongArray(interval.length);
+            for (int i = 0; i < interval.length; i++)
+                a.set(i, now); // Full buckets
+            return a;
+        });
+    }
+
+    /**
+     * Remove the callers whose buckets are all full again : they would be recreated the same
+     */
+    private void evictIdle(long now) {
+        for (Iterator<AtomicLongArray> it = callers.values().iterator(); it.hasNext(); ) {
+            AtomicLongArray arrivals = it.next();
+            boolean idle = true;
+            for (int i = 0; i < interval.length && idle; i++)
+                idle = arrivals.get(i) - now <= 0;
+            if (idle)
+                it.remove();
+        }
+    }
+}
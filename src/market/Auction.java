@@ -0,0 +1,141 @@
+package market;
+
+
+import client.Trader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Timed auction of a lot of items.
+ *
+ * Bidding is lock-free : the best bid is swapped in with a compare-and-set, so concurrent
+ * bidders on a hot auction never block each other. Closing swaps in a sentinel that makes
+ * every later bid fail.
+ */
+public class Auction {
+    private static final Bid CLOSED = new Bid(null, null, Float.MAX_VALUE);
+
+    private final String name;
+    private final int amount;
+    private final String seller;
+    private final Trader sellerTrader;
+    private final float startPrice;
+    private final long deadline;
+
+    private final AtomicReference<Bid> best = new AtomicReference<>(null);
+    // Best bid of each bidder : fallbacks when the winner cannot pay, and losers to notify
+    private final ConcurrentMap<String, Bid> bidders = new ConcurrentHashMap<>();
+
+    public Auction(String name, int amount, String seller, Trader sellerTrader, float startPrice, long deadline) {
+        this.name = name;
+        this.amount = amount;
+        this.seller = seller;
+        this.sellerTrader = sellerTrader;
+        this.startPrice = startPrice;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return null if the bid is now the best one, otherwise the reason why it was refused
+     */
+    public String bid(String bidder, Trader trader, float price) {
+        if (price < startPrice)
+            return "bid below the start price $" + startPrice;
+
+        Bid bid = new Bid(bidder, trader, price);
+        while (true) {
+            Bid current = best.get();
+            if (current == CLOSED)
+                return "auction closed";
+            if (current != null && current.price >= price)
+                return "bid not above the best bid $" + current.price;
+            if (best.compareAndSet(current, bid))
+                break;
+        }
+
+        bidders.merge(bidder, bid, (previous, latest) -> latest.price > previous.price ? latest : previous);
+        return null;
+    }
+
+    /**
+     * Close the auction
+     * @return the best bid of each bidder, highest first
+     */
+    List<Bid> close() {
+        // The winning bid may not be recorded in bidders yet
+        Bid last = best.getAndSet(CLOSED);
+        if (last != null && last != CLOSED)
+            bidders.merge(last.bidder, last, (previous, latest) -> latest.price > previous.price ? latest : previous);
+
+        List<Bid> ranked = new ArrayList<>(bidders.values());
+        ranked.sort(Comparator.comparing(Bid::getPrice).reversed());
+        return ranked;
+    }
+
+    /**
+     * @return the request id of the payment of a bidder, the same on each retry : the bank
+     * transfers the funds at most once
+     */
+    String paymentRequestId(String bidder) {
+        return "auction/" + seller + "/" + name + "/" + deadline + "/" + bidder;
+    }
+
+    public boolean isClosed() {
+        return best.get() == CLOSED;
+    }
+
+    public AuctionInfo getInfo() {
+        Bid current = best.get();
+        float bestBid = (current == null || current == CLOSED) ? 0f : current.price;
+        return new AuctionInfo(name, amount, seller, startPrice, bestBid, deadline);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public Trader getSellerTrader() {
+        return sellerTrader;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public static class Bid {
+        private final String bidder;
+        private final Trader trader;
+        private final float price;
+
+        private Bid(String bidder, Trader trader, float price) {
+            this.bidder = bidder;
+            this.trader = trader;
+            this.price = price;
+        }
+
+        public String getBidder() {
+            return bidder;
+        }
+
+        public Trader getTrader() {
+            return trader;
+        }
+
+        public float getPrice() {
+            return price;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package market;
+
+
+import client.Trader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Open auctions of a market, at most one per item name.
+ * Deadlines are kept in a hierarchical timing wheel; closed auctions are settled on a
+ * small pool so that bank calls and callbacks never delay the wheel.
+ */
+public class AuctionHouse {
+    private static final long TICK_MILLIS = 10;
+
+    /**
+     * Settles a closed auction given the best bid of each bidder, highest first
+     */
+    public interface Settlement {
+        void settle(Auction auction, List<Auction.Bid> rankedBids);
+    }
+
+    private final ConcurrentMap<String, Auction> auctions = new ConcurrentHashMap<>();
+    private final Settlement settlement;
+    private final ExecutorService settlementExecutor;
+    private final HierarchicalTimingWheel wheel;
+
+    public AuctionHouse(Settlement settlement) {
+        this.settlement = settlement;
+        this.settlementExecutor = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "auction-settlement");
+            t.setDaemon(true);
+            return t;
+        });
+        this.wheel = new HierarchicalTimingWheel(TICK_MILLIS, settlementExecutor, "auction-timer");
+    }
+
+    /**
+     * @return the new auction, or null if an auction is already open on that item name
+     */
+    public Auction open(String name, int amount, String seller, Trader sellerTrader, float startPrice,
+                        long durationMillis) {
+        Auction auction = new Auction(name, amount, seller, sellerTrader, startPrice,
+                System.currentTimeMillis() + durationMillis);
+        if (auctions.putIfAbsent(name, auction) != null)
+            return null;
+
+        wheel.schedule(auction.getDeadline(), () -> close(auction));
+        return auction;
+    }
+
+    /**
+     * @return null if the bid is now the best one, otherwise the reason why it was refused
+     */
+    public String bid(String name, String bidder, Trader trader, float price) {
+        Auction auction = auctions.get(name);
+        if (auction == null)
+            return "no open auction on " + name;
+        if (auction.getSeller().equals(bidder))
+            return "you cannot bid on your own auction";
+        return auction.bid(bidder, trader, price);
+    }
+
+    public ArrayList<AuctionInfo> list() {
+        ArrayList<AuctionInfo> infos = new ArrayList<>(auctions.size());
+        for (Auction auction : auctions.values())
+            infos.add(auction.getInfo());
+        return infos;
+    }
+
+    private void close(Auction auction) {
+        auctions.remove(auction.getName(), auction);
+        settlement.settle(auction, auction.close());
+    }
+
+    public void shutdown() {
+        wheel.stop();
+        settlementExecutor.shutdown();
+    }
+}
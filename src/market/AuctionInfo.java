@@ -0,0 +1,66 @@
+package market;
+
+
+import java.io.Serializable;
+
+/**
+ * Public view of an open auction
+ */
+public class AuctionInfo implements Serializable {
+    private static final long serialVersionUID = 7746920346190316755L;
+
+    private final String name;
+    private final int amount;
+    private final String seller;
+    private final float startPrice;
+    private final float bestBid;
+    private final long deadline;
+
+    public AuctionInfo(String name, int amount, String seller, float startPrice, float bestBid, long deadline) {
+        this.name = name;
+        this.amount = amount;
+        this.seller = seller;
+        this.startPrice = startPrice;
+        this.bestBid = bestBid;
+        this.deadline = deadline;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public float getStartPrice() {
+        return startPrice;
+    }
+
+    /**
+     * @return the best bid per item so far, 0 if none
+     */
+    public float getBestBid() {
+        return bestBid;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public String toString() {
+        return "Auction[" +
+                "name : " + name +
+                ", amount : " + amount +
+                ", seller : " + seller +
+                ", start price : $" + startPrice +
+                ", best bid : " + (bestBid > 0 ? "$" + bestBid : "none") +
+                ", closes in " + Math.max(0, (deadline - System.currentTimeMillis()) / 1000) + " s" +
+                ']';
+    }
+}
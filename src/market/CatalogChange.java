@@ -0,0 +1,98 @@
+package market;
+
+
+import java.io.Serializable;
+
+/**
+ * One change of the market catalog, shipped to the read replicas.
+ * Changes carry the full new state of the row, so replaying one twice is harmless.
+ */
+public class CatalogChange implements Serializable {
+    private static final long serialVersionUID = 3180452715962318847L;
+
+    public enum Type { ITEM, ITEM_REMOVED, SELLER_REMOVED, USER, USER_REMOVED }
+
+    private final Type type;
+    private final String name;       // Item name, or username for user changes
+    private final float price;
+    private final int amount;
+    private final String seller;
+    private final int nbItemsBought;
+    private final int nbItemsSold;
+    private long sequence;
+
+    private CatalogChange(Type type, String name, float price, int amount, String seller,
+                          int nbItemsBought, int nbItemsSold) {
+        this.type = type;
+        this.name = name;
+        this.price = price;
+        this.amount = amount;
+        this.seller = seller;
+        this.nbItemsBought = nbItemsBought;
+        this.nbItemsSold = nbItemsSold;
+    }
+
+    public static CatalogChange item(Item item) {
+        if (item.getAmount() == 0)
+            return itemRemoved(item.getName(), item.getPrice());
+        return new CatalogChange(Type.ITEM, item.getName(), item.getPrice(), item.getAmount(),
+                item.getSeller().getUsername(), 0, 0);
+    }
+
+    public static CatalogChange item(String name, float price, int amount, String seller) {
+        return new CatalogChange(Type.ITEM, name, price, amount, seller, 0, 0);
+    }
+
+    public static CatalogChange itemRemoved(String name, float price) {
+        return new CatalogChange(Type.ITEM_REMOVED, name, price, 0, null, 0, 0);
+    }
+
+    public static CatalogChange sellerRemoved(String sellerName) {
+        return new CatalogChange(Type.SELLER_REMOVED, sellerName, 0f, 0, sellerName, 0, 0);
+    }
+
+    public static CatalogChange user(User user) {
+        return new CatalogChange(Type.USER, user.getUsername(), 0f, 0, null,
+                user.getNbTotalItemsBought(), user.getNbTotalItemsSold());
+    }
+
+    public static CatalogChange userRemoved(String username) {
+        return new CatalogChange(Type.USER_REMOVED, username, 0f, 0, null, 0, 0);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float getPrice() {
+        return price;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public int getNbItemsBought() {
+        return nbItemsBought;
+    }
+
+    public int getNbItemsSold() {
+        return nbItemsSold;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+}
@@ -0,0 +1,121 @@
+package market;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, in-memory log of the recent catalog changes of the primary market.
+ * Replicas tail it by sequence number; a replica falling further behind than the
+ * log capacity (or talking to a restarted primary) has to reload a snapshot.
+ *
+ * A transaction reserves the place of its changes once it holds their row locks, and
+ * publishes them after its commit (or discards them after a rollback). Changes are appended
+ * in the order of the reservations, so the changes of a given row stay in commit order,
+ * and the ones of a rolled back transaction are never seen.
+ */
+public class CatalogChangeLog {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final CatalogChange[] ring;
+    private final Consumer<CatalogChange> onAppended;
+    private long headSequence = 0; // Sequence of the last appended change, guarded by this
+    private final ArrayDeque<Reservation> reservations = new ArrayDeque<>(); // Guarded by this
+
+    /**
+     * Changes of one transaction, waiting for its outcome
+     */
+    public static class Reservation {
+        private final List<CatalogChange> changes;
+        private boolean done = false;
+        private boolean committed = false;
+
+        private Reservation(List<CatalogChange> changes) {
+            this.changes = changes;
+        }
+    }
+
+    public CatalogChangeLog(Consumer<CatalogChange> onAppended) {
+        this(DEFAULT_CAPACITY, onAppended);
+    }
+
+    /**
+     * @param capacity
+     * @param onAppended called with each change once appended, in sequence order
+     */
+    public CatalogChangeLog(int capacity, Consumer<CatalogChange> onAppended) {
+        this.ring = new CatalogChange[capacity];
+        this.onAppended = onAppended;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getHeadSequence() {
+        return headSequence;
+    }
+
+    /**
+     * Reserve the place of the changes of a transaction, which holds their row locks.
+     * The changes of the later reservations wait until this one is published or discarded.
+     */
+    public synchronized Reservation reserve(List<CatalogChange> changes) {
+        Reservation reservation = new Reservation(changes);
+        reservations.addLast(reservation);
+        return reservation;
+    }
+
+    /**
+     * The transaction of the reservation committed : append its changes
+     */
+    public synchronized void publish(Reservation reservation) {
+        reservation.committed = true;
+        complete(reservation);
+    }
+
+    /**
+     * The transaction of the reservation rolled back : drop its changes
+     */
+    public synchronized void discard(Reservation reservation) {
+        complete(reservation);
+    }
+
+    private void complete(Reservation reservation) {
+        reservation.done = true;
+        while (!reservations.isEmpty() && reservations.peekFirst().done) {
+            Reservation first = reservations.pollFirst();
+            if (first.committed) {
+                for (CatalogChange change : first.changes)
+                    append(change);
+            }
+        }
+    }
+
+    private void append(CatalogChange change) {
+        change.setSequence(++headSequence);
+        ring[(int) (headSequence % ring.length)] = change;
+        onAppended.accept(change);
+    }
+
+    /**
+     * @param epoch epoch the replica synchronized with
+     * @param fromSequence last sequence number applied by the replica
+     * @param max maximum number of changes returned
+     */
+    public synchronized CatalogChanges readFrom(long epoch, long fromSequence, int max) {
+        long oldest = Math.max(1, headSequence - ring.length + 1);
+        if (epoch != this.epoch || fromSequence > headSequence || fromSequence + 1 < oldest)
+            return new CatalogChanges(this.epoch, headSequence, false, true, new ArrayList<>(0));
+
+        int count = (int) Math.min(max, headSequence - fromSequence);
+        ArrayList<CatalogChange> changes = new ArrayList<>(count);
+        for (long seq = fromSequence + 1; seq <= fromSequence + count; seq++)
+            changes.add(ring[(int) (seq % ring.length)]);
+        return new CatalogChanges(this.epoch, headSequence, false, false, changes);
+    }
+}
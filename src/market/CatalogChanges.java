@@ -0,0 +1,58 @@
+package market;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Batch of catalog changes returned to a read replica.
+ * A snapshot batch holds the whole catalog as of its sequence number; otherwise the batch
+ * holds the changes following the sequence requested by the replica.
+ */
+public class CatalogChanges implements Serializable {
+    private static final long serialVersionUID = -6094538416290046532L;
+
+    private final long epoch;
+    private final long headSequence;
+    private final boolean snapshot;
+    private final boolean resyncNeeded;
+    private final ArrayList<CatalogChange> changes;
+
+    public CatalogChanges(long epoch, long headSequence, boolean snapshot, boolean resyncNeeded,
+                          ArrayList<CatalogChange> changes) {
+        this.epoch = epoch;
+        this.headSequence = headSequence;
+        this.snapshot = snapshot;
+        this.resyncNeeded = resyncNeeded;
+        this.changes = changes;
+    }
+
+    /**
+     * Identifies one run of the primary : the sequence numbers restart with a new epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Sequence number of the last change on the primary when the batch was built
+     */
+    public long getHeadSequence() {
+        return headSequence;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * The requested changes are no longer retained by the primary : a snapshot is needed
+     */
+    public boolean isResyncNeeded() {
+        return resyncNeeded;
+    }
+
+    public ArrayList<CatalogChange> getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,21 @@
+package market;
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+/**
+ * Bulk export of the listings (see Market.openExport), by name then price, read from a
+ * database cursor held by the session until the last chunk or close()
+ */
+public interface CatalogExport extends Remote {
+
+    /**
+     * @param max maximum number of items returned, at most CatalogImport.MAX_CHUNK_SIZE
+     * @return the next listings, empty once all have been read (the session is then closed)
+     */
+    ArrayList<Item> next(int max) throws RemoteException, RejectedException;
+
+    void close() throws RemoteException;
+}
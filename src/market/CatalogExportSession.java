@@ -0,0 +1,133 @@
+package market;
+
+
+import logging.AsyncLogger;
+import market.RejectedException.Reason;
+import metrics.MetricsRegistry;
+import metrics.PhaseTimer;
+import org.eclipse.persistence.queries.CursoredStream;
+
+import javax.persistence.EntityManager;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Server side of a bulk export : a forward-only database cursor, read one chunk per call.
+ * Only the items of the current chunk are in memory, the ones sent are released from the
+ * cursor. The cursor and its entity manager are closed after the last chunk, by close(),
+ * when the client is gone (unreferenced, after the RMI lease), or by the market once the
+ * session is left idle.
+ */
+class CatalogExportSession extends UnicastRemoteObject implements CatalogExport, Unreferenced {
+    private static final long serialVersionUID = -5206889815665935784L;
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(CatalogExportSession.class);
+
+    private final EntityManager em;
+    private final CursoredStream cursor;
+    private final String description;
+    private final Object owner;
+    private final Consumer<CatalogExportSession> onClosed;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final long start = System.currentTimeMillis();
+    private long nbExported = 0;
+    private volatile long lastAccess = start;
+    private boolean closed = false;
+
+    /**
+     * Constructor : exports the session, which then owns the entity manager
+     * @param em entity manager of the cursor
+     * @param cursor over Items
+     * @param description of the exported listings, for the logs
+     * @param owner trader name, or host, the session is accounted to
+     * @param onClosed called once the session is closed
+     * @throws RemoteException
+     */
+    CatalogExportSession(EntityManager em, CursoredStream cursor, String description, Object owner,
+                         Consumer<CatalogExportSession> onClosed) throws RemoteException {
+        super();
+        this.em = em;
+        this.cursor = cursor;
+        this.description = description;
+        this.owner = owner;
+        this.onClosed = onClosed;
+    }
+
+    Object getOwner() {
+        return owner;
+    }
+
+    @Override
+    public synchronized ArrayList<Item> next(int max) throws RemoteException, RejectedException {
+        if (closed) {
+            metrics.increment(Reason.SESSION_CLOSED.getCounter());
+            throw new RejectedException(Reason.SESSION_CLOSED, "Export");
+        }
+
+        lastAccess = System.currentTimeMillis();
+        PhaseTimer timer = metrics.startTimer("market.export.next");
+        try {
+            int n = Math.max(1, Math.min(max, CatalogImport.MAX_CHUNK_SIZE));
+            ArrayList<Item> items = new ArrayList<>(n);
+            while (items.size() < n && !cursor.atEnd()) {
+                Item listing = (Item) cursor.read();
+                items.add(new Item(listing.getName(), listing.getPrice(), listing.getAmount()));
+            }
+            cursor.releasePrevious();
+            em.clear();
+
+            nbExported += items.size();
+            metrics.counter("market.export.items").add(items.size());
+            if (items.isEmpty()) {
+                LOG.info("Export of {}: {} items in {} ms", description, nbExported,
+                        System.currentTimeMillis() - start);
+                close();
+            }
+            return items;
+        } catch (RuntimeException e) {
+            LOG.error("Export of {} failed after {} items: {}", description, nbExported, e);
+            close();
+            throw e;
+        } finally {
+            lastAccess = System.currentTimeMillis();
+            timer.stop();
+        }
+    }
+
+    /**
+     * Close the session if no chunk was read since a time
+     * @return true if it was closed
+     */
+    synchronized boolean closeIfIdleSince(long time) {
+        if (closed || lastAccess >= time)
+            return false;
+        LOG.info("Export of {} closed after {} ms idle, {} items sent", description,
+                System.currentTimeMillis() - lastAccess, nbExported);
+        close();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            cursor.close();
+        } finally {
+            em.close();
+            try {
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (NoSuchObjectException e) {}
+            onClosed.accept(this);
+        }
+    }
+
+    @Override
+    public void unreferenced() {
+        close(); // Client gone
+    }
+}
@@ -0,0 +1,34 @@
+package market;
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+/**
+ * Bulk import of the listings of a seller (see Market.openImport) : the items are streamed
+ * in chunks, validated as they arrive and listed by batches, one transaction per batch.
+ * Rows are numbered from 0 in the order they were sent.
+ */
+public interface CatalogImport extends Remote {
+
+    /**
+     * Send the next rows of the import
+     * @param chunk items to list, at most MAX_CHUNK_SIZE
+     * @return the rows refused since the previous call, this chunk or the previous ones
+     */
+    ArrayList<ImportError> send(ArrayList<Item> chunk) throws RemoteException, RejectedException;
+
+    /**
+     * List the rows still pending and close the session
+     * @return the rows refused since the previous call
+     */
+    ArrayList<ImportError> finish() throws RemoteException, RejectedException;
+
+    /**
+     * Close the session, dropping the rows not listed yet
+     */
+    void abort() throws RemoteException;
+
+    int MAX_CHUNK_SIZE = 10000;
+}
@@ -0,0 +1,190 @@
+package market;
+
+
+import logging.AsyncLogger;
+import market.RejectedException.Reason;
+import metrics.MetricsRegistry;
+import metrics.PhaseTimer;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Server side of a bulk import, exported for one seller.
+ *
+ * The rows of each chunk are validated in parallel; the valid ones wait in the session until
+ * a batch is full, then the market lists the whole batch in one transaction. Rows refused
+ * by the validation or by the market are returned with the next call. The session is closed
+ * by finish() or abort(), or when its client is gone (unreferenced, after the RMI lease).
+ */
+class CatalogImportSession extends UnicastRemoteObject implements CatalogImport, Unreferenced {
+    private static final long serialVersionUID = -5081373673750609612L;
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(CatalogImportSession.class);
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /**
+     * Lists a batch of valid rows, in one transaction
+     */
+    interface BatchWriter {
+        /**
+         * @param seller
+         * @param rows rows of the batch, in the order they were sent
+         * @param errors receives the rows the market refused
+         * @return the number of rows listed
+         */
+        int write(String seller, List<Row> rows, List<ImportError> errors);
+    }
+
+    static class Row {
+        private final long number;
+        private final Item item;
+
+        private Row(long number, Item item) {
+            this.number = number;
+            this.item = item;
+        }
+
+        long getNumber() {
+            return number;
+        }
+
+        Item getItem() {
+            return item;
+        }
+    }
+
+    private final String seller;
+    private final BatchWriter writer;
+    private final int batchSize;
+    private final List<Row> pending;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final long start = System.currentTimeMillis();
+    private long nbRows = 0;
+    private long nbListed = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor : exports the session
+     * @param seller logged in seller
+     * @param writer lists the batches
+     * @param batchSize rows listed per transaction
+     * @throws RemoteException
+     */
+    CatalogImportSession(String seller, BatchWriter writer, int batchSize) throws RemoteException {
+        super();
+        this.seller = seller;
+        this.writer = writer;
+        this.batchSize = Math.max(1, batchSize);
+        this.pending = new ArrayList<>(this.batchSize);
+    }
+
+    @Override
+    public synchronized ArrayList<ImportError> send(ArrayList<Item> chunk) throws RemoteException, RejectedException {
+        if (closed)
+            throw reject(Reason.SESSION_CLOSED, "Import");
+        if (chunk.size() > MAX_CHUNK_SIZE)
+            throw reject(Reason.INVALID_CHUNK, "Import", MAX_CHUNK_SIZE);
+
+        PhaseTimer timer = metrics.startTimer("market.import.send");
+        try {
+            long first = nbRows;
+            nbRows += chunk.size();
+            ImportError[] invalid = new ImportError[chunk.size()];
+            IntStream.range(0, chunk.size()).parallel().forEach(i -> invalid[i] = validate(first + i, chunk.get(i)));
+
+            ArrayList<ImportError> errors = new ArrayList<>();
+            for (int i = 0; i < chunk.size(); i++) {
+                if (invalid[i] != null) {
+                    errors.add(invalid[i]);
+                    continue;
+                }
+                pending.add(new Row(first + i, chunk.get(i)));
+                if (pending.size() >= batchSize)
+                    flush(errors);
+            }
+            metrics.counter("market.import.rejected").add(errors.size());
+            errors.sort(Comparator.comparingLong(ImportError::getRow));
+            return errors;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Override
+    public synchronized ArrayList<ImportError> finish() throws RemoteException, RejectedException {
+        if (closed)
+            throw reject(Reason.SESSION_CLOSED, "Import");
+
+        ArrayList<ImportError> errors = new ArrayList<>();
+        if (!pending.isEmpty())
+            flush(errors);
+        metrics.counter("market.import.rejected").add(errors.size());
+        close();
+        LOG.info("Import of {}: {} listed out of {} rows in {} ms", seller, nbListed, nbRows,
+                System.currentTimeMillis() - start);
+        return errors;
+    }
+
+    @Override
+    public synchronized void abort() {
+        if (closed)
+            return;
+        LOG.info("Import of {} aborted: {} listed out of {} rows, {} pending dropped", seller, nbListed, nbRows,
+                pending.size());
+        close();
+    }
+
+    @Override
+    public void unreferenced() {
+        abort(); // Client gone
+    }
+
+    private RejectedException reject(Reason reason, Object... args) {
+        metrics.increment(reason.getCounter());
+        return new RejectedException(reason, args);
+    }
+
+    private ImportError validate(long row, Item item) {
+        String problem = null;
+        if (item == null)
+            problem = "empty row";
+        else if (item.getName() == null || item.getName().trim().isEmpty())
+            problem = "no name";
+        else if (item.getName().length() > MAX_NAME_LENGTH)
+            problem = "name longer than " + MAX_NAME_LENGTH + " characters";
+        else if (!(item.getPrice() > 0) || Float.isInfinite(item.getPrice()))
+            problem = "price must be positive";
+        else if (item.getAmount() <= 0)
+            problem = "amount must be positive";
+        else if (item.getTtlMillis() < 0)
+            problem = "negative time to live";
+        return problem == null ? null : new ImportError(row, reject(Reason.INVALID_ITEM, item, problem));
+    }
+
+    private void flush(List<ImportError> errors) {
+        try {
+            nbListed += writer.write(seller, pending, errors);
+        } catch (RuntimeException e) {
+            LOG.error("Import batch of {} ({} rows) failed: {}", seller, pending.size(), e);
+            for (Row row : pending)
+                errors.add(new ImportError(row.number, reject(Reason.OTHER, "Import failed: batch not listed (" +
+                        e.getMessage() + ")")));
+        } finally {
+            pending.clear();
+        }
+    }
+
+    private void close() {
+        closed = true;
+        pending.clear();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {}
+    }
+}
@@ -0,0 +1,21 @@
+package market;
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Replication side of the primary market : read replicas load a snapshot of the
+ * catalog and then tail its changes
+ */
+public interface CatalogSource extends Remote {
+
+    CatalogChanges getCatalogSnapshot() throws RemoteException;
+
+    CatalogChanges getCatalogChanges(long epoch, long fromSequence, int max) throws RemoteException;
+
+    /**
+     * Login check of the primary, for the reads of the replicas reserved to logged in traders
+     */
+    boolean isLoggedIn(String traderName) throws RemoteException;
+}
@@ -0,0 +1,171 @@
+package market;
+
+
+import logging.AsyncLogger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel : schedules a large number of deadlines with O(1) insertion
+ * and cancellation, driven by a single thread, instead of one timer per task.
+ *
+ * Level 0 has one bucket per tick; each upper level covers a whole turn of the level below
+ * in each of its buckets. When a lower wheel wraps around, the next bucket of the upper
+ * level is cascaded down. Expired tasks are run on the given executor so that slow tasks
+ * never delay the ticking.
+ */
+public class HierarchicalTimingWheel {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(HierarchicalTimingWheel.class);
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Executor executor;
+
+    // Guarded by this
+    private final ArrayDeque<Timeout>[][] buckets = newBuckets();
+    private long currentTick = 0;
+    private int pending = 0;
+
+    private final Thread driver;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     * @param tickMillis resolution of the wheel
+     * @param executor runs the expired tasks
+     * @param name name of the driver thread
+     */
+    public HierarchicalTimingWheel(long tickMillis, Executor executor, String name) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.executor = executor;
+
+        driver = new Thread(this::drive, name);
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    /**
+     * @return the empty buckets of every level
+     */
+    private static ArrayDeque<Timeout>[][] newBuckets() {
+        @SuppressWarnings("unchecked") // No generic array creation : the array only ever holds these deques
+        ArrayDeque<Timeout>[][] buckets = (ArrayDeque<Timeout>[][]) new ArrayDeque<?>[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++)
+            for (int i = 0; i < WHEEL_SIZE; i++)
+                buckets[level][i] = new ArrayDeque<>();
+        return buckets;
+    }
+
+    /**
+     * Schedule a task
+     * @param deadlineMillis absolute time (System.currentTimeMillis) at which the task runs
+     * @param task
+     * @return a handle to cancel the task
+     */
+    public synchronized Timeout schedule(long deadlineMillis, Runnable task) {
+        long deadlineTick = Math.max(currentTick + 1,
+                (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(deadlineTick, task);
+        insert(timeout);
+        pending++;
+        return timeout;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    public void stop() {
+        running = false;
+        driver.interrupt();
+    }
+
+    // Called with the lock held
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * WHEEL_BITS;
+            if (delta < ((long) WHEEL_SIZE << shift) || level == LEVELS - 1) {
+                // Beyond the range of the top level, the task is simply cascaded again later
+                buckets[level][(int) ((timeout.deadlineTick >>> shift) & WHEEL_MASK)].add(timeout);
+                return;
+            }
+        }
+    }
+
+    private void drive() {
+        while (running) {
+            long targetTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+            synchronized (this) {
+                while (currentTick < targetTick)
+                    advance();
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Called with the lock held
+    private void advance() {
+        currentTick++;
+
+        // Cascade the upper levels whose lower wheel just wrapped around, from the top so
+        // that tasks cascaded into a level are cascaded again from it in the same tick
+        int topLevel = 0;
+        while (topLevel + 1 < LEVELS && (currentTick & ((1L << ((topLevel + 1) * WHEEL_BITS)) - 1)) == 0)
+            topLevel++;
+
+        for (int level = topLevel; level >= 1; level--) {
+            int shift = level * WHEEL_BITS;
+            ArrayDeque<Timeout> bucket = buckets[level][(int) ((currentTick >>> shift) & WHEEL_MASK)];
+            int size = bucket.size();
+            for (int i = 0; i < size; i++)
+                insert(bucket.poll());
+        }
+
+        ArrayDeque<Timeout> bucket = buckets[0][(int) (currentTick & WHEEL_MASK)];
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.poll();
+            if (timeout.deadlineTick > currentTick) {
+                insert(timeout); // Not due yet (was beyond the range of the wheel)
+                continue;
+            }
+
+            pending--;
+            if (!timeout.cancelled) {
+                try {
+                    executor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    LOG.error("Timing wheel task rejected: {}", e);
+                }
+            }
+        }
+    }
+
+    public static class Timeout {
+        private final long deadlineTick;
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+
+        private Timeout(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
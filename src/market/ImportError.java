@@ -0,0 +1,56 @@
+package market;
+
+
+import java.io.Serializable;
+
+/**
+ * Row of a bulk import refused by the market
+ */
+public class ImportError implements Serializable {
+    private static final long serialVersionUID = 4470918325237703915L;
+
+    private final long row;
+    private final RejectedException.Reason reason;
+    private final String message;
+
+    /**
+     * Constructor
+     * @param row number of the row in the import, from 0
+     * @param rejection why the row was refused
+     */
+    public ImportError(long row, RejectedException rejection) {
+        this.row = row;
+        this.reason = rejection.getReason();
+        this.message = rejection.getMessage();
+    }
+
+    public long getRow() {
+        return row;
+    }
+
+    public RejectedException.Reason getReason() {
+        return reason;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the same error at another row number (e.g. in the stream of a sharded import)
+     */
+    public ImportError atRow(long row) {
+        return new ImportError(row, reason, message);
+    }
+
+    private ImportError(long row, RejectedException.Reason reason, String message) {
+        this.row = row;
+        this.reason = reason;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return "Row " + row + ": " + message;
+    }
+}
@@ -0,0 +1,70 @@
+package market;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * One page of the listings of a seller, with the totals of all of them
+ */
+public class Inventory implements Serializable {
+    private static final long serialVersionUID = -6215373029180655294L;
+
+    private final ArrayList<Item> items;
+    private final int offset;
+    private final long nbListings;
+    private final long totalAmount;
+    private final double stockValue;
+
+    /**
+     * Constructor
+     * @param items listings of the page, by name then price
+     * @param offset position of the first listing of the page
+     * @param nbListings listings of the seller
+     * @param totalAmount items of the seller on the market
+     * @param stockValue sum of amount * price over the listings of the seller
+     */
+    public Inventory(ArrayList<Item> items, int offset, long nbListings, long totalAmount, double stockValue) {
+        this.items = items;
+        this.offset = offset;
+        this.nbListings = nbListings;
+        this.totalAmount = totalAmount;
+        this.stockValue = stockValue;
+    }
+
+    public ArrayList<Item> getItems() {
+        return items;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public long getNbListings() {
+        return nbListings;
+    }
+
+    public long getTotalAmount() {
+        return totalAmount;
+    }
+
+    public double getStockValue() {
+        return stockValue;
+    }
+
+    /**
+     * @return true if listings follow this page
+     */
+    public boolean hasMore() {
+        return offset + items.size() < nbListings;
+    }
+
+    @Override
+    public String toString() {
+        return "Inventory[" +
+                "listings : " + nbListings +
+                ", items : " + totalAmount +
+                ", stock value : $" + String.format("%.2f", stockValue) +
+                ']';
+    }
+}
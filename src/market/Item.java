@@ -11,15 +11,37 @@ import java.io.Serializable;
         ),
 
         @NamedQuery(
-                name = "FindItemsBySeller",
-                query = "SELECT i FROM Items i WHERE i.seller.username = :sellerName",
-                lockMode = LockModeType.PESSIMISTIC_FORCE_INCREMENT
+                name = "AllItemsToSellByKey",
+                query = "SELECT i FROM Items i WHERE i.amount > 0 ORDER BY i.itemKey.name, i.itemKey.price"
+        ),
+        @NamedQuery(
+                name = "BestAskForName",
+                query = "SELECT i FROM Items i WHERE i.itemKey.name = :name AND i.amount > 0 ORDER BY i.itemKey.price"
+        ),
+        @NamedQuery(
+                name = "ListingsOfSeller",
+                query = "SELECT i FROM Items i WHERE i.seller.username = :sellerName AND i.amount > 0 " +
+                        "ORDER BY i.itemKey.name, i.itemKey.price",
+                hints = @QueryHint(name = "eclipselink.read-only", value = "true")
+        ),
+        @NamedQuery(
+                name = "StockOfSeller",
+                query = "SELECT COUNT(i), SUM(i.amount), SUM(i.amount * i.itemKey.price) FROM Items i " +
+                        "WHERE i.seller.username = :sellerName AND i.amount > 0"
+        ),
+        @NamedQuery(
+                name = "DeleteItemsBySeller",
+                query = "DELETE FROM Items i WHERE i.seller = :seller"
         ),
         @NamedQuery(
                 name = "FindItemsToAck",
                 query = "SELECT i FROM Items i WHERE i.seller.username = :sellerName AND i.toAcknowledge > 0",
                 lockMode = LockModeType.PESSIMISTIC_FORCE_INCREMENT
         ),
+        @NamedQuery(
+                name = "FindExpiredItems",
+                query = "SELECT i FROM Items i WHERE i.expiresAt <= :now ORDER BY i.expiresAt"
+        ),
         @NamedQuery(
                 name = "UpdateAckItem",
                 query = "UPDATE Items i SET i.toAcknowledge = 0 WHERE i.seller.username = :sellerName AND i.toAcknowledge > 0"
@@ -28,6 +50,9 @@ import java.io.Serializable;
 
 
 @Entity(name = "Items")
+@Table(indexes = {
+        @Index(name = "ITEMS_EXPIRES_AT", columnList = "expires_at")
+})
 public class Item implements Serializable, Comparable<Item> {
 
     @EmbeddedId
@@ -40,6 +65,13 @@ public class Item implements Serializable, Comparable<Item> {
     private int amount = 0;
     private int toAcknowledge = 0; // Used to send callback (if the user is not connected when a item is sold)
 
+    // Time after which the listing is reclaimed by the reaper, null if it never expires
+    @Column(name = "expires_at")
+    private Long expiresAt;
+
+    @Transient
+    private long ttlMillis = 0; // Time to live requested by the seller, 0 if none
+
     @Version
     @Column(name = "PESSLOCK")
     private int versionNum;
@@ -62,6 +94,8 @@ public class Item implements Serializable, Comparable<Item> {
 
     public Item(Item item, User seller) {
         this(item.getName(), item.getPrice(), item.getAmount(), seller);
+        if (item.getTtlMillis() > 0)
+            this.expiresAt = System.currentTimeMillis() + item.getTtlMillis();
     }
 
     public ItemKey getItemKey() {
@@ -92,6 +126,33 @@ public class Item implements Serializable, Comparable<Item> {
         this.toAcknowledge = toAcknowledge;
     }
 
+    public Long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * More items put on an existing listing : the listing lives as long as the longest request
+     * @param ttlMillis time to live of the new request, 0 if none
+     */
+    public void extendExpiry(long ttlMillis) {
+        if (ttlMillis <= 0)
+            this.expiresAt = null;
+        else if (this.expiresAt != null)
+            this.expiresAt = Math.max(this.expiresAt, System.currentTimeMillis() + ttlMillis);
+    }
+
     public void setAmount(int amount) throws RejectedException {
         if (amount < 0)
             throw new RejectedException("Item amount update: Invalid amount");
@@ -0,0 +1,389 @@
+package market;
+
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * In-memory search index over the names of the items on the market.
+ *
+ * Each distinct name (case insensitive) gets an int id, and every trigram (3 consecutive
+ * characters) of the name a sorted posting list of ids. A substring query intersects the
+ * posting lists of its trigrams, smallest first, then checks and ranks the remaining
+ * candidates. Queries shorter than a trigram match the name prefixes, indexed by the
+ * trigrams overlapping the start of the names. Broad queries, whose smallest posting list is
+ * too long to intersect, check the names of that list directly. Either way a search visits every
+ * name of the smallest posting list of its query, and the cheapest listings of the matching
+ * ones : a query made of common trigrams (e.g. one or two letters) costs up to one check per
+ * name of the market, since the names are not ordered by price across the posting lists.
+ *
+ * The listings themselves live off heap in a ListingStore : each name only keeps the slots
+ * of its listings, sorted by price, so that millions of listings cost few objects.
+ *
+ * The index is fed with the catalog changes of the market, so it follows sell / buy /
+ * unregister / expiry like the read replicas do. Updates are serialized, lookups are lock free.
+ * Ids of names no longer listed stay in the posting lists until the next compaction, which
+ * renumbers the live names into new posting lists, built aside and swapped in at once.
+ */
+public class ItemSearchIndex {
+    private static final int GRAM = 3;
+    private static final String START = "\0\0"; // Marks the start of the names
+    private static final int MAX_INTERSECTED_NAMES = 8192; // Above, the smallest posting list is checked as is
+    private static final int MIN_COMPACTION = 1 << 16;
+
+    private static final Comparator<Hit> BY_PRICE = (h1, h2) -> {
+        int cmp = Float.compare(h1.price, h2.price);
+        return cmp != 0 ? cmp : Long.compare(h1.seq, h2.seq); // Oldest listing first
+    };
+
+    private final ConcurrentMap<String, NameEntry> entries = new ConcurrentHashMap<>(); // By lower case name
+    private final ListingStore store;
+    private volatile Generation ids = new Generation(1024); // Replaced as a whole by a compaction
+
+    // Only used by the updates, guarded by this
+    private int nextId = 0;
+
+    /**
+     * @param symbols item symbols, which identify the names of the listings in the store
+     */
+    public ItemSearchIndex(Supplier<SymbolTable> symbols) {
+        this.store = new ListingStore(symbols);
+    }
+
+    public synchronized void apply(CatalogChange change) {
+        switch (change.getType()) {
+            case ITEM:
+                if (change.getAmount() > 0)
+                    put(change.getName(), change.getPrice(), change.getAmount(), change.getSeller());
+                else
+                    remove(change.getName(), change.getPrice());
+                break;
+            case ITEM_REMOVED:
+                remove(change.getName(), change.getPrice());
+                break;
+            case SELLER_REMOVED:
+                removeSeller(change.getSeller());
+                break;
+            default:
+                break; // Users are not indexed
+        }
+
+        if (nextId > MIN_COMPACTION && nextId > 2 * entries.size())
+            compact();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        store.clear();
+        ids = new Generation(1024);
+        nextId = 0;
+    }
+
+    public int getNameCount() {
+        return entries.size();
+    }
+
+    public int getListingCount() {
+        return store.size();
+    }
+
+    /**
+     * @return every listing of the index, as catalog changes
+     */
+    public ArrayList<CatalogChange> snapshot() {
+        ArrayList<CatalogChange> items = new ArrayList<>(store.size());
+        store.scan(record -> items.add(CatalogChange.item(store.name(record.getNameId()), record.getPrice(),
+                record.getAmount(), store.seller(record.getSellerId()))));
+        return items;
+    }
+
+    /**
+     * @return every listing of the index, as items
+     */
+    public ArrayList<Item> getItems() {
+        ArrayList<Item> items = new ArrayList<>(store.size());
+        store.scan(record -> items.add(new Item(store.name(record.getNameId()), record.getPrice(),
+                record.getAmount())));
+        return items;
+    }
+
+    /**
+     * Items whose name contains the query, cheapest first
+     * @param query case insensitive, matches the name prefixes only when shorter than 3 characters
+     * @param limit maximum number of items returned
+     */
+    public ArrayList<Item> search(String query, int limit) {
+        if (query == null || query.isEmpty() || limit <= 0)
+            return new ArrayList<>();
+        String q = query.toLowerCase(Locale.ROOT);
+
+        // Names holding the trigrams of the query : rank the listings of those containing it
+        // Ids and postings read from the same generation, even across a compaction
+        Generation generation = ids;
+        int[] candidates = candidates(generation, q.length() < GRAM ? START.substring(q.length() - 1) + q : q,
+                MAX_INTERSECTED_NAMES);
+        List<NameEntry> matching = new ArrayList<>();
+        NameEntry[] byId = generation.entriesById;
+        for (int id : candidates) {
+            NameEntry entry = id < byId.length ? byId[id] : null;
+            if (entry != null && matches(entry.lowerName, q))
+                matching.add(entry);
+        }
+        return rank(matching, limit);
+    }
+
+    private static boolean matches(String lowerName, String q) {
+        return q.length() < GRAM ? lowerName.startsWith(q) : lowerName.contains(q);
+    }
+
+    private ArrayList<Item> rank(List<NameEntry> matching, int limit) {
+        // Max-heap on the price : only the limit cheapest listings are kept
+        PriorityQueue<Hit> cheapest = new PriorityQueue<>(limit + 1, BY_PRICE.reversed());
+        ListingStore.Record record = new ListingStore.Record();
+        for (NameEntry entry : matching)
+            collect(entry, record, cheapest, limit);
+
+        ArrayList<Item> result = new ArrayList<>(cheapest.size());
+        while (!cheapest.isEmpty())
+            result.add(cheapest.poll().item);
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Ids of the names holding all the trigrams of the query
+     * @return the ids of the smallest posting list, not intersected with the others, if it has
+     * more than maxIntersected of them
+     */
+    private static int[] candidates(Generation generation, String q, int maxIntersected) {
+        int nbGrams = q.length() - GRAM + 1;
+        int[][] lists = new int[nbGrams][];
+        int[] sizes = new int[nbGrams];
+        for (int i = 0; i < nbGrams; i++) {
+            Postings p = generation.postings.get(gram(q, i));
+            if (p == null)
+                return new int[0];
+            // Read the size first : the ids below it are already in the array
+            sizes[i] = p.size;
+            lists[i] = p.ids;
+        }
+
+        int smallest = 0;
+        for (int i = 1; i < nbGrams; i++) {
+            if (sizes[i] < sizes[smallest])
+                smallest = i;
+        }
+        if (sizes[smallest] > maxIntersected)
+            return Arrays.copyOf(lists[smallest], sizes[smallest]);
+
+        int[] candidates = new int[sizes[smallest]];
+        int n = 0;
+        for (int k = 0; k < sizes[smallest]; k++) {
+            int id = lists[smallest][k];
+            boolean inAll = true;
+            for (int i = 0; i < nbGrams && inAll; i++)
+                inAll = i == smallest || Arrays.binarySearch(lists[i], 0, sizes[i], id) >= 0;
+            if (inAll)
+                candidates[n++] = id;
+        }
+        return Arrays.copyOf(candidates, n);
+    }
+
+    private void collect(NameEntry entry, ListingStore.Record record, PriorityQueue<Hit> cheapest, int limit) {
+        // Listings of a name are sorted by price : stop as soon as they cannot enter the heap
+        for (int slot : entry.slots) {
+            if (!store.read(slot, record))
+                continue; // Removed meanwhile
+            String name = store.name(record.getNameId());
+            if (!name.equalsIgnoreCase(entry.lowerName))
+                continue; // Slot reused meanwhile by another name
+            Hit hit = new Hit(record.getPrice(), record.getSeq(), null);
+            if (cheapest.size() == limit && BY_PRICE.compare(hit, cheapest.peek()) >= 0)
+                break;
+            hit.item = new Item(name, record.getPrice(), record.getAmount());
+            cheapest.add(hit);
+            if (cheapest.size() > limit)
+                cheapest.poll();
+        }
+    }
+
+    // Called with the lock held
+    private void put(String name, float price, int amount, String seller) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        NameEntry entry = entries.get(lowerName);
+        if (entry == null) {
+            entry = new NameEntry(nextId++, lowerName);
+            index(ids, entry);
+        }
+
+        boolean listed = store.find(name, price) != ListingStore.NO_SLOT;
+        int slot = store.put(name, price, amount, seller);
+        if (!listed)
+            entry.insert(slot, price, store);
+
+        if (!listed && entry.slots.length == 1)
+            entries.put(lowerName, entry);
+    }
+
+    // Called with the lock held
+    private void remove(String name, float price) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        NameEntry entry = entries.get(lowerName);
+        if (entry == null)
+            return;
+        int slot = store.remove(name, price);
+        if (slot == ListingStore.NO_SLOT)
+            return;
+
+        entry.remove(slot);
+        if (entry.slots.length == 0) {
+            // The id stays in the postings until the next compaction
+            entries.remove(lowerName);
+            ids.entriesById[entry.id] = null;
+        }
+    }
+
+    // Called with the lock held
+    private void removeSeller(String seller) {
+        int sellerId = store.sellerId(seller);
+        if (sellerId < 0)
+            return;
+
+        // Unregistrations are rare : a scan of the store is cheaper than an index per seller
+        List<CatalogChange> listings = new ArrayList<>();
+        store.scan(record -> {
+            if (record.getSellerId() == sellerId)
+                listings.add(CatalogChange.itemRemoved(store.name(record.getNameId()), record.getPrice()));
+            return true;
+        });
+        for (CatalogChange listing : listings)
+            remove(listing.getName(), listing.getPrice());
+    }
+
+    // Called with the lock held
+    private static void index(Generation generation, NameEntry entry) {
+        NameEntry[] byId = generation.entriesById;
+        if (entry.id >= byId.length) {
+            byId = Arrays.copyOf(byId, byId.length * 2);
+            generation.entriesById = byId;
+        }
+        byId[entry.id] = entry;
+
+        // The name start markers index the prefixes shorter than a trigram
+        String marked = START + entry.lowerName;
+        for (int i = 0; i + GRAM <= marked.length(); i++) {
+            Postings p = generation.postings.computeIfAbsent(gram(marked, i), g -> new Postings());
+            p.add(entry.id); // Ids are increasing : the posting lists stay sorted
+        }
+    }
+
+    /**
+     * Renumber the live names once most ids are dead. The new ids and postings are built aside :
+     * the searches running meanwhile keep reading the old ones, until the swap.
+     */
+    private void compact() {
+        List<NameEntry> live = new ArrayList<>(entries.values());
+        live.sort(Comparator.comparingInt(e -> e.id));
+
+        Generation compacted = new Generation(Math.max(1024, Integer.highestOneBit(live.size()) * 2));
+        List<NameEntry> renumbered = new ArrayList<>(live.size());
+        for (NameEntry old : live) {
+            NameEntry entry = new NameEntry(renumbered.size(), old.lowerName);
+            entry.slots = old.slots;
+            index(compacted, entry);
+            renumbered.add(entry);
+        }
+        ids = compacted;
+        nextId = renumbered.size();
+        for (NameEntry entry : renumbered)
+            entries.put(entry.lowerName, entry);
+    }
+
+    private static long gram(String s, int from) {
+        long packed = ((long) s.charAt(from) << 32) | ((long) s.charAt(from + 1) << 16) | s.charAt(from + 2);
+        return packed * 0x9E3779B97F4A7C15L; // Bijective, spreads the bits over the hash of the Long keys
+    }
+
+    private static class NameEntry {
+        private final int id;
+        private final String lowerName;
+        private volatile int[] slots = new int[0]; // Copy on write, sorted by price then age
+
+        private NameEntry(int id, String lowerName) {
+            this.id = id;
+            this.lowerName = lowerName;
+        }
+
+        /**
+         * Insert the slot of a new listing, the most recent one : after the listings of the same price
+         */
+        private void insert(int slot, float price, ListingStore store) {
+            int[] current = slots;
+            ListingStore.Record record = new ListingStore.Record();
+            int at = current.length;
+            while (at > 0 && store.read(current[at - 1], record) && record.getPrice() > price)
+                at--;
+            int[] updated = new int[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, at);
+            updated[at] = slot;
+            System.arraycopy(current, at, updated, at + 1, current.length - at);
+            slots = updated;
+        }
+
+        private void remove(int slot) {
+            int[] current = slots;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == slot) {
+                    int[] updated = new int[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    slots = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ids of the names and the posting lists of their trigrams
+     */
+    private static class Generation {
+        private final ConcurrentMap<Long, Postings> postings = new ConcurrentHashMap<>();
+        private volatile NameEntry[] entriesById;
+
+        private Generation(int capacity) {
+            this.entriesById = new NameEntry[capacity];
+        }
+    }
+
+    private static class Postings {
+        private volatile int[] ids = new int[4];
+        private volatile int size = 0;
+
+        private void add(int id) {
+            int[] current = ids;
+            if (size > 0 && current[size - 1] == id)
+                return; // Trigram repeated in the name
+            if (size == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                ids = current;
+            }
+            current[size] = id;
+            size = size + 1; // Published after the id
+        }
+    }
+
+    private static class Hit {
+        private final float price;
+        private final long seq;
+        private Item item;
+
+        private Hit(float price, long seq, Item item) {
+            this.price = price;
+            this.seq = seq;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package market;
+
+
+import javax.persistence.*;
+
+/**
+ * Compact id of an item name, see SymbolTable
+ */
+@NamedQueries({
+        @NamedQuery(
+                name = "AllItemSymbols",
+                query = "SELECT s FROM ItemSymbol s ORDER BY s.id"
+        )
+})
+
+@Entity(name = "ItemSymbol")
+@Table(name = "ITEM_SYMBOLS", uniqueConstraints = @UniqueConstraint(name = "ITEM_SYMBOLS_NAME", columnNames = "name"))
+public class ItemSymbol {
+
+    @Id
+    @Column(name = "id", nullable = false)
+    private int id;
+
+    @Column(name = "name", nullable = false, updatable = false)
+    private String name;
+
+    public ItemSymbol() { }
+
+    public ItemSymbol(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
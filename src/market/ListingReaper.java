@@ -0,0 +1,145 @@
+package market;
+
+
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Background reaper of the dead listings.
+ *
+ * Expired listings, and sold out rows whose sale has been acknowledged by the seller, carry
+ * an expiry time. Each cycle walks the expires_at index in bounded batches, one short
+ * transaction per batch, so that the reaper never scans the whole Items table nor holds
+ * locks for long. An expired row whose sale is still to be acknowledged is only emptied :
+ * it is deleted once the seller has logged in again.
+ */
+public class ListingReaper {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ListingReaper.class);
+    private static final int DELETED = 0;
+    private static final int EMPTIED = 1;
+
+    private final Supplier<EntityManagerFactory> emFactory;
+    private final CatalogChangeLog changes;
+    private final Consumer<String> onRemoved;
+    private final int batchSize;
+    private final int maxBatches;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-listing-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor
+     * @param emFactory waits for the persistence unit to start
+     * @param changes change log of the market, receives the removed listings once committed
+     * @param onRemoved called with the name of each item whose listing was removed
+     * @param intervalMillis delay between two cycles
+     * @param batchSize rows reclaimed per transaction
+     * @param maxBatches batches per cycle, the remaining rows are left to the next cycle
+     */
+    public ListingReaper(Supplier<EntityManagerFactory> emFactory, CatalogChangeLog changes, Consumer<String> onRemoved,
+                         long intervalMillis, int batchSize, int maxBatches) {
+        this.emFactory = emFactory;
+        this.changes = changes;
+        this.onRemoved = onRemoved;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        scheduler.scheduleWithFixedDelay(this::cycle, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    private void cycle() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int[] counts = new int[2]; // Deleted, emptied
+        Set<String> names = new LinkedHashSet<>();
+
+        try {
+            for (int batch = 0; batch < maxBatches; batch++) {
+                if (reapBatch(now, names, counts) < batchSize)
+                    break;
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Listing reaper cycle failed: {}", e);
+        }
+
+        for (String name : names)
+            onRemoved.accept(name);
+
+        metrics.histogram("market.reaper.cycle").record(System.nanoTime() - start);
+        if (counts[DELETED] + counts[EMPTIED] > 0) {
+            metrics.counter("market.reaper.reclaimed").add(counts[DELETED]);
+            metrics.counter("market.reaper.emptied").add(counts[EMPTIED]);
+            LOG.info("Listing reaper deleted {} rows and emptied {} rows awaiting acknowledgement in {} ms",
+                    counts[DELETED], counts[EMPTIED], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @param counts incremented with the rows deleted and the rows emptied, once committed
+     * @return the number of expired rows handled
+     */
+    private int reapBatch(long now, Set<String> names, int[] counts) {
+        EntityManager em = emFactory.get().createEntityManager();
+        CatalogChangeLog.Reservation reservation = null;
+        try {
+            em.getTransaction().begin();
+
+            List<Item> expired = em.createNamedQuery("FindExpiredItems", Item.class).
+                    setParameter("now", now).setMaxResults(batchSize).getResultList();
+            int deleted = 0;
+            for (Item item : expired) {
+                if (item.getToAcknowledge() == 0) {
+                    em.remove(item);
+                    deleted++;
+                } else {
+                    // Keep the row until the seller knows about the sale
+                    try {
+                        item.setAmount(0);
+                    } catch (RejectedException e) {} // Not thrown for 0
+                    item.setExpiresAt(null);
+                }
+            }
+
+            em.flush();
+            List<CatalogChange> removed = new ArrayList<>(expired.size());
+            for (Item item : expired)
+                removed.add(CatalogChange.itemRemoved(item.getName(), item.getPrice()));
+            reservation = changes.reserve(removed);
+            em.getTransaction().commit();
+            changes.publish(reservation);
+            for (Item item : expired)
+                names.add(item.getName());
+            counts[DELETED] += deleted;
+            counts[EMPTIED] += expired.size() - deleted;
+            return expired.size();
+
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive())
+                em.getTransaction().rollback();
+            if (reservation != null)
+                changes.discard(reservation);
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package market;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Off-heap store of the listings of the market, so that millions of them cost neither heap
+ * nor GC time.
+ *
+ * Each listing is a fixed size record (32 bytes : version, name id, price, amount, seller id,
+ * sequence) in direct buffers of 64K records, allocated as the store grows; freed records are
+ * reused. A listing is found by its name and price through an open-addressing (linear probing)
+ * hash index of slots, itself in a direct buffer, which reads the keys from the records. Names
+ * are stored as their item symbols (see SymbolTable); only the distinct sellers stay on the heap.
+ *
+ * Writes are serialized by a StampedLock; reads are optimistic, and retried under the read
+ * lock when a write overlapped them. Scans copy the fields of each record into a reusable
+ * Record, holding the read lock one buffer at a time.
+ */
+public class ListingStore {
+    public static final int NO_SLOT = -1;
+    private static final int RECORD_SIZE = 32;
+    private static final int VERSION = 0;
+    private static final int NAME = 4;
+    private static final int PRICE = 8;
+    private static final int AMOUNT = 12;
+    private static final int SELLER = 16;
+    private static final int NEXT_FREE = 20;
+    private static final int SEQ = 24;
+    private static final int FREE = -1; // Name id of a free record
+    private static final int SEGMENT_SHIFT = 16; // 64K records (2 MB) per buffer
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+    private static final int INDEX_ENTRY_SIZE = 4; // Slot + 1, 0 if empty
+    private static final int MIN_INDEX_CAPACITY = 1024;
+
+    /**
+     * Fields of a listing, copied out of its record
+     */
+    public static final class Record {
+        private int slot;
+        private int nameId;
+        private float price;
+        private int amount;
+        private int sellerId;
+        private int version;
+        private long seq;
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public int getNameId() {
+            return nameId;
+        }
+
+        public float getPrice() {
+            return price;
+        }
+
+        public int getAmount() {
+            return amount;
+        }
+
+        public int getSellerId() {
+            return sellerId;
+        }
+
+        /**
+         * @return number of times the record was written, to detect changes between two reads
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return order of the listing, older first
+         */
+        public long getSeq() {
+            return seq;
+        }
+    }
+
+    public interface Visitor {
+        /**
+         * @return false to stop the scan
+         */
+        boolean visit(Record record);
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private final Supplier<SymbolTable> symbols;
+    private final Dictionary sellers = new Dictionary();
+
+    // Written under the write lock
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private ByteBuffer index = ByteBuffer.allocateDirect(MIN_INDEX_CAPACITY * INDEX_ENTRY_SIZE);
+    private int indexMask = MIN_INDEX_CAPACITY - 1;
+    private int highWater = 0; // Records ever used
+    private int freeHead = NO_SLOT;
+    private volatile int size = 0;
+    private long nextSeq = 0;
+
+    /**
+     * @param symbols item symbols, the name ids of the records
+     */
+    public ListingStore(Supplier<SymbolTable> symbols) {
+        this.symbols = symbols;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return name of a name id
+     */
+    public String name(int nameId) {
+        return symbols.get().name(nameId);
+    }
+
+    /**
+     * @return name of a seller id
+     */
+    public String seller(int sellerId) {
+        return sellers.get(sellerId);
+    }
+
+    /**
+     * @return id of a seller, -1 if the seller never listed anything
+     */
+    public int sellerId(String seller) {
+        return sellers.lookup(seller);
+    }
+
+    /**
+     * Remove every listing and give back the buffers
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            segments = new ByteBuffer[0];
+            index = ByteBuffer.allocateDirect(MIN_INDEX_CAPACITY * INDEX_ENTRY_SIZE);
+            indexMask = MIN_INDEX_CAPACITY - 1;
+            highWater = 0;
+            freeHead = NO_SLOT;
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Add a listing, or update the amount and the seller of the listing of that name and price
+     * @return slot of the listing
+     */
+    public int put(String name, float price, int amount, String seller) {
+        int nameId = symbols.get().intern(name); // Listed names are already interned, unless older than the symbols
+        long stamp = lock.writeLock();
+        try {
+            int sellerId = seller != null ? sellers.intern(seller) : FREE;
+            long key = key(nameId, price);
+            int slot = indexGet(key);
+            if (slot == NO_SLOT) {
+                slot = allocate();
+                ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+                int offset = offset(slot);
+                segment.putInt(offset + NAME, nameId);
+                segment.putFloat(offset + PRICE, price);
+                segment.putLong(offset + SEQ, nextSeq++);
+                indexPut(key, slot);
+                size++;
+            }
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = offset(slot);
+            segment.putInt(offset + AMOUNT, amount);
+            segment.putInt(offset + SELLER, sellerId);
+            segment.putInt(offset + VERSION, segment.getInt(offset + VERSION) + 1);
+            return slot;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove the listing of that name and price
+     * @return its former slot, NO_SLOT if there was none
+     */
+    public int remove(String name, float price) {
+        long stamp = lock.writeLock();
+        try {
+            int nameId = symbols.get().lookup(name);
+            if (nameId == SymbolTable.NO_SYMBOL)
+                return NO_SLOT;
+            int slot = indexRemove(key(nameId, price));
+            if (slot == NO_SLOT)
+                return NO_SLOT;
+
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = offset(slot);
+            segment.putInt(offset + NAME, FREE);
+            segment.putInt(offset + NEXT_FREE, freeHead);
+            segment.putInt(offset + VERSION, segment.getInt(offset + VERSION) + 1);
+            freeHead = slot;
+            size--;
+            return slot;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return slot of the listing of that name and price, NO_SLOT if none
+     */
+    public int find(String name, float price) {
+        int nameId = symbols.get().lookup(name);
+        if (nameId == SymbolTable.NO_SYMBOL)
+            return NO_SLOT;
+        long key = key(nameId, price);
+
+        long stamp = lock.tryOptimisticRead();
+        int slot;
+        try {
+            slot = indexGet(key);
+        } catch (RuntimeException e) {
+            slot = NO_SLOT; // Torn by a write, validation fails
+            stamp = 0;
+        }
+        if (lock.validate(stamp))
+            return slot;
+
+        stamp = lock.readLock();
+        try {
+            return indexGet(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copy the fields of a listing
+     * @return false if the slot holds no listing
+     */
+    public boolean read(int slot, Record into) {
+        long stamp = lock.tryOptimisticRead();
+        boolean live;
+        try {
+            live = copy(slot, into);
+        } catch (RuntimeException e) {
+            live = false; // Torn by a write, validation fails
+            stamp = 0;
+        }
+        if (lock.validate(stamp))
+            return live;
+
+        stamp = lock.readLock();
+        try {
+            return copy(slot, into);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the listing as an item, null if the slot holds no listing
+     */
+    public Item toItem(int slot) {
+        Record record = new Record();
+        return read(slot, record) ? new Item(name(record.nameId), record.price, record.amount) : null;
+    }
+
+    /**
+     * Visit every listing, in no particular order. Listings written during the scan may or
+     * may not be visited.
+     */
+    public void scan(Visitor visitor) {
+        Record record = new Record();
+        for (int first = 0; ; first += SEGMENT_MASK + 1) {
+            long stamp = lock.readLock();
+            try {
+                int end = Math.min(highWater, first + SEGMENT_MASK + 1);
+                if (first >= end)
+                    return;
+                for (int slot = first; slot < end; slot++) {
+                    if (copy(slot, record) && !visitor.visit(record))
+                        return;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    // Called with the write lock held
+    private int allocate() {
+        if (freeHead != NO_SLOT) {
+            int slot = freeHead;
+            freeHead = segments[slot >>> SEGMENT_SHIFT].getInt(offset(slot) + NEXT_FREE);
+            return slot;
+        }
+
+        int slot = highWater;
+        if (slot >>> SEGMENT_SHIFT == segments.length) {
+            ByteBuffer[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = ByteBuffer.allocateDirect(RECORD_SIZE << SEGMENT_SHIFT);
+            segments = grown;
+        }
+        highWater++;
+        return slot;
+    }
+
+    private boolean copy(int slot, Record into) {
+        if (slot < 0 || slot >= highWater)
+            return false;
+        ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+        int offset = offset(slot);
+        into.slot = slot;
+        into.nameId = segment.getInt(offset + NAME);
+        into.price = segment.getFloat(offset + PRICE);
+        into.amount = segment.getInt(offset + AMOUNT);
+        into.sellerId = segment.getInt(offset + SELLER);
+        into.version = segment.getInt(offset + VERSION);
+        into.seq = segment.getLong(offset + SEQ);
+        return into.nameId != FREE;
+    }
+
+    private static int offset(int slot) {
+        return (slot & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    // Index
+    private static long key(int nameId, float price) {
+        return ((long) nameId << 32) | (Float.floatToIntBits(price) & 0xFFFFFFFFL);
+    }
+
+    private static int home(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * Key of the listing of a slot : the index only holds the slots, the keys are in the records
+     */
+    private long keyOf(int slot) {
+        ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+        int offset = offset(slot);
+        return key(segment.getInt(offset + NAME), segment.getFloat(offset + PRICE));
+    }
+
+    private int indexGet(long key) {
+        ByteBuffer table = index;
+        int mask = table.capacity() / INDEX_ENTRY_SIZE - 1; // Consistent with the table, even when read optimistically
+        for (int i = home(key, mask); ; i = (i + 1) & mask) {
+            int slot = table.getInt(i * INDEX_ENTRY_SIZE) - 1;
+            if (slot == NO_SLOT || keyOf(slot) == key)
+                return slot;
+        }
+    }
+
+    // Called with the write lock held
+    private void indexPut(long key, int slot) {
+        if (4L * (size + 1) > 3L * (indexMask + 1))
+            resizeIndex((indexMask + 1) * 2);
+        int i = home(key, indexMask);
+        while (index.getInt(i * INDEX_ENTRY_SIZE) != 0)
+            i = (i + 1) & indexMask;
+        index.putInt(i * INDEX_ENTRY_SIZE, slot + 1);
+    }
+
+    // Called with the write lock held, before the record is freed
+    private int indexRemove(long key) {
+        int i = home(key, indexMask);
+        while (true) {
+            int slot = index.getInt(i * INDEX_ENTRY_SIZE) - 1;
+            if (slot == NO_SLOT)
+                return NO_SLOT;
+            if (keyOf(slot) == key) {
+                removeAt(i);
+                return slot;
+            }
+            i = (i + 1) & indexMask;
+        }
+    }
+
+    /**
+     * Backward shift deletion : moves back the entries of the probe sequence, so that no
+     * tombstone is needed
+     */
+    private void removeAt(int hole) {
+        int j = hole;
+        while (true) {
+            j = (j + 1) & indexMask;
+            int entry = index.getInt(j * INDEX_ENTRY_SIZE);
+            if (entry == 0)
+                break;
+            int k = home(keyOf(entry - 1), indexMask);
+            // Entry j may fill the hole if its home is not cyclically in (hole, j]
+            boolean movable = hole <= j ? (k <= hole || k > j) : (k <= hole && k > j);
+            if (movable) {
+                index.putInt(hole * INDEX_ENTRY_SIZE, entry);
+                hole = j;
+            }
+        }
+        index.putInt(hole * INDEX_ENTRY_SIZE, 0);
+    }
+
+    private void resizeIndex(int capacity) {
+        ByteBuffer old = index;
+        int oldCapacity = indexMask + 1;
+        index = ByteBuffer.allocateDirect(capacity * INDEX_ENTRY_SIZE);
+        indexMask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            int entry = old.getInt(i * INDEX_ENTRY_SIZE);
+            if (entry != 0) {
+                int j = home(keyOf(entry - 1), indexMask);
+                while (index.getInt(j * INDEX_ENTRY_SIZE) != 0)
+                    j = (j + 1) & indexMask;
+                index.putInt(j * INDEX_ENTRY_SIZE, entry);
+            }
+        }
+    }
+
+    /**
+     * Ids of the distinct sellers, kept on the heap
+     */
+    private static class Dictionary {
+        private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[256];
+        private int nextId = 0; // Written under the write lock of the store
+
+        private int lookup(String value) {
+            Integer id = ids.get(value);
+            return id != null ? id : FREE;
+        }
+
+        private String get(int id) {
+            String[] byId = values;
+            return id >= 0 && id < byId.length ? byId[id] : null;
+        }
+
+        // Called with the write lock held
+        private int intern(String value) {
+            Integer id = ids.get(value);
+            if (id != null)
+                return id;
+            String[] byId = values;
+            if (nextId == byId.length)
+                byId = Arrays.copyOf(byId, byId.length * 2);
+            byId[nextId] = value;
+            values = byId;
+            ids.put(value, nextId);
+            return nextId++;
+        }
+    }
+}
@@ -22,11 +22,96 @@ public interface Market extends Remote {
 
     void sell(Item item, Trader trader) throws RemoteException, RejectedException;
 
+    /**
+     * Sell at most once per request id : a retry with the same id gets the outcome of the first call
+     * @param requestId unique id chosen by the client (e.g. a UUID), null for no deduplication
+     */
+    void sell(Item item, Trader trader, String requestId) throws RemoteException, RejectedException;
+
     void buy(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException;
 
+    /**
+     * Buy at most once per request id : a retry with the same id gets the outcome of the first call
+     * @param requestId unique id chosen by the client (e.g. a UUID), null for no deduplication
+     */
+    void buy(Item item, Trader trader, String requestId)
+            throws RemoteException, RejectedException, bank.RejectedException;
+
     void wish(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException;
 
     ArrayList<Item> getAllItems() throws RemoteException;
 
     ArrayList<String> getStats(String username) throws RemoteException, RejectedException;
+
+    /**
+     * Listings of the trader, without locking them
+     * @param trader logged in seller
+     * @param offset position of the first listing returned, by name then price
+     * @param limit maximum number of listings returned
+     * @return the page, with the number of listings, items and stock value of the seller
+     */
+    Inventory getMyItems(Trader trader, int offset, int limit) throws RemoteException, RejectedException;
+
+    /**
+     * Executions of the trader, as buyer or seller, latest first
+     * @param trader logged in trader
+     * @param beforeTime time of the last execution of the previous page, Long.MAX_VALUE for the first page
+     * @param beforeId id of the last execution of the previous page, Long.MAX_VALUE for the first page
+     * @param limit maximum number of executions returned
+     */
+    ArrayList<TradeRecord> getTradeHistory(Trader trader, long beforeTime, long beforeId, int limit)
+            throws RemoteException, RejectedException;
+
+    /**
+     * Open a bulk import of listings for the trader : the rows are then sent by chunks to the
+     * returned session, and listed as by sell()
+     * @param trader logged in seller, with an account at the bank
+     */
+    CatalogImport openImport(Trader trader) throws RemoteException, RejectedException;
+
+    /**
+     * Open a bulk export of the listings, by name then price
+     * @param trader logged in seller whose listings are exported, null for the whole catalog
+     */
+    CatalogExport openExport(Trader trader) throws RemoteException, RejectedException;
+
+    /**
+     * Search the items whose name contains the query (prefix only under 3 characters)
+     * @param query case insensitive part of the item name
+     * @param limit maximum number of items returned
+     * @return the matching items, cheapest first
+     */
+    ArrayList<Item> searchItems(String query, int limit) throws RemoteException;
+
+    /**
+     * Price history of an item
+     * @param itemName
+     * @param from start of the range (ms since the epoch)
+     * @param to end of the range (ms since the epoch)
+     * @param resolution period of the bars
+     * @return the bars of the periods with trades, oldest first
+     */
+    ArrayList<PriceBar> getPriceHistory(String itemName, long from, long to, PriceBar.Resolution resolution)
+            throws RemoteException;
+
+    void subscribe(MarketDataListener listener, ArrayList<String> itemNames) throws RemoteException;
+
+    void unsubscribe(MarketDataListener listener) throws RemoteException;
+
+    /**
+     * Open a timed auction on a lot of items
+     * @param item name, start price per item and number of items of the lot
+     * @param durationMillis
+     * @param trader seller
+     */
+    void startAuction(Item item, long durationMillis, Trader trader) throws RemoteException, RejectedException;
+
+    /**
+     * Bid on the open auction of an item
+     * @param item name and price per item offered
+     * @param trader bidder
+     */
+    void bid(Item item, Trader trader) throws RemoteException, RejectedException;
+
+    ArrayList<AuctionInfo> getAuctions() throws RemoteException;
 }
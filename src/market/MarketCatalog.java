@@ -0,0 +1,23 @@
+package market;
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+/**
+ * Read-only queries served by a market read replica.
+ * Reads are rejected when the replica is staler than its configured bound, so that
+ * clients can fall back to the primary market.
+ */
+public interface MarketCatalog extends Remote {
+
+    ArrayList<Item> getAllItems() throws RemoteException, RejectedException;
+
+    ArrayList<String> getStats(String username) throws RemoteException, RejectedException;
+
+    /**
+     * @return milliseconds since the replica was last known to be up to date with the primary
+     */
+    long getStalenessMillis() throws RemoteException;
+}
@@ -0,0 +1,228 @@
+package market;
+
+
+import client.Trader;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary checkpoint of the in-memory state of a market : sessions, wishes and a snapshot of
+ * the catalog. The file is written next to the previous one, synced, then atomically renamed
+ * over it, so a crash leaves either the old or the new checkpoint. A CRC32 trailer detects
+ * truncated files.
+ *
+ * Traders are written once, as serialized RMI stubs : they are still valid after a restart
+ * of the market as long as the clients are alive, dead ones are dropped at the first call.
+ */
+public class MarketCheckpoint {
+    private static final int MAGIC = 0x4d4b4350; // MKCP
+    private static final int VERSION = 1;
+
+    private final long time;
+    private final Map<String, Trader> sessions;
+    private final Map<String, Trader> traders;
+    private final Map<String, List<Item>> wishes;
+    private final List<CatalogChange> catalog;
+
+    /**
+     * Constructor
+     * @param time
+     * @param sessions logged in traders by name
+     * @param traders stubs of the traders having wishes, by name
+     * @param wishes wishes of each trader
+     * @param catalog items on the market
+     */
+    public MarketCheckpoint(long time, Map<String, Trader> sessions, Map<String, Trader> traders,
+                            Map<String, List<Item>> wishes, List<CatalogChange> catalog) {
+        this.time = time;
+        this.sessions = sessions;
+        this.traders = traders;
+        this.wishes = wishes;
+        this.catalog = catalog;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public Map<String, Trader> getSessions() {
+        return sessions;
+    }
+
+    public Map<String, Trader> getTraders() {
+        return traders;
+    }
+
+    public Map<String, List<Item>> getWishes() {
+        return wishes;
+    }
+
+    public List<CatalogChange> getCatalog() {
+        return catalog;
+    }
+
+    public void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile())) {
+            BufferedOutputStream buffered = new BufferedOutputStream(fileOut, 1 << 16);
+            CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(time);
+
+            // Traders, referenced by index afterwards. Traders which are not remote objects
+            // (in-process ones) cannot outlive the market and are left out
+            Map<String, byte[]> stubs = new LinkedHashMap<>();
+            Map<String, Trader> allTraders = new LinkedHashMap<>(sessions);
+            allTraders.putAll(traders);
+            for (Map.Entry<String, Trader> entry : allTraders.entrySet()) {
+                byte[] stub = serialize(entry.getValue());
+                if (stub != null)
+                    stubs.put(entry.getKey(), stub);
+            }
+
+            Map<String, Integer> traderIndex = new HashMap<>();
+            out.writeInt(stubs.size());
+            for (Map.Entry<String, byte[]> entry : stubs.entrySet()) {
+                traderIndex.put(entry.getKey(), traderIndex.size());
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+
+            List<String> savedSessions = new ArrayList<>(sessions.keySet());
+            savedSessions.retainAll(stubs.keySet());
+            out.writeInt(savedSessions.size());
+            for (String name : savedSessions)
+                out.writeInt(traderIndex.get(name));
+
+            Map<String, List<Item>> savedWishes = new LinkedHashMap<>(wishes);
+            savedWishes.keySet().retainAll(stubs.keySet());
+            out.writeInt(savedWishes.size());
+            for (Map.Entry<String, List<Item>> entry : savedWishes.entrySet()) {
+                out.writeInt(traderIndex.get(entry.getKey()));
+                out.writeInt(entry.getValue().size());
+                for (Item item : entry.getValue()) {
+                    out.writeUTF(item.getName());
+                    out.writeFloat(item.getPrice());
+                    out.writeInt(item.getAmount());
+                }
+            }
+
+            out.writeInt(catalog.size());
+            for (CatalogChange item : catalog) {
+                out.writeUTF(item.getName());
+                out.writeFloat(item.getPrice());
+                out.writeInt(item.getAmount());
+                out.writeUTF(item.getSeller());
+            }
+
+            out.flush();
+            new DataOutputStream(buffered).writeLong(checked.getChecksum().getValue());
+            buffered.flush();
+            fileOut.getFD().sync();
+        }
+
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the checkpoint, null if there is none
+     * @throws IOException if the checkpoint is corrupted
+     */
+    public static MarketCheckpoint read(Path file) throws IOException {
+        if (!Files.exists(file))
+            return null;
+
+        try (BufferedInputStream buffered = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a market checkpoint: " + file);
+            long time = in.readLong();
+
+            int nbTraders = in.readInt();
+            List<String> names = new ArrayList<>(nbTraders);
+            List<Trader> stubs = new ArrayList<>(nbTraders);
+            for (int i = 0; i < nbTraders; i++) {
+                names.add(in.readUTF());
+                byte[] stub = new byte[in.readInt()];
+                in.readFully(stub);
+                stubs.add(deserialize(stub));
+            }
+
+            Map<String, Trader> sessions = new HashMap<>();
+            int nbSessions = in.readInt();
+            for (int i = 0; i < nbSessions; i++) {
+                int index = in.readInt();
+                sessions.put(names.get(index), stubs.get(index));
+            }
+
+            Map<String, Trader> traders = new HashMap<>();
+            Map<String, List<Item>> wishes = new HashMap<>();
+            int nbWishers = in.readInt();
+            for (int i = 0; i < nbWishers; i++) {
+                int index = in.readInt();
+                int nbWishes = in.readInt();
+                List<Item> items = new ArrayList<>(nbWishes);
+                for (int j = 0; j < nbWishes; j++)
+                    items.add(new Item(in.readUTF(), in.readFloat(), in.readInt()));
+                traders.put(names.get(index), stubs.get(index));
+                wishes.put(names.get(index), items);
+            }
+
+            int nbItems = in.readInt();
+            List<CatalogChange> catalog = new ArrayList<>(nbItems);
+            for (int i = 0; i < nbItems; i++)
+                catalog.add(CatalogChange.item(in.readUTF(), in.readFloat(), in.readInt(), in.readUTF()));
+
+            long checksum = checked.getChecksum().getValue();
+            if (new DataInputStream(buffered).readLong() != checksum)
+                throw new IOException("Corrupted market checkpoint: " + file);
+
+            return new MarketCheckpoint(time, sessions, traders, wishes, catalog);
+        } catch (EOFException e) {
+            throw new IOException("Truncated market checkpoint: " + file, e);
+        }
+    }
+
+    /**
+     * @return the serialized stub of the trader, null if it is not a remote object
+     */
+    private static byte[] serialize(Trader trader) throws IOException {
+        Remote stub;
+        try {
+            stub = RemoteObject.toStub(trader);
+        } catch (NoSuchObjectException e) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(stub);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Trader deserialize(byte[] stub) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stub))) {
+            return (Trader) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown trader class in the checkpoint", e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package market;
+
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event of the market data feed : a trade print or a best-ask update on an item name.
+ * Events are shipped to the subscribers as compact binary frames.
+ */
+public class MarketDataEvent {
+    public static final byte TRADE = 1;
+    public static final byte QUOTE = 2;
+
+    private final byte type;
+    private final String name;
+    private final float price;
+    private final int amount;
+    private final long timestamp;
+
+    public MarketDataEvent(byte type, String name, float price, int amount, long timestamp) {
+        this.type = type;
+        this.name = name;
+        this.price = price;
+        this.amount = amount;
+        this.timestamp = timestamp;
+    }
+
+    public static MarketDataEvent trade(String name, float price, int amount) {
+        return new MarketDataEvent(TRADE, name, price, amount, System.currentTimeMillis());
+    }
+
+    /**
+     * Best ask update. A price of 0 and an amount of 0 means nothing is left to buy.
+     */
+    public static MarketDataEvent quote(String name, float price, int amount) {
+        return new MarketDataEvent(QUOTE, name, price, amount, System.currentTimeMillis());
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float getPrice() {
+        return price;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Merge a newer event on the same item into this one.
+     * Trades add their volume and keep the last price, quotes are simply replaced.
+     */
+    MarketDataEvent conflate(MarketDataEvent newer) {
+        if (type == TRADE)
+            return new MarketDataEvent(TRADE, name, newer.price, amount + newer.amount, newer.timestamp);
+        return newer;
+    }
+
+    // Binary frame : [count] then [type, name, price, amount, timestamp] per event
+    public static byte[] encode(List<MarketDataEvent> events) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + events.size() * 32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(events.size());
+            for (MarketDataEvent e : events) {
+                out.writeByte(e.type);
+                out.writeUTF(e.name);
+                out.writeFloat(e.price);
+                out.writeInt(e.amount);
+                out.writeLong(e.timestamp);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Cannot happen on a byte array
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<MarketDataEvent> decode(byte[] frame) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame))) {
+            int count = in.readInt();
+            List<MarketDataEvent> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                events.add(new MarketDataEvent(in.readByte(), in.readUTF(), in.readFloat(),
+                        in.readInt(), in.readLong()));
+            return events;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed market data frame", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (type == TRADE)
+            return "Trade[" + name + " : " + amount + " @ $" + price + ']';
+        if (amount == 0)
+            return "Quote[" + name + " : no ask]";
+        return "Quote[" + name + " : best ask $" + price + ", amount : " + amount + ']';
+    }
+}
@@ -0,0 +1,212 @@
+package market;
+
+
+import logging.AsyncLogger;
+
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Market data feed : dispatches trade prints and best-ask updates to the subscribers
+ * of an item name.
+ *
+ * Publishing never blocks the trade path : events are queued per subscriber and shipped
+ * in batches by a small dispatcher pool. When a subscriber falls behind, its pending
+ * events are conflated per item (trades add up their volume, quotes keep the last one)
+ * so that its backlog stays bounded by the number of item names it watches. Once conflation
+ * started, newer trades are conflated too until the conflated ones are shipped, so that the
+ * prints reach the subscriber in order.
+ *
+ * Best asks are looked up by the dispatcher too (refreshQuote) : refreshes requested while one
+ * is waiting for the same item are merged into it.
+ */
+public class MarketDataFeed {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(MarketDataFeed.class);
+    private static final int DEFAULT_MAX_PENDING = 1024;
+    private static final int DEFAULT_MAX_BATCH = 4096;
+
+    private final ConcurrentMap<String, Set<Subscription>> subscriptionsByName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<MarketDataListener, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Set<String> quotesToRefresh = ConcurrentHashMap.newKeySet();
+    private final ExecutorService dispatcher;
+    private final int maxPending;
+    private final int maxBatch;
+
+    public MarketDataFeed() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_MAX_PENDING, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Constructor
+     * @param dispatcherThreads number of threads shipping frames to the subscribers
+     * @param maxPending number of events queued for a subscriber before conflation starts
+     * @param maxBatch maximum number of events in a single frame
+     */
+    public MarketDataFeed(int dispatcherThreads, int maxPending, int maxBatch) {
+        this.maxPending = maxPending;
+        this.maxBatch = maxBatch;
+        this.dispatcher = Executors.newFixedThreadPool(dispatcherThreads, r -> {
+            Thread t = new Thread(r, "market-data-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void subscribe(MarketDataListener listener, Collection<String> itemNames) {
+        Subscription subscription = subscriptions.computeIfAbsent(listener, Subscription::new);
+        for (String name : itemNames) {
+            subscription.names.add(name);
+            subscriptionsByName.computeIfAbsent(name, n -> new CopyOnWriteArraySet<>()).add(subscription);
+        }
+    }
+
+    public void unsubscribe(MarketDataListener listener) {
+        Subscription subscription = subscriptions.remove(listener);
+        if (subscription == null)
+            return;
+
+        for (String name : subscription.names) {
+            Set<Subscription> subscribers = subscriptionsByName.get(name);
+            if (subscribers != null)
+                subscribers.remove(subscription);
+        }
+    }
+
+    /**
+     * Cheap check used by the market to skip computing a best ask nobody is watching
+     */
+    public boolean hasSubscribers(String itemName) {
+        Set<Subscription> subscribers = subscriptionsByName.get(itemName);
+        return subscribers != null && !subscribers.isEmpty();
+    }
+
+    public void publishTrade(String itemName, float price, int amount) {
+        publish(MarketDataEvent.trade(itemName, price, amount));
+    }
+
+    public void publishQuote(String itemName, float bestAsk, int amount) {
+        publish(MarketDataEvent.quote(itemName, bestAsk, amount));
+    }
+
+    /**
+     * Looks up the best ask of an item, on a dispatcher thread
+     */
+    public interface QuoteSource {
+        /**
+         * @return the best ask of the item, null if nothing is left to buy
+         */
+        Item bestAsk(String itemName);
+    }
+
+    /**
+     * Publish the best ask of an item, looked up by the dispatcher : the caller never waits for it
+     */
+    public void refreshQuote(String itemName, QuoteSource source) {
+        if (!hasSubscribers(itemName) || !quotesToRefresh.add(itemName))
+            return; // Nobody watching, or a refresh not started yet will see the change
+
+        dispatcher.execute(() -> {
+            quotesToRefresh.remove(itemName);
+            try {
+                Item ask = source.bestAsk(itemName);
+                if (ask == null)
+                    publishQuote(itemName, 0f, 0);
+                else
+                    publishQuote(itemName, ask.getPrice(), ask.getAmount());
+            } catch (RuntimeException e) {
+                LOG.error("Best ask of {} not published: {}", itemName, e);
+            }
+        });
+    }
+
+    private void publish(MarketDataEvent event) {
+        Set<Subscription> subscribers = subscriptionsByName.get(event.getName());
+        if (subscribers == null)
+            return;
+
+        for (Subscription subscription : subscribers) {
+            subscription.offer(event);
+        }
+    }
+
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private class Subscription implements Runnable {
+        private final MarketDataListener listener;
+        private final Set<String> names = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // Guarded by this
+        private List<MarketDataEvent> pending = new ArrayList<>();
+        private final Map<String, MarketDataEvent> conflatedTrades = new LinkedHashMap<>();
+        private final Map<String, MarketDataEvent> quotes = new LinkedHashMap<>();
+
+        private Subscription(MarketDataListener listener) {
+            this.listener = listener;
+        }
+
+        private void offer(MarketDataEvent event) {
+            synchronized (this) {
+                if (event.getType() == MarketDataEvent.QUOTE) {
+                    // Only the latest best ask matters
+                    quotes.put(event.getName(), event);
+                } else if (pending.size() < maxPending && conflatedTrades.isEmpty()) {
+                    pending.add(event);
+                } else {
+                    // Slow subscriber : conflate the trades per item, after the pending ones
+                    MarketDataEvent previous = conflatedTrades.get(event.getName());
+                    conflatedTrades.put(event.getName(), previous == null ? event : previous.conflate(event));
+                }
+            }
+
+            if (scheduled.compareAndSet(false, true))
+                dispatcher.execute(this);
+        }
+
+        @Override
+        public void run() {
+            List<MarketDataEvent> batch;
+            synchronized (this) {
+                batch = drain();
+            }
+
+            try {
+                if (!batch.isEmpty())
+                    listener.onMarketData(MarketDataEvent.encode(batch));
+            } catch (RemoteException e) {
+                // Subscriber is gone
+                unsubscribe(listener);
+                return;
+            }
+
+            scheduled.set(false);
+            boolean more;
+            synchronized (this) {
+                more = !pending.isEmpty() || !conflatedTrades.isEmpty() || !quotes.isEmpty();
+            }
+            if (more && scheduled.compareAndSet(false, true))
+                dispatcher.execute(this);
+        }
+
+        private List<MarketDataEvent> drain() {
+            if (pending.size() > maxBatch) {
+                // Keep the prints in order : conflated trades and quotes go with the last batch
+                List<MarketDataEvent> batch = new ArrayList<>(pending.subList(0, maxBatch));
+                pending = new ArrayList<>(pending.subList(maxBatch, pending.size()));
+                return batch;
+            }
+
+            List<MarketDataEvent> batch = pending;
+            pending = new ArrayList<>();
+            batch.addAll(conflatedTrades.values());
+            conflatedTrades.clear();
+            batch.addAll(quotes.values());
+            quotes.clear();
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package market;
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote subscriber of the market data feed.
+ * Each call delivers one frame of events encoded by MarketDataEvent.encode
+ */
+public interface MarketDataListener extends Remote {
+
+    void onMarketData(byte[] frame) throws RemoteException;
+}
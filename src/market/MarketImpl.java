@@ -5,25 +5,106 @@ import bank.Account;
 import bank.Bank;
 import client.Trader;
 import com.sun.org.apache.regexp.internal.RE;
+import logging.AsyncLogger;
+import market.AdmissionControl.Priority;
+import market.RejectedException.Reason;
+import metrics.MetricsRegistry;
+import metrics.PhaseTimer;
+import metrics.PhaseTimer.Phase;
+import org.eclipse.persistence.queries.CursoredStream;
+import idempotency.RequestCache;
+import persistence.PersistenceConfig;
+import startup.StartupPipeline;
 
 import javax.persistence.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.*;
 
-public class MarketImpl extends UnicastRemoteObject implements Market {
+public class MarketImpl extends UnicastRemoteObject implements Market, CatalogSource {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(MarketImpl.class);
     private static final String BANK = "Nordea";
     private static final int DEFAULT_LOCAL_REGISTRY_PORT_NUMBER = 1099;
-
-    private Map<String, Trader> loggedIn = new HashMap<>();
-    private AbstractMap<Item, Trader> wishList = new ConcurrentSkipListMap<>();
+    private static final String DEFAULT_DATABASE = "market";
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    static final int MAX_INVENTORY_PAGE = 1000;
+    private static final int MAX_TRADE_PAGE = 1000;
+    private static final int IMPORT_BATCH_SIZE = Integer.getInteger("marketplace.import.batchSize", 1000);
+    private static final int EXPORT_FETCH_SIZE = 1000;
+    private static final int EXPORT_MAX_SESSIONS = Integer.getInteger("marketplace.export.maxSessions", 64);
+    private static final int EXPORT_MAX_SESSIONS_PER_TRADER =
+            Integer.getInteger("marketplace.export.maxSessionsPerTrader", 2);
+    private static final long EXPORT_IDLE_TIMEOUT = Long.getLong("marketplace.export.idleTimeout", 5 * 60 * 1000);
+    private static final Object LOCAL_CALLER = new Object();
+    private static final long BANK_LOOKUP_INITIAL_DELAY = 100;
+    private static final long BANK_LOOKUP_MAX_DELAY = 10 * 1000;
+    private static final int SETTLEMENT_ATTEMPTS = 5;
+    private static final int REBUILD_PAGE_SIZE = 10000;
+    private static final long SETTLEMENT_RETRY_DELAY = 1000;
+    private static final long SETTLEMENT_MAX_RETRY_DELAY = 60 * 1000;
+    private static final long BANK_WAIT_MILLIS = Long.getLong("marketplace.bank.wait", 10 * 1000);
+    private static final int MAX_UNLISTED_WISHES = Integer.getInteger("marketplace.wishes.maxUnlisted", 10000);
+
+    private Map<String, Trader> loggedIn = new ConcurrentHashMap<>();
+    // Wishes on each item name, by symbol : ordered by price, at most one per price
+    private final SymbolTable.PerSymbol<ConcurrentSkipListMap<Item, Trader>> wishList = new SymbolTable.PerSymbol<>();
+    // Wishes on the names never listed, by name, until a sell or an import gives the name its symbol.
+    // Changed under its own lock, at most MAX_UNLISTED_WISHES names
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Item, Trader>> unlistedWishes = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Set<Item>> wishesByTrader = new ConcurrentHashMap<>(); // Wishes of each trader
+    private MarketDataFeed feed = new MarketDataFeed();
+    private final CatalogChangeLog changeLog = new CatalogChangeLog(change -> this.searchIndex.apply(change));
+    private volatile ItemSearchIndex searchIndex = new ItemSearchIndex(this::symbols);
+    // Changes of the open transactions, published once committed
+    private final Map<EntityManager, List<CatalogChangeLog.Reservation>> uncommittedChanges = new ConcurrentHashMap<>();
+    private boolean searchIndexFromDatabase = false; // Guarded by searchIndexLock
+    private final Object searchIndexLock = new Object();
+    private final AuctionHouse auctionHouse = new AuctionHouse(this::settleAuction);
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final AdmissionControl admission = new AdmissionControl();
+    private final RequestCache requests = new RequestCache(
+            Integer.getInteger("marketplace.idempotency.maxRequests", 100000),
+            Long.getLong("marketplace.idempotency.ttl", 10 * 60 * 1000));
+    private final ListingReaper reaper;
+    private final TradeLog trades;
+    private final CompletableFuture<PriceHistory> history;
     private String bankname;
-    Bank bankobj;
-
-    private EntityManagerFactory emFactory;
+    private final CompletableFuture<Bank> bank;
+
+    private final CompletableFuture<EntityManagerFactory> emFactory;
+    private final CompletableFuture<SymbolTable> symbols;
+    private final CompletableFuture<Void> wishesRestored;
+    private final CompletableFuture<Void> started;
+    private final Path checkpointFile;
+    private final ScheduledExecutorService settlements = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-settlement");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    // Each export holds an entity manager, a connection and a cursor : bounded, and closed when idle
+    private final Set<CatalogExportSession> exportSessions = ConcurrentHashMap.newKeySet();
+    private final Map<Object, Integer> exportsByOwner = new HashMap<>(); // Guarded by itself
+    private int nbExports = 0; // Guarded by exportsByOwner
+    private final ScheduledExecutorService exportSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-export-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
      * Default constructor
@@ -41,50 +122,255 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
      * @throws RemoteException
      */
     public MarketImpl(String bankName, int bankPort) throws RemoteException {
-        super(); // To export the servant class
+        this(bankName, bankPort, DEFAULT_DATABASE);
+    }
 
-        // Create the Entity Manage Factory used to create the Entity Manager
-        emFactory = Persistence.createEntityManagerFactory("market");
+    /**
+     * Constructor of a market node backed by its own database (e.g. one shard of a sharded market)
+     * @param bankName
+     * @param bankPort
+     * @param databaseName Derby database of the "market" persistence unit
+     * @throws RemoteException
+     */
+    public MarketImpl(String bankName, int bankPort, String databaseName) throws RemoteException {
+        super(); // To export the servant class
 
-        // We get the reference on the remote bank object
         this.bankname = bankName;
+
+        // Persistence, price history and bank connection start concurrently, while the last
+        // checkpoint restores the in-memory state : the market is bound right away and the
+        // calls needing the database or the bank wait for them
+        StartupPipeline startup = new StartupPipeline("market");
+        CompletableFuture<EntityManagerFactory> persistence = startup.start("persistence",
+                () -> PersistenceConfig.createEntityManagerFactory("market", databaseName));
+        startup.then("warmup", persistence, factory -> {
+            PersistenceConfig.warmUp(factory, Integer.getInteger("marketplace.startup.warmConnections", 4),
+                    warmUpQueries());
+            return factory;
+        });
+        symbols = startup.then("symbols", persistence, SymbolTable::new);
+        startup.then("settlements", persistence, factory -> {
+            resumeSettlements(factory);
+            return null;
+        });
+        emFactory = startup.then("searchIndex", persistence, factory -> {
+            rebuildSearchIndex(factory);
+            return factory;
+        });
+        history = startup.start("history", () -> new PriceHistory(
+                Paths.get(System.getProperty("marketplace.history.dir", "history"), databaseName),
+                Integer.getInteger("marketplace.history.queue", 65536), historyRetention()));
+        CompletableFuture<Registry> registry = startup.start("registry", () -> locateRegistry(bankPort));
+        bank = startup.then("bank", registry, r -> StartupPipeline.retry("Lookup of bank " + bankName,
+                () -> (Bank) r.lookup(bankName), BANK_LOOKUP_INITIAL_DELAY, BANK_LOOKUP_MAX_DELAY));
+        bank.thenRun(() -> LOG.info("Connected to bank: {}", bankname));
+
+        checkpointFile = Paths.get(System.getProperty("marketplace.checkpoint.dir", "checkpoints"),
+                databaseName + ".ckpt");
+        MarketCheckpoint checkpoint = startup.start("checkpoint", this::restoreCheckpoint).
+                join(); // Before serving, so that the restored state does not overwrite new sessions
+        startup.then("catalog", symbols, table -> {
+            restoreCatalog(checkpoint);
+            return null;
+        });
+        wishesRestored = startup.then("wishes", symbols, table -> {
+            restoreWishes(checkpoint);
+            return null;
+        });
+        startup.finish();
+
+        long checkpointInterval = Long.getLong("marketplace.checkpoint.interval", 30);
+        if (checkpointInterval > 0)
+            checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval,
+                    TimeUnit.SECONDS);
+
+        if (EXPORT_IDLE_TIMEOUT > 0) {
+            long sweepInterval = Math.max(1000, EXPORT_IDLE_TIMEOUT / 4);
+            exportSweeper.scheduleWithFixedDelay(this::closeIdleExports, sweepInterval, sweepInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        reaper = new ListingReaper(this::emFactory, changeLog, this::publishBestAsk,
+                Long.getLong("marketplace.reaper.interval", 60 * 1000),
+                Integer.getInteger("marketplace.reaper.batchSize", 500),
+                Integer.getInteger("marketplace.reaper.maxBatches", 20));
+
+        trades = new TradeLog(this::emFactory,
+                Paths.get(System.getProperty("marketplace.trades.archiveDir", "trades"), databaseName),
+                Integer.getInteger("marketplace.trades.queue", 65536),
+                Integer.getInteger("marketplace.trades.batchSize", 500),
+                Integer.getInteger("marketplace.trades.retentionDays", 30),
+                Long.getLong("marketplace.trades.archiveInterval", 60 * 60 * 1000));
+
+        // Without its database the market could only fail its calls : it stops instead
+        started = persistence.handle((factory, e) -> {
+            if (e == null)
+                return null;
+            LOG.error("Market stopped, its persistence unit failed to start: {}", e);
+            shutdown();
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        });
+    }
+
+    /**
+     * @return completed once the persistence unit has started, exceptionally (the market
+     * being then stopped) if it failed to
+     */
+    public CompletableFuture<Void> started() {
+        return started;
+    }
+
+    /**
+     * Stop the background tasks and unexport the market
+     */
+    public void shutdown() {
+        reaper.shutdown();
+        trades.close();
+        checkpointer.shutdownNow();
+        exportSweeper.shutdownNow();
+        settlements.shutdownNow();
+        auctionHouse.shutdown();
+        feed.shutdown();
+        history.thenAccept(PriceHistory::close);
         try {
-            Registry bankRegistry;
-            try {
-                bankRegistry = LocateRegistry.getRegistry(bankPort);
-                bankRegistry.list();
-            } catch (RemoteException e) {
-                bankRegistry = LocateRegistry.createRegistry(bankPort);
-            }
-            bankobj = (Bank) bankRegistry.lookup(bankname);
+            unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
+    }
+
+    private static Registry locateRegistry(int port) throws RemoteException {
+        try {
+            Registry registry = LocateRegistry.getRegistry(port);
+            registry.list();
+            return registry;
+        } catch (RemoteException e) {
+            return LocateRegistry.createRegistry(port);
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("The runtime failed: " + e.getMessage());
-            System.exit(1);
+    private static Map<String, Map<String, Object>> warmUpQueries() {
+        Map<String, Map<String, Object>> queries = new LinkedHashMap<>();
+        queries.put("AllItemsToSell", Collections.emptyMap());
+        queries.put("AllUsers", Collections.emptyMap());
+        queries.put("BestAskForName", Collections.singletonMap("name", ""));
+        queries.put("FindItemsToAck", Collections.singletonMap("sellerName", ""));
+        queries.put("ListingsOfSeller", Collections.singletonMap("sellerName", ""));
+        queries.put("FindExpiredItems", Collections.singletonMap("now", 0L));
+        return queries;
+    }
+
+    /**
+     * @return the remote bank, once looked up
+     * @throws RemoteException if the bank is still not reachable
+     */
+    private Bank bank() throws RemoteException {
+        try {
+            return bank.get(BANK_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RemoteException("Bank " + bankname + " not reachable yet");
+        } catch (ExecutionException e) {
+            throw new RemoteException("Bank " + bankname + " not reachable", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for bank " + bankname);
         }
-        System.out.println("Connected to bank: " + bankname);
     }
 
-    private boolean isLoggedIn(String clientName) throws RemoteException {
+    /**
+     * @return the time the price bars of each resolution are kept, in days by resolution :
+     * marketplace.history.retention.minute (default 7), hour (365) and day (3650)
+     */
+    private static EnumMap<PriceBar.Resolution, Long> historyRetention() {
+        EnumMap<PriceBar.Resolution, Long> retention = new EnumMap<>(PriceBar.Resolution.class);
+        retention.put(PriceBar.Resolution.MINUTE, TimeUnit.DAYS.toMillis(
+                Long.getLong("marketplace.history.retention.minute", 7)));
+        retention.put(PriceBar.Resolution.HOUR, TimeUnit.DAYS.toMillis(
+                Long.getLong("marketplace.history.retention.hour", 365)));
+        retention.put(PriceBar.Resolution.DAY, TimeUnit.DAYS.toMillis(
+                Long.getLong("marketplace.history.retention.day", 3650)));
+        return retention;
+    }
+
+    private PriceHistory history() {
+        try {
+            return history.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("The price history failed to open", e.getCause());
+        }
+    }
+
+    private boolean isLoggedIn(String clientName, PhaseTimer timer) throws RemoteException {
         if (loggedIn.containsKey(clientName)) {
+            timer.begin();
             try {
                 loggedIn.get(clientName).getClientName(); //Remote call to check is still the same remote client
                 return true;
             } catch (RemoteException e) {
                 loggedIn.remove(clientName);
                 return false;
+            } finally {
+                timer.end(Phase.CALLBACK);
             }
         }
         return false;
     }
 
+    private String getClientName(Trader trader, PhaseTimer timer) throws RemoteException {
+        timer.begin();
+        try {
+            return trader.getClientName();
+        } finally {
+            timer.end(Phase.CALLBACK);
+        }
+    }
+
+    /**
+     * @return the host of the RMI client calling, to account the calls made without a trader
+     */
+    private static Object caller() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return LOCAL_CALLER; // Called in process
+        }
+    }
+
+    /**
+     * @return the trader, to account its calls, or the host calling if there is none
+     */
+    private static Object caller(Trader trader) {
+        return trader != null ? trader : caller();
+    }
+
+    /**
+     * Count a rejection by reason before returning it to be thrown
+     * @param reason
+     * @param args arguments of the message of the reason
+     */
+    private RejectedException reject(Reason reason, Object... args) {
+        metrics.increment(reason.getCounter());
+        return new RejectedException(reason, args);
+    }
+
     @Override
     public void login(Trader trader, String password) throws RemoteException, RejectedException {
-        String clientName = trader.getClientName();
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.login");
+        try {
+            login(trader, password, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private void login(Trader trader, String password, PhaseTimer timer) throws RemoteException, RejectedException {
+        String clientName = getClientName(trader, timer);
 
         // Check if already logged in
-        if (isLoggedIn(clientName))
-            throw new RejectedException("You are already logged in");
+        if (isLoggedIn(clientName, timer))
+            throw reject(Reason.ALREADY_LOGGED_IN);
 
         EntityManager em = null;
 
@@ -94,13 +380,13 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
             // Check if user with the same name already exists
             User existingUser = em.find(User.class, clientName);
             if (existingUser == null)
-                throw new RejectedException("Login failed: you are not registered on the market.");
+                throw reject(Reason.NOT_REGISTERED, "Login", clientName);
 
             if (!existingUser.getPassword().equals(password))
-                throw new RejectedException("Login failed: wrong password");
+                throw reject(Reason.WRONG_PASSWORD);
 
             loggedIn.put(clientName, trader);
-            System.out.println("Trader " + clientName + " logged in on the market.");
+            LOG.info("Trader {} logged in on the market.", clientName);
 
 
             // Callback to send since last login ?
@@ -108,8 +394,12 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
             query.setParameter("sellerName", clientName);
             List<Item> itemsToAck = query.getResultList();
             for (Item i : itemsToAck) {
+                timer.begin();
                 trader.callback(i.getToAcknowledge() + " " + i + " has/have been sold");
+                timer.end(Phase.CALLBACK);
                 i.setToAcknowledge(0);
+                if (i.getAmount() == 0)
+                    i.setExpiresAt(System.currentTimeMillis()); // Sold out and acknowledged : left to the reaper
                 //em.createNamedQuery("UpdateAckItem").setParameter("sellerName", clientName).executeUpdate();
             }
 
@@ -121,17 +411,40 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
 
     @Override
     public void logout(String traderName) throws RemoteException, RejectedException {
-        if (!isLoggedIn(traderName))
-            throw new RejectedException("You are not logged in");
+        admission.enter(Priority.TRADE, caller(traderName == null ? null : loggedIn.get(traderName)));
+        PhaseTimer timer = metrics.startTimer("market.logout");
+        try {
+            logout(traderName, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private void logout(String traderName, PhaseTimer timer) throws RemoteException, RejectedException {
+        if (!isLoggedIn(traderName, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Logout");
 
         loggedIn.remove(traderName);
-        System.out.println("Trader " + traderName + " logged out from the market.");
+        LOG.info("Trader {} logged out from the market.", traderName);
     }
 
     @Override
-    public synchronized void register(Trader trader, String password)
+    public void register(Trader trader, String password)
+            throws RemoteException, RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.register");
+        try {
+            register(trader, password, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private synchronized void register(Trader trader, String password, PhaseTimer timer)
             throws RemoteException, RejectedException {
-        String traderName = trader.getClientName();
+        String traderName = getClientName(trader, timer);
 
         EntityManager em = null;
         User user;
@@ -141,21 +454,23 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
             // Check if user with the same name already exists
             User existingUser = em.find(User.class, traderName);
             if (existingUser != null)
-                throw new RejectedException("Registration failed: Trader " + traderName + " already registered");
+                throw reject(Reason.ALREADY_REGISTERED, traderName);
 
             // Not already registered
             // Check the password length
             if (password.length() < 8)
-                throw new RejectedException("Invalid size of password : must contain at least 8 characters");
+                throw reject(Reason.INVALID_PASSWORD);
 
             // Register the new user
             user = new User(traderName, password);
             em.persist(user);
 
+            logChanges(em, CatalogChange.user(user));
+
             // Logged in automatically
             loggedIn.put(traderName, trader);
 
-            System.out.println("Trader " + traderName + " registered on the market.");
+            LOG.info("Trader {} registered on the market.", traderName);
 
         } finally {
             if (em != null)
@@ -164,39 +479,50 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
     }
 
     @Override
-    public synchronized void unregister(Trader trader) throws RemoteException, RejectedException {
-        String traderName = trader.getClientName();
+    public void unregister(Trader trader) throws RemoteException, RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.unregister");
+        try {
+            unregister(trader, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+            admission.forget(caller(trader));
+        }
+    }
+
+    private synchronized void unregister(Trader trader, PhaseTimer timer) throws RemoteException, RejectedException {
+        String traderName = getClientName(trader, timer);
 
         // Remove all items belonging to that trader
-        if (!isLoggedIn(traderName))
-            throw new RejectedException("Trader " + traderName + " not registered");
+        if (!isLoggedIn(traderName, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Unregistration");
 
         EntityManager em = null;
 
         try {
             em = beginTransaction();
 
-            // Remove all items belonging to this trader
-            List<Item> itemsSeller = em.createNamedQuery("FindItemsBySeller", Item.class).
-                    setParameter("sellerName", traderName).getResultList();
+            User userToUnregister = em.find(User.class, traderName);
+            if (userToUnregister == null)
+                throw reject(Reason.NOT_REGISTERED, "Unregistration", traderName);
 
-            for (Item i : itemsSeller) {
-                em.remove(i);
-            }
+            // Remove all items belonging to this trader in a single statement
+            int nbItemsRemoved = em.createNamedQuery("DeleteItemsBySeller").
+                    setParameter("seller", userToUnregister).executeUpdate();
+            LOG.debug("{} items of {} removed", nbItemsRemoved, traderName);
 
             // Remove all wishes from this trader
-            for(Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-                if (entry.getValue().getClientName().equals(traderName))
-                    wishList.remove(entry.getKey());
+            Set<Item> wishes = wishesByTrader.remove(traderName);
+            if (wishes != null) {
+                for (Item wish : wishes)
+                    dropWish(wish);
             }
 
             // Suppression from the persistence storage
-            User userToUnregister = em.find(User.class, traderName);
-            if (em != null)
-                em.remove(userToUnregister);
-            else
-                throw new RejectedException("Unregistration failed: User " + traderName +
-                " already unregistered");
+            em.remove(userToUnregister);
+
+            logChanges(em, CatalogChange.sellerRemoved(traderName), CatalogChange.userRemoved(traderName));
 
         } finally {
             if (em != null)
@@ -204,25 +530,58 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
 
             // Remove the trader from the market
             loggedIn.remove(traderName);
-            System.out.println("Trader " + traderName + " unregistered from the market.");
+            LOG.info("Trader {} unregistered from the market.", traderName);
         }
     }
 
     @Override
     public void sell(Item itemToSell, Trader trader) throws RemoteException, RejectedException {
-        String traderName = trader.getClientName();
+        sell(itemToSell, trader, (String) null);
+    }
+
+    @Override
+    public void sell(Item itemToSell, Trader trader, String requestId) throws RemoteException, RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.sell");
+        RequestCache.Request request = null;
+        try {
+            // Ids are scoped by trader : the one of another trader is another request
+            String traderName = getClientName(trader, timer);
+            request = requests.begin(RequestCache.key("sell", traderName, requestId));
+            if (request.isReplay()) {
+                metrics.increment("market.sell.replayed");
+                if (request.getFailure() != null)
+                    throw (RejectedException) request.getFailure();
+                return;
+            }
+            sell(itemToSell, traderName, timer);
+            request.succeeded();
+        } catch (RejectedException e) {
+            if (request != null)
+                request.failed(e);
+            throw e;
+        } finally {
+            if (request != null)
+                request.release();
+            timer.stop();
+            admission.exit();
+        }
+    }
 
+    private void sell(Item itemToSell, String traderName, PhaseTimer timer) throws RemoteException, RejectedException {
         // Trader registered on the market ?
-        if (!isLoggedIn(traderName))
-            throw new RejectedException("Sell failed: you are not logged in / registered on the market");
+        if (!isLoggedIn(traderName, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Sell");
 
         // Get an account ?
-        Account account = bankobj.findAccount(trader.getClientName());
+        timer.begin();
+        Account account = bank().findAccount(traderName);
+        timer.end(Phase.BANK);
         if (account == null)
-            throw new RejectedException("You cannot sell the item " + itemToSell  +
-                    ": you do not get an account at bank " + bankname);
+            throw reject(Reason.NO_ACCOUNT, "Sell", bankname);
 
         EntityManager em = null;
+        boolean listed = false;
 
         // Item to sell already on the market ?
         try {
@@ -230,154 +589,645 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
 
             Item item = em.find(Item.class, new ItemKey(itemToSell.getName(), itemToSell.getPrice()));
 
-            if ( (item != null) && (!item.getSeller().getUsername().equals(trader.getClientName())) )
-                throw new RejectedException("Sell failed: item " + itemToSell + " already on the market.");
+            if ( (item != null) && (!item.getSeller().getUsername().equals(traderName)) )
+                throw reject(Reason.ALREADY_LISTED, itemToSell);
 
             // Can be sold
-            if (item != null)
+            if (item != null) {
                 item.setAmount(item.getAmount() + itemToSell.getAmount());
-            else {
-                User seller = em.find(User.class, trader.getClientName());
+                item.extendExpiry(itemToSell.getTtlMillis());
+            } else {
+                User seller = em.find(User.class, traderName);
 
                 // Store a new Item persistently
-                em.persist(new Item(itemToSell, seller));
+                item = new Item(itemToSell, seller);
+                em.persist(item);
+                symbols().intern(item.getName());
             }
+            logChanges(em, CatalogChange.item(item));
+            listed = true;
 
         } finally {
             if (em != null) {
                 commitTransaction(em);
 
-                System.out.println(itemToSell + " puts on the market by " + trader.getClientName());
+                if (listed)
+                    publishBestAsk(itemToSell.getName());
+
+                LOG.info("{} puts on the market by {}", itemToSell, traderName);
+
+                notifyWishes(itemToSell, timer);
+            }
+        }
+    }
+
+    /**
+     * Check if some buyers have placed a wish on an item put on the market, at its price or above
+     */
+    private void notifyWishes(Item itemToSell, PhaseTimer timer) throws RemoteException {
+        adoptUnlistedWishes(itemToSell.getName());
+        ConcurrentSkipListMap<Item, Trader> wishesOnItem = wishList.get(symbols().lookup(itemToSell.getName()));
+        if (wishesOnItem != null) {
+            for (Map.Entry<Item, Trader> entry : wishesOnItem.tailMap(itemToSell, true).entrySet()) {
+                LOG.debug("Wish from {} : {}", getClientName(entry.getValue(), timer), entry.getKey());
+                // Send callback
+                try {
+                    String wisherName = getClientName(entry.getValue(), timer);
+                    if (isLoggedIn(wisherName, timer)) {
+                        timer.begin();
+                        entry.getValue().callback(itemToSell + " available on the market");
+                        timer.end(Phase.CALLBACK);
+                        // Remove its wish ?
+                        removeWish(entry.getKey(), wisherName);
+                    }
+                } catch (RemoteException e) {}
+            }
+        }
+    }
+
+    @Override
+    public CatalogImport openImport(Trader trader) throws RemoteException, RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.openImport");
+        try {
+            String traderName = getClientName(trader, timer);
+
+            // Trader registered on the market ?
+            if (!isLoggedIn(traderName, timer))
+                throw reject(Reason.NOT_LOGGED_IN, "Import");
+
+            // Get an account ?
+            timer.begin();
+            Account account = bank().findAccount(traderName);
+            timer.end(Phase.BANK);
+            if (account == null)
+                throw reject(Reason.NO_ACCOUNT, "Import", bankname);
+
+            LOG.info("Import opened by {}", traderName);
+            return new CatalogImportSession(traderName, this::importBatch, IMPORT_BATCH_SIZE);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    /**
+     * List a batch of imported rows in one transaction, as many sell() would
+     */
+    private int importBatch(String sellerName, List<CatalogImportSession.Row> rows, List<ImportError> errors) {
+        PhaseTimer timer = metrics.startTimer("market.import.batch");
+        try {
+            return importBatch(sellerName, rows, errors, timer);
+        } finally {
+            timer.stop();
+        }
+    }
 
-                //Debugging
-                for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-                    System.out.println("Wish from " + entry.getValue().getClientName() +
-                            " : " + entry.getKey());
+    private int importBatch(String sellerName, List<CatalogImportSession.Row> rows, List<ImportError> errors,
+                            PhaseTimer timer) {
+        EntityManager em = null;
+        List<Item> listed = new ArrayList<>(rows.size());
+        try {
+            em = beginTransaction();
+            User seller = em.find(User.class, sellerName);
+            if (seller == null) {
+                for (CatalogImportSession.Row row : rows)
+                    errors.add(new ImportError(row.getNumber(), reject(Reason.NOT_REGISTERED, "Import", sellerName)));
+                return 0;
+            }
+
+            Map<ItemKey, Item> changed = new LinkedHashMap<>();
+            Set<String> newNames = new HashSet<>();
+            for (CatalogImportSession.Row row : rows) {
+                Item itemToSell = row.getItem();
+                Item item = em.find(Item.class, new ItemKey(itemToSell.getName(), itemToSell.getPrice()));
+                if (item != null && !item.getSeller().getUsername().equals(sellerName)) {
+                    errors.add(new ImportError(row.getNumber(), reject(Reason.ALREADY_LISTED, itemToSell)));
+                    continue;
                 }
 
-                // Check if some buyers have placed a wish on that itemToSell
-                for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-                    //System.out.println("[DEBUG] " + itemToSell.compareTo(entry.getKey()));
-                    if ((itemToSell.compareTo(entry.getKey()) <= 0) &&
-                            (entry.getKey().getName().equals(itemToSell.getName()))) {
-                        // Send callback
-                        try {
-                            if (isLoggedIn(entry.getValue().getClientName())) {
-                                entry.getValue().callback(itemToSell + " available on the market");
-                                // Remove its wish ?
-                                wishList.remove(entry.getKey());
-                            }
-                        } catch (RemoteException e) {}
+                if (item != null) {
+                    if (item.getAmount() > Integer.MAX_VALUE - itemToSell.getAmount()) {
+                        errors.add(new ImportError(row.getNumber(),
+                                reject(Reason.INVALID_ITEM, itemToSell, "amount too large")));
+                        continue;
                     }
+                    item.setAmount(item.getAmount() + itemToSell.getAmount());
+                    item.extendExpiry(itemToSell.getTtlMillis());
+                } else {
+                    item = new Item(itemToSell, seller);
+                    em.persist(item);
+                    newNames.add(item.getName());
                 }
+                changed.put(item.getItemKey(), item);
+                listed.add(itemToSell);
+            }
+            symbols().internAll(newNames);
+
+            List<CatalogChange> changes = new ArrayList<>(changed.size());
+            for (Item item : changed.values())
+                changes.add(CatalogChange.item(item));
+            logChanges(em, changes.toArray(new CatalogChange[0]));
+            commitTransaction(em);
+        } catch (RejectedException e) {
+            throw new IllegalStateException(e); // Amounts checked above
+        } finally {
+            if (em != null) {
+                if (em.getTransaction().isActive())
+                    rollbackTransaction(em);
+                em.close();
+            }
+        }
+
+        try {
+            Set<String> names = new LinkedHashSet<>();
+            for (Item item : listed) {
+                if (names.add(item.getName()))
+                    publishBestAsk(item.getName());
+                notifyWishes(item, timer);
+            }
+        } catch (RemoteException e) {
+            LOG.debug("Wishes on the import of {} not notified: {}", sellerName, e.getMessage());
+        }
+        metrics.counter("market.import.listed").add(listed.size());
+        return listed.size();
+    }
+
+    @Override
+    public CatalogExport openExport(Trader trader) throws RemoteException, RejectedException {
+        admission.enter(Priority.LISTING, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.openExport");
+        try {
+            String traderName = null;
+            if (trader != null) {
+                traderName = getClientName(trader, timer);
+                if (!isLoggedIn(traderName, timer))
+                    throw reject(Reason.NOT_LOGGED_IN, "Export");
+            }
+
+            // Accounted to the trader, or to the host exporting the whole catalog
+            Object owner = traderName != null ? traderName : caller();
+            reserveExport(owner);
+
+            // Forward-only cursor, the session owns the entity manager from now on
+            EntityManager em = null;
+            try {
+                em = emFactory().createEntityManager();
+                Query query = traderName == null ? em.createNamedQuery("AllItemsToSellByKey") :
+                        em.createNamedQuery("ListingsOfSeller").setParameter("sellerName", traderName);
+                query.setHint("eclipselink.cursor", "true").
+                        setHint("eclipselink.jdbc.fetch-size", EXPORT_FETCH_SIZE).
+                        setHint("eclipselink.read-only", "true");
+                CatalogExportSession session = new CatalogExportSession(em,
+                        (CursoredStream) query.getSingleResult(),
+                        traderName == null ? "the catalog" : "the listings of " + traderName, owner,
+                        this::exportClosed);
+                exportSessions.add(session);
+                return session;
+            } catch (RemoteException | RuntimeException e) {
+                if (em != null)
+                    em.close();
+                releaseExport(owner);
+                throw e;
             }
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    /**
+     * Take the place of an export session, within the global and the per trader bounds
+     */
+    private void reserveExport(Object owner) throws RejectedException {
+        synchronized (exportsByOwner) {
+            if (nbExports >= EXPORT_MAX_SESSIONS)
+                throw reject(Reason.TOO_MANY_SESSIONS, "Export", EXPORT_MAX_SESSIONS);
+            int ofOwner = exportsByOwner.getOrDefault(owner, 0);
+            if (ofOwner >= EXPORT_MAX_SESSIONS_PER_TRADER)
+                throw reject(Reason.TOO_MANY_SESSIONS, "Export", EXPORT_MAX_SESSIONS_PER_TRADER);
+            exportsByOwner.put(owner, ofOwner + 1);
+            nbExports++;
+        }
+    }
+
+    private void releaseExport(Object owner) {
+        synchronized (exportsByOwner) {
+            int ofOwner = exportsByOwner.getOrDefault(owner, 0);
+            if (ofOwner <= 1)
+                exportsByOwner.remove(owner);
+            else
+                exportsByOwner.put(owner, ofOwner - 1);
+            nbExports--;
+        }
+    }
+
+    private void exportClosed(CatalogExportSession session) {
+        exportSessions.remove(session);
+        releaseExport(session.getOwner());
+    }
+
+    private void closeIdleExports() {
+        long idleSince = System.currentTimeMillis() - EXPORT_IDLE_TIMEOUT;
+        for (CatalogExportSession session : exportSessions) {
+            if (session.closeIfIdleSince(idleSince))
+                metrics.increment("market.export.idleClosed");
         }
     }
 
     @Override
     public void buy(Item itemToBuy, Trader trader) throws RemoteException, RejectedException,
             bank.RejectedException {
-        String traderName = trader.getClientName();
+        buy(itemToBuy, trader, (String) null);
+    }
 
+    @Override
+    public void buy(Item itemToBuy, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.buy");
+        RequestCache.Request request = null;
+        try {
+            // Ids are scoped by trader : the one of another trader is another request
+            String traderName = getClientName(trader, timer);
+            request = requests.begin(RequestCache.key("buy", traderName, requestId));
+            if (request.isReplay()) {
+                metrics.increment("market.buy.replayed");
+                replay(request.getFailure());
+                return;
+            }
+            buy(itemToBuy, traderName, requestId, timer);
+            request.succeeded();
+        } catch (RejectedException | bank.RejectedException e) {
+            if (request != null)
+                request.failed(e);
+            throw e;
+        } finally {
+            if (request != null)
+                request.release();
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    /**
+     * Rethrow the rejection of the first execution of a request
+     */
+    private static void replay(Throwable failure) throws RejectedException, bank.RejectedException {
+        if (failure instanceof RejectedException)
+            throw (RejectedException) failure;
+        if (failure instanceof bank.RejectedException)
+            throw (bank.RejectedException) failure;
+    }
+
+    /**
+     * The funds are reserved at the bank before the market transaction, so that the transaction
+     * only holds the locks of the item for local work : the hold is committed, or released, in
+     * the background once the transaction is over
+     * @param requestId passed on to the bank, so that a buy executed again after a failure
+     *                  does not reserve the money twice
+     */
+    private void buy(Item itemToBuy, String traderName, String requestId, PhaseTimer timer)
+            throws RemoteException, RejectedException, bank.RejectedException {
         // Trader registered on the market ?
-        if (!isLoggedIn(traderName))
-            throw new RejectedException("Buy failed: you are not logged in / registered on the market");
+        if (!isLoggedIn(traderName, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Buy");
+
+        // Price and seller of the item, read without locking it
+        Item listed = findItem(itemToBuy);
+        if (listed == null)
+            throw reject(Reason.NOT_ON_MARKET, itemToBuy);
+        checkStock(listed, itemToBuy);
+        String sellerName = listed.getSeller().getUsername();
+
+        // Enough money ? Fails if the buyer or the seller has no account
+        float total = listed.getPrice() * itemToBuy.getAmount();
+        timer.begin();
+        long holdId;
+        try {
+            holdId = bank().reserve(traderName, sellerName, total, requestId);
+        } finally {
+            timer.end(Phase.BANK);
+        }
 
         EntityManager em = null;
+        float tradePrice = 0f;
+        boolean traded = false;
+        boolean committed = false;
+        boolean sellerLoggedIn = false;
 
         try {
             em = beginTransaction();
 
-            // Item on the market ?
+            // Still on the market, from the same seller ?
             Item itemToSell = em.find(Item.class, new ItemKey(itemToBuy.getName(), itemToBuy.getPrice()));
-            if (itemToSell == null)
-                throw new RejectedException("Buy failed: item " + itemToBuy + " no longer on the market.");
-
-            // Enough amount of item ?
-            if (itemToSell.getAmount() < itemToBuy.getAmount())
-                throw new RejectedException("Bell failed: you cannot buy " + itemToBuy.getAmount() +
-                        " items " + itemToBuy + " : there is only " + itemToSell.getAmount() +
-                        " items remaining on the market");
-
-            // Get an account ?
-            Account accountBuyer = bankobj.findAccount(trader.getClientName());
-            if (accountBuyer == null)
-                throw new RejectedException("Buy failed: you cannot buy the item " + itemToBuy +
-                        " : you do not get an account at bank " + bankname);
-
-            // Enough money ?
-            if (accountBuyer.getBalance() < (itemToSell.getPrice() * itemToBuy.getAmount()))
-                throw new RejectedException("Buy failed: you cannot afford to buy " +
-                        itemToBuy.getAmount() + " " + itemToBuy);
-
-            // Yes
-            String sellerName = itemToSell.getSeller().getUsername();
-            Account accountSeller = bankobj.findAccount(sellerName);
-            if (!(accountSeller == null))
-                bankobj.withdraw(traderName, itemToSell.getPrice() * itemToBuy.getAmount());
-            bankobj.deposit(sellerName, itemToSell.getPrice() * itemToBuy.getAmount());
+            if (itemToSell == null || !itemToSell.getSeller().getUsername().equals(sellerName))
+                throw reject(Reason.NOT_ON_MARKET, itemToBuy);
+            checkStock(itemToSell, itemToBuy);
 
             // Update stats
             User seller = itemToSell.getSeller();
             seller.setNbTotalItemsSold(seller.getNbTotalItemsSold() + itemToBuy.getAmount());
-            User buyer = em.find(User.class, trader.getClientName());
+            User buyer = em.find(User.class, traderName);
             buyer.setNbTotalItemsBought(buyer.getNbTotalItemsBought() + itemToBuy.getAmount());
 
-
-            // Callback
-            if (!isLoggedIn(sellerName)) {
+            CatalogChange itemChange = null;
+            sellerLoggedIn = isLoggedIn(sellerName, timer);
+            if (!sellerLoggedIn) {
                 itemToSell.setToAcknowledge(itemToSell.getToAcknowledge() + itemToBuy.getAmount());
                 itemToSell.setAmount(itemToSell.getAmount() - itemToBuy.getAmount());
+            } else if (itemToSell.getAmount() == itemToBuy.getAmount()) {
+                // Remove item from database
+                em.remove(itemToSell);
+                itemChange = CatalogChange.itemRemoved(itemToSell.getName(), itemToSell.getPrice());
             } else {
-                loggedIn.get(sellerName).callback(itemToBuy.getAmount() + " " + itemToBuy + " has/have been sold");
-
-                if (itemToSell.getAmount() == itemToBuy.getAmount()) {
-                    // Remove item from database
-                    em.remove(itemToSell);
-                } else {
-                    itemToSell.setAmount(itemToSell.getAmount() - itemToBuy.getAmount());
+                itemToSell.setAmount(itemToSell.getAmount() - itemToBuy.getAmount());
+            }
+            if (itemChange == null)
+                itemChange = CatalogChange.item(itemToSell);
+            // The seller is paid even if the market stops before the bank commits the hold
+            em.persist(new PendingSettlement(holdId, traderName, sellerName, total));
+            logChanges(em, itemChange, CatalogChange.user(seller), CatalogChange.user(buyer));
+            tradePrice = itemToSell.getPrice();
+            traded = true;
+        } finally {
+            try {
+                if (em != null) {
+                    commitTransaction(em);
+                    committed = true;
                 }
+            } finally {
+                // Pay the seller if the trade is committed, give the funds back to the buyer otherwise
+                settle(holdId, traded && committed);
+            }
+
+            if (traded && committed) {
+                // Callback
+                Trader sellerTrader = loggedIn.get(sellerName);
+                if (sellerLoggedIn && sellerTrader != null)
+                    notifyTrader(sellerName, sellerTrader, itemToBuy.getAmount() + " " + itemToBuy +
+                            " has/have been sold", timer);
+
+                trades.record(traderName, sellerName, itemToBuy.getName(), tradePrice, itemToBuy.getAmount());
+                history().record(itemToBuy.getName(), tradePrice, itemToBuy.getAmount());
+                feed.publishTrade(itemToBuy.getName(), tradePrice, itemToBuy.getAmount());
+                publishBestAsk(itemToBuy.getName());
+                LOG.info("{} {} bought by {}", itemToBuy.getAmount(), itemToBuy, traderName);
             }
+        }
+    }
+
+    private void checkStock(Item itemToSell, Item itemToBuy) throws RejectedException {
+        // Enough amount of item ?
+        if (itemToSell.getAmount() < itemToBuy.getAmount())
+            throw reject(Reason.INSUFFICIENT_STOCK, itemToBuy.getAmount(), itemToBuy,
+                    itemToSell.getAmount());
+    }
+
+    /**
+     * @return the listing of an item, read outside of any transaction
+     */
+    private Item findItem(Item item) {
+        EntityManager em = emFactory().createEntityManager();
+        try {
+            return em.find(Item.class, new ItemKey(item.getName(), item.getPrice()));
         } finally {
-            if (em != null) {
-                commitTransaction(em);
-                System.out.println(itemToBuy.getAmount() + " " + itemToBuy + " bought by " + trader.getClientName());
+            em.close();
+        }
+    }
+
+    /**
+     * Settle a hold of the bank in the background.
+     * The hold of a committed trade has a pending settlement row : it is committed again until
+     * the bank confirms it, then the row is deleted. The hold of a trade not committed is
+     * released, again while the bank does not answer, otherwise on its expiry.
+     * @param commit true to pay the payee, false to give the funds back
+     */
+    private void settle(long holdId, boolean commit) {
+        long queued = System.nanoTime();
+        settlements.execute(() -> {
+            if (commit)
+                commitHold(holdId, queued, 1);
+            else
+                releaseHold(holdId, queued, 1);
+        });
+    }
+
+    private void commitHold(long holdId, long queued, int attempt) {
+        try {
+            bank().commitHold(holdId);
+            deleteSettlement(holdId);
+            metrics.increment("market.settlement.committed");
+            metrics.histogram("market.settlement").record(System.nanoTime() - queued);
+        } catch (bank.RejectedException e) {
+            // Hold purged, or buyer who cannot pay after its expiry : the row is kept, committed
+            // again at the next start
+            metrics.increment("market.settlement.failed");
+            LOG.error("Hold {} not committed, left pending: {}", holdId, e.getMessage());
+        } catch (RemoteException | RuntimeException e) {
+            // Bank not reachable, or row not deleted : the commit is a no-op on a committed hold
+            if (attempt % SETTLEMENT_ATTEMPTS == 0)
+                LOG.warn("Hold {} still not committed after {} attempts: {}", holdId, attempt, e.getMessage());
+            settlements.schedule(() -> commitHold(holdId, queued, attempt + 1),
+                    Math.min(SETTLEMENT_RETRY_DELAY * attempt, SETTLEMENT_MAX_RETRY_DELAY), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void releaseHold(long holdId, long queued, int attempt) {
+        try {
+            bank().releaseHold(holdId);
+            metrics.increment("market.settlement.released");
+            metrics.histogram("market.settlement").record(System.nanoTime() - queued);
+        } catch (RemoteException e) {
+            if (attempt == SETTLEMENT_ATTEMPTS) {
+                // Left to the expiry of the hold
+                metrics.increment("market.settlement.failed");
+                LOG.error("Hold {} not released after {} attempts: {}", holdId, attempt, e.getMessage());
+                return;
             }
+            settlements.schedule(() -> releaseHold(holdId, queued, attempt + 1),
+                    SETTLEMENT_RETRY_DELAY * attempt, TimeUnit.MILLISECONDS);
         }
     }
 
+    private void deleteSettlement(long holdId) {
+        EntityManager em = beginTransaction();
+        try {
+            PendingSettlement settlement = em.find(PendingSettlement.class, holdId);
+            if (settlement != null)
+                em.remove(settlement);
+            commitTransaction(em);
+        } finally {
+            if (em.getTransaction().isActive())
+                rollbackTransaction(em);
+            em.close();
+        }
+    }
+
+    /**
+     * Commit again the holds of the trades committed before the last stop, whose bank commit
+     * was not confirmed
+     */
+    private void resumeSettlements(EntityManagerFactory factory) {
+        EntityManager em = factory.createEntityManager();
+        try {
+            List<PendingSettlement> pending = em.createNamedQuery("AllPendingSettlements", PendingSettlement.class).
+                    getResultList();
+            for (PendingSettlement settlement : pending)
+                settle(settlement.getHoldId(), true);
+            if (!pending.isEmpty())
+                LOG.warn("{} trades of the last run not paid yet, holds committed again", pending.size());
+        } finally {
+            em.close();
+        }
+    }
 
     @Override
     public void wish(Item item, Trader trader) throws RemoteException, RejectedException,
             bank.RejectedException {
-        String traderName = trader.getClientName();
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.wish");
+        try {
+            wish(item, trader, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private void wish(Item item, Trader trader, PhaseTimer timer) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        String traderName = getClientName(trader, timer);
 
         // Trader registered on the market ?
-        if (!isLoggedIn(traderName))
-            throw new RejectedException("You are not logged in / registered on the market");
+        if (!isLoggedIn(traderName, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Wish");
 
         // Already did a wish for that item ?
-        for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            if ((entry.getKey().getName().equals(item.getName())) &&
-                    (entry.getValue().equals(trader)))
-                throw new RejectedException("You already placed a wish on " + item + " .");
+        Set<Item> traderWishes = wishesByTrader.computeIfAbsent(traderName, n -> ConcurrentHashMap.newKeySet());
+        for (Item wished : traderWishes) {
+            if (wished.getName().equals(item.getName()))
+                throw reject(Reason.DUPLICATE_WISH, "You", item);
         }
 
         // Someone else ?
-        if (wishList.containsKey(item))
-            throw new RejectedException("Someone else already placed the same wish on " + item + " .");
+        if (!placeWish(item, trader))
+            throw reject(Reason.DUPLICATE_WISH, "Someone else", item);
+
+        traderWishes.add(item);
+        LOG.info("Wish from {} : {}", traderName, item);
+    }
+
+    /**
+     * Add a wish to those on its name : by symbol if the name was ever listed, by name otherwise
+     * (a wish does not intern its name)
+     * @return false if there is already a wish on the item at this price
+     */
+    private boolean placeWish(Item item, Trader trader) throws RejectedException {
+        int symbol = symbols().lookup(item.getName());
+        if (symbol == SymbolTable.NO_SYMBOL) {
+            synchronized (unlistedWishes) {
+                symbol = symbols().lookup(item.getName()); // Listed meanwhile : its wishes are adopted after
+                if (symbol == SymbolTable.NO_SYMBOL) {
+                    ConcurrentSkipListMap<Item, Trader> wishesOnName = unlistedWishes.get(item.getName());
+                    if (wishesOnName == null) {
+                        if (unlistedWishes.size() >= MAX_UNLISTED_WISHES)
+                            throw reject(Reason.TOO_MANY_WISHES, MAX_UNLISTED_WISHES);
+                        wishesOnName = new ConcurrentSkipListMap<>();
+                        unlistedWishes.put(item.getName(), wishesOnName);
+                    }
+                    return wishesOnName.putIfAbsent(item, trader) == null;
+                }
+            }
+        }
+        return wishList.computeIfAbsent(symbol, id -> new ConcurrentSkipListMap<>()).putIfAbsent(item, trader) == null;
+    }
+
+    /**
+     * Move the wishes on a name, once listed, to its symbol
+     */
+    private void adoptUnlistedWishes(String name) {
+        if (unlistedWishes.isEmpty())
+            return;
+        synchronized (unlistedWishes) {
+            int symbol = symbols().lookup(name);
+            ConcurrentSkipListMap<Item, Trader> wishesOnName =
+                    symbol != SymbolTable.NO_SYMBOL ? unlistedWishes.remove(name) : null;
+            if (wishesOnName == null)
+                return;
+            ConcurrentSkipListMap<Item, Trader> wishesOnItem =
+                    wishList.computeIfAbsent(symbol, id -> new ConcurrentSkipListMap<>());
+            for (Map.Entry<Item, Trader> wish : wishesOnName.entrySet())
+                wishesOnItem.putIfAbsent(wish.getKey(), wish.getValue());
+        }
+    }
+
+    /**
+     * @return the trader of a wish, null if there is no such wish
+     */
+    private Trader wisher(Item item) {
+        ConcurrentSkipListMap<Item, Trader> wishesOnItem = wishList.get(symbols().lookup(item.getName()));
+        Trader trader = wishesOnItem != null ? wishesOnItem.get(item) : null;
+        if (trader != null || unlistedWishes.isEmpty())
+            return trader;
+        synchronized (unlistedWishes) {
+            ConcurrentSkipListMap<Item, Trader> wishesOnName = unlistedWishes.get(item.getName());
+            if (wishesOnName != null)
+                return wishesOnName.get(item);
+            wishesOnItem = wishList.get(symbols().lookup(item.getName())); // Adopted meanwhile
+            return wishesOnItem != null ? wishesOnItem.get(item) : null;
+        }
+    }
 
-        wishList.put(item, trader);
-        System.out.println("Wish from " + trader.getClientName() + " : " + item);
+    /**
+     * Remove a wish from those on its name
+     */
+    private void dropWish(Item item) {
+        ConcurrentSkipListMap<Item, Trader> wishesOnItem = wishList.get(symbols().lookup(item.getName()));
+        if ((wishesOnItem != null && wishesOnItem.remove(item) != null) || unlistedWishes.isEmpty())
+            return;
+        synchronized (unlistedWishes) {
+            ConcurrentSkipListMap<Item, Trader> wishesOnName = unlistedWishes.get(item.getName());
+            if (wishesOnName != null) {
+                wishesOnName.remove(item);
+                if (wishesOnName.isEmpty())
+                    unlistedWishes.remove(item.getName());
+                return;
+            }
+            wishesOnItem = wishList.get(symbols().lookup(item.getName())); // Adopted meanwhile
+            if (wishesOnItem != null)
+                wishesOnItem.remove(item);
+        }
+    }
 
-        /*System.out.println();
-        for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            System.out.println("Wish from " + entry.getValue().getClientName() + " : " + entry.getKey());
-        }*/
+    private void removeWish(Item item, String traderName) {
+        dropWish(item);
+        Set<Item> traderWishes = wishesByTrader.get(traderName);
+        if (traderWishes != null)
+            traderWishes.remove(item);
     }
 
     @Override
     public ArrayList<Item> getAllItems() throws RemoteException {
+        admission.enter(Priority.LISTING, caller());
+        PhaseTimer timer = metrics.startTimer("market.getAllItems");
+        try {
+            return getAllItems(timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private ArrayList<Item> getAllItems(PhaseTimer timer) throws RemoteException {
+        // Scanned off heap, once the index follows the database
+        ItemSearchIndex index;
+        synchronized (searchIndexLock) {
+            index = searchIndexFromDatabase ? searchIndex : null;
+        }
+        if (index != null)
+            return index.getItems();
+
         EntityManager em = null;
         List<Item> items = null;
 
@@ -385,7 +1235,7 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
             em = beginTransaction();
 
             items = em.createNamedQuery("AllItemsToSell", Item.class).getResultList();
-            System.err.println("SIZE : " + items.size());
+            LOG.debug("SIZE : {}", items.size());
         } finally {
             if (em != null)
                 commitTransaction(em);
@@ -396,9 +1246,20 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
 
     @Override
     public ArrayList getStats(String username) throws RemoteException, RejectedException {
+        admission.enter(Priority.STATS, caller());
+        PhaseTimer timer = metrics.startTimer("market.getStats");
+        try {
+            return getStats(username, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private ArrayList getStats(String username, PhaseTimer timer) throws RemoteException, RejectedException {
         // Trader registered on the market ?
-        if (!isLoggedIn(username))
-            throw new RejectedException("You are not logged in / registered on the market");
+        if (!isLoggedIn(username, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Get Statistics");
 
         ArrayList stats = null;
         EntityManager em = null;
@@ -409,8 +1270,7 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
             // Check if user with the same name already exists
             User existingUser = em.find(User.class, username);
             if (existingUser == null)
-                throw new RejectedException("Get Statistics failed: user " +
-                        username + " is not registered on the market.");
+                throw reject(Reason.NOT_REGISTERED, "Get Statistics", username);
 
             stats = new ArrayList<String>(2);
             stats.add(INDEX_NB_TOTAL_ITEMS_BOUGHT, String.valueOf(existingUser.getNbTotalItemsBought()));
@@ -423,10 +1283,535 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
         }
     }
 
+    @Override
+    public Inventory getMyItems(Trader trader, int offset, int limit) throws RemoteException, RejectedException {
+        admission.enter(Priority.LISTING, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.getMyItems");
+        try {
+            return getMyItems(trader, offset, limit, timer);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private Inventory getMyItems(Trader trader, int offset, int limit, PhaseTimer timer)
+            throws RemoteException, RejectedException {
+        String traderName = getClientName(trader, timer);
+
+        // Trader registered on the market ?
+        if (!isLoggedIn(traderName, timer))
+            throw reject(Reason.NOT_LOGGED_IN, "Inventory");
+
+        // Read-only, no transaction : the listings are neither locked nor managed
+        EntityManager em = emFactory().createEntityManager();
+        try {
+            List<Item> listings = em.createNamedQuery("ListingsOfSeller", Item.class).
+                    setParameter("sellerName", traderName).setFirstResult(Math.max(0, offset)).
+                    setMaxResults(Math.max(0, Math.min(limit, MAX_INVENTORY_PAGE))).getResultList();
+            ArrayList<Item> items = new ArrayList<>(listings.size());
+            for (Item listing : listings)
+                items.add(new Item(listing.getName(), listing.getPrice(), listing.getAmount()));
+
+            Object[] stock = em.createNamedQuery("StockOfSeller", Object[].class).
+                    setParameter("sellerName", traderName).getSingleResult();
+            return new Inventory(items, Math.max(0, offset), stock[0] != null ? ((Number) stock[0]).longValue() : 0,
+                    stock[1] != null ? ((Number) stock[1]).longValue() : 0,
+                    stock[2] != null ? ((Number) stock[2]).doubleValue() : 0);
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    public ArrayList<TradeRecord> getTradeHistory(Trader trader, long beforeTime, long beforeId, int limit)
+            throws RemoteException, RejectedException {
+        admission.enter(Priority.LISTING, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.getTradeHistory");
+        try {
+            String traderName = getClientName(trader, timer);
+            if (!isLoggedIn(traderName, timer))
+                throw reject(Reason.NOT_LOGGED_IN, "Trade history");
+            return trades.query(traderName, beforeTime, beforeId, Math.max(0, Math.min(limit, MAX_TRADE_PAGE)));
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    @Override
+    public void subscribe(MarketDataListener listener, ArrayList<String> itemNames) throws RemoteException {
+        admission.enter(Priority.LISTING, caller());
+        try {
+            feed.subscribe(listener, itemNames);
+            LOG.info("Market data subscription on {}", itemNames);
+
+            // Initial best ask of each watched item
+            for (String name : itemNames)
+                publishBestAsk(name);
+        } finally {
+            admission.exit();
+        }
+    }
+
+    @Override
+    public void unsubscribe(MarketDataListener listener) throws RemoteException {
+        admission.enter(Priority.LISTING, caller());
+        try {
+            feed.unsubscribe(listener);
+        } finally {
+            admission.exit();
+        }
+    }
+
+    /**
+     * Publish the current best ask of an item on the market data feed, if anyone watches it.
+     * The feed looks it up on its dispatcher, not on the thread of the trade.
+     * @param itemName
+     */
+    private void publishBestAsk(String itemName) {
+        feed.refreshQuote(itemName, this::bestAsk);
+    }
+
+    private Item bestAsk(String itemName) {
+        EntityManager em = emFactory().createEntityManager();
+        try {
+            List<Item> asks = em.createNamedQuery("BestAskForName", Item.class).
+                    setParameter("name", itemName).setMaxResults(1).getResultList();
+            return asks.isEmpty() ? null : asks.get(0);
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    public void startAuction(Item item, long durationMillis, Trader trader) throws RemoteException, RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.startAuction");
+        try {
+            String traderName = getClientName(trader, timer);
+
+            // Trader registered on the market ?
+            if (!isLoggedIn(traderName, timer))
+                throw reject(Reason.NOT_LOGGED_IN, "Auction");
+
+            if (item.getAmount() <= 0 || item.getPrice() <= 0 || durationMillis <= 0)
+                throw reject(Reason.INVALID_AUCTION);
+
+            // Get an account ?
+            timer.begin();
+            Account account = bank().findAccount(traderName);
+            timer.end(Phase.BANK);
+            if (account == null)
+                throw reject(Reason.NO_ACCOUNT, "Auction", bankname);
+
+            if (auctionHouse.open(item.getName(), item.getAmount(), traderName, trader, item.getPrice(),
+                    durationMillis) == null)
+                throw reject(Reason.AUCTION_EXISTS, item.getName());
+
+            LOG.info("Auction of {} by {} for {} ms", item, traderName, durationMillis);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    @Override
+    public void bid(Item item, Trader trader) throws RemoteException, RejectedException {
+        admission.enter(Priority.TRADE, caller(trader));
+        PhaseTimer timer = metrics.startTimer("market.bid");
+        try {
+            String traderName = getClientName(trader, timer);
+
+            // Trader registered on the market ?
+            if (!isLoggedIn(traderName, timer))
+                throw reject(Reason.NOT_LOGGED_IN, "Bid");
+
+            String refused = auctionHouse.bid(item.getName(), traderName, trader, item.getPrice());
+            if (refused != null)
+                throw reject(Reason.BID_REFUSED, refused);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    @Override
+    public ArrayList<AuctionInfo> getAuctions() throws RemoteException {
+        admission.enter(Priority.LISTING, caller());
+        try {
+            return auctionHouse.list();
+        } finally {
+            admission.exit();
+        }
+    }
+
+    /**
+     * Settle a closed auction : the best bidder who can pay wins, the others are notified
+     * @param auction
+     * @param rankedBids best bid of each bidder, highest first
+     */
+    private void settleAuction(Auction auction, List<Auction.Bid> rankedBids) {
+        PhaseTimer timer = metrics.startTimer("market.settleAuction");
+        try {
+            Auction.Bid winner = null;
+            for (Auction.Bid bid : rankedBids) {
+                float total = bid.getPrice() * auction.getAmount();
+                try {
+                    timer.begin();
+                    try {
+                        pay(bid.getBidder(), auction.getSeller(), total, auction.paymentRequestId(bid.getBidder()));
+                    } finally {
+                        timer.end(Phase.BANK);
+                    }
+                    winner = bid;
+                    break;
+                } catch (bank.RejectedException e) {
+                    notifyTrader(bid.getBidder(), bid.getTrader(), "Your bid on " + auction.getName() +
+                            " could not be paid: " + e.getMessage(), timer);
+                }
+            }
+
+            if (winner == null) {
+                notifyTrader(auction.getSeller(), auction.getSellerTrader(),
+                        "Auction of " + auction.getName() + " closed without winner", timer);
+                LOG.info("Auction of {} closed without winner", auction.getName());
+                return;
+            }
+
+            recordAuctionTrade(auction, winner);
+            trades.record(winner.getBidder(), auction.getSeller(), auction.getName(), winner.getPrice(),
+                    auction.getAmount());
+            history().record(auction.getName(), winner.getPrice(), auction.getAmount());
+            feed.publishTrade(auction.getName(), winner.getPrice(), auction.getAmount());
+
+            notifyTrader(winner.getBidder(), winner.getTrader(), "You won the auction of " + auction.getAmount() +
+                    " " + auction.getName() + " at $" + winner.getPrice(), timer);
+            notifyTrader(auction.getSeller(), auction.getSellerTrader(), auction.getAmount() + " " +
+                    auction.getName() + " sold by auction to " + winner.getBidder() + " at $" + winner.getPrice(), timer);
+            for (Auction.Bid bid : rankedBids) {
+                if (bid != winner)
+                    notifyTrader(bid.getBidder(), bid.getTrader(), "You lost the auction of " + auction.getName() +
+                            " (won at $" + winner.getPrice() + ")", timer);
+            }
+            LOG.info("Auction of {} won by {} at ${}", auction.getName(), winner.getBidder(), winner.getPrice());
+
+        } catch (RemoteException | RuntimeException e) {
+            LOG.error("Settlement of the auction of {} failed: {}", auction.getName(), e);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Transfer from the bidder to the seller in one operation of the bank, again while the bank
+     * does not answer : the request id makes a retry of a transfer already done a no-op
+     */
+    private void pay(String bidder, String seller, float total, String requestId)
+            throws RemoteException, bank.RejectedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                bank().transfer(bidder, seller, total, requestId);
+                return;
+            } catch (RemoteException e) {
+                if (attempt == SETTLEMENT_ATTEMPTS)
+                    throw e;
+                LOG.warn("Payment {} not confirmed by the bank, retrying: {}", requestId, e.getMessage());
+                try {
+                    Thread.sleep(SETTLEMENT_RETRY_DELAY * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void recordAuctionTrade(Auction auction, Auction.Bid winner) throws RemoteException {
+        EntityManager em = null;
+        try {
+            em = beginTransaction();
+
+            User seller = em.find(User.class, auction.getSeller());
+            User buyer = em.find(User.class, winner.getBidder());
+            if (seller != null)
+                seller.setNbTotalItemsSold(seller.getNbTotalItemsSold() + auction.getAmount());
+            if (buyer != null)
+                buyer.setNbTotalItemsBought(buyer.getNbTotalItemsBought() + auction.getAmount());
+
+            if (seller != null && buyer != null)
+                logChanges(em, CatalogChange.user(seller), CatalogChange.user(buyer));
+        } catch (RejectedException e) {
+            throw new IllegalStateException(e); // Counters only increase
+        } finally {
+            if (em != null)
+                commitTransaction(em);
+        }
+    }
+
+    /**
+     * Callback to a trader, through its current session if it logged in again since
+     */
+    private void notifyTrader(String traderName, Trader fallback, String message, PhaseTimer timer) {
+        Trader trader = loggedIn.get(traderName);
+        if (trader == null)
+            trader = fallback;
+
+        timer.begin();
+        try {
+            trader.callback(message);
+        } catch (RemoteException e) {
+            LOG.debug("Trader {} not reachable: {}", traderName, e.getMessage());
+        } finally {
+            timer.end(Phase.CALLBACK);
+        }
+    }
+
+    @Override
+    public CatalogChanges getCatalogSnapshot() throws RemoteException {
+        // Changes committed while reading are also in the log after this sequence : the
+        // replica replays them on top of the snapshot
+        long headSequence = changeLog.getHeadSequence();
+        ArrayList<CatalogChange> changes = new ArrayList<>();
+        EntityManager em = null;
+
+        try {
+            em = beginTransaction();
+
+            for (Item item : em.createNamedQuery("AllItemsToSell", Item.class).getResultList())
+                changes.add(CatalogChange.item(item));
+            for (User user : em.createNamedQuery("AllUsers", User.class).getResultList())
+                changes.add(CatalogChange.user(user));
+        } finally {
+            if (em != null)
+                commitTransaction(em);
+        }
+
+        LOG.info("Catalog snapshot of {} rows sent to a replica", changes.size());
+        return new CatalogChanges(changeLog.getEpoch(), headSequence, true, false, changes);
+    }
+
+    @Override
+    public ArrayList<PriceBar> getPriceHistory(String itemName, long from, long to, PriceBar.Resolution resolution)
+            throws RemoteException {
+        admission.enter(Priority.LISTING, caller());
+        PhaseTimer timer = metrics.startTimer("market.getPriceHistory");
+        try {
+            return history().query(itemName, from, to, resolution);
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    @Override
+    public ArrayList<Item> searchItems(String query, int limit) throws RemoteException {
+        admission.enter(Priority.LISTING, caller());
+        PhaseTimer timer = metrics.startTimer("market.searchItems");
+        try {
+            return searchIndex.search(query, Math.min(limit, MAX_SEARCH_RESULTS));
+        } finally {
+            timer.stop();
+            admission.exit();
+        }
+    }
+
+    private void rebuildSearchIndex(EntityManagerFactory factory) {
+        long start = System.currentTimeMillis();
+        ItemSearchIndex index = new ItemSearchIndex(this::symbols);
+        EntityManager em = factory.createEntityManager();
+        try {
+            // By pages, so that the whole catalog is never held as entities
+            for (int first = 0; ; first += REBUILD_PAGE_SIZE) {
+                List<Item> page = em.createNamedQuery("AllItemsToSellByKey", Item.class).
+                        setFirstResult(first).setMaxResults(REBUILD_PAGE_SIZE).getResultList();
+                // Names listed before the symbols existed get theirs in one transaction per page
+                List<String> names = new ArrayList<>(page.size());
+                for (Item item : page)
+                    names.add(item.getName());
+                symbols().internAll(names);
+                for (Item item : page)
+                    index.apply(CatalogChange.item(item));
+                em.clear();
+                if (page.size() < REBUILD_PAGE_SIZE)
+                    break;
+            }
+        } finally {
+            em.close();
+        }
+        installSearchIndex(index, true);
+        LOG.info("Search index of {} item names, {} listings built in {} ms", index.getNameCount(),
+                index.getListingCount(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The index restored from a checkpoint serves the searches until the one built from the
+     * database, which is authoritative, is ready
+     */
+    private void installSearchIndex(ItemSearchIndex index, boolean fromDatabase) {
+        synchronized (searchIndexLock) {
+            if (fromDatabase || !searchIndexFromDatabase) {
+                searchIndex = index;
+                searchIndexFromDatabase |= fromDatabase;
+            }
+        }
+    }
+
+    // Checkpoints
+    /**
+     * Restore the sessions of the last checkpoint
+     * @return the checkpoint, whose catalog and wishes are restored once the symbols are loaded, null if none
+     */
+    private MarketCheckpoint restoreCheckpoint() {
+        long start = System.currentTimeMillis();
+        try {
+            MarketCheckpoint checkpoint = MarketCheckpoint.read(checkpointFile);
+            if (checkpoint == null)
+                return null;
+
+            loggedIn.putAll(checkpoint.getSessions());
+
+            LOG.info("Checkpoint of {} restored in {} ms: {} sessions",
+                    new Date(checkpoint.getTime()), System.currentTimeMillis() - start,
+                    checkpoint.getSessions().size());
+            return checkpoint;
+        } catch (IOException e) {
+            LOG.warn("Checkpoint {} ignored: {}", checkpointFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Search index of the checkpoint catalog, until the one of the database is built
+     */
+    private void restoreCatalog(MarketCheckpoint checkpoint) {
+        if (checkpoint == null)
+            return;
+
+        long start = System.currentTimeMillis();
+        List<String> names = new ArrayList<>(checkpoint.getCatalog().size());
+        for (CatalogChange item : checkpoint.getCatalog())
+            names.add(item.getName());
+        symbols().internAll(names);
+
+        ItemSearchIndex index = new ItemSearchIndex(this::symbols);
+        for (CatalogChange item : checkpoint.getCatalog())
+            index.apply(item);
+        installSearchIndex(index, false);
+        LOG.info("Catalog of {} items restored in {} ms", checkpoint.getCatalog().size(),
+                System.currentTimeMillis() - start);
+    }
+
+    private void restoreWishes(MarketCheckpoint checkpoint) {
+        if (checkpoint == null)
+            return;
+
+        int nbWishes = 0;
+        for (Map.Entry<String, List<Item>> entry : checkpoint.getWishes().entrySet()) {
+            Trader trader = checkpoint.getTraders().get(entry.getKey());
+            Set<Item> traderWishes = wishesByTrader.computeIfAbsent(entry.getKey(),
+                    n -> ConcurrentHashMap.newKeySet());
+            for (Item item : entry.getValue()) {
+                try {
+                    if (placeWish(item, trader)) {
+                        traderWishes.add(item);
+                        nbWishes++;
+                    }
+                } catch (RejectedException e) {
+                    LOG.warn("Wish of {} on {} not restored: {}", entry.getKey(), item, e.getMessage());
+                }
+            }
+        }
+        LOG.info("{} wishes restored", nbWishes);
+    }
+
+    /**
+     * Write the sessions, the wishes and the catalog to the checkpoint file
+     */
+    public void checkpoint() {
+        if (!wishesRestored.isDone() || wishesRestored.isCompletedExceptionally())
+            return; // The checkpoint would lose the wishes it holds
+        long start = System.nanoTime();
+        Map<String, Trader> traders = new HashMap<>();
+        Map<String, List<Item>> wishes = new HashMap<>();
+        for (Map.Entry<String, Set<Item>> entry : wishesByTrader.entrySet()) {
+            List<Item> items = new ArrayList<>();
+            for (Item item : entry.getValue()) {
+                Trader trader = wisher(item);
+                if (trader != null) {
+                    items.add(item);
+                    traders.put(entry.getKey(), trader);
+                }
+            }
+            if (!items.isEmpty())
+                wishes.put(entry.getKey(), items);
+        }
+
+        try {
+            Files.createDirectories(checkpointFile.getParent());
+            new MarketCheckpoint(System.currentTimeMillis(), new HashMap<>(loggedIn), traders, wishes,
+                    searchIndex.snapshot()).write(checkpointFile);
+            metrics.histogram("market.checkpoint").record(System.nanoTime() - start);
+        } catch (IOException | RuntimeException e) {
+            metrics.increment("market.checkpoint.failed");
+            LOG.error("Checkpoint {} failed: {}", checkpointFile, e);
+        }
+    }
+
+    @Override
+    public CatalogChanges getCatalogChanges(long epoch, long fromSequence, int max) throws RemoteException {
+        return changeLog.readFrom(epoch, fromSequence, max);
+    }
+
+    @Override
+    public boolean isLoggedIn(String traderName) throws RemoteException {
+        PhaseTimer timer = metrics.startTimer("market.isLoggedIn");
+        try {
+            return isLoggedIn(traderName, timer);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Flush the pending changes, which takes their row locks, before reserving their place in
+     * the change log : the replicas then see the changes of a given row in commit order.
+     * They are published (change log, search index) by commitTransaction, once committed.
+     * @param em
+     * @param changes
+     */
+    private void logChanges(EntityManager em, CatalogChange... changes) {
+        em.flush();
+        uncommittedChanges.computeIfAbsent(em, k -> new ArrayList<>(1)).
+                add(changeLog.reserve(Arrays.asList(changes)));
+    }
+
+    /**
+     * @return the entity manager factory, once the persistence unit has started
+     */
+    private EntityManagerFactory emFactory() {
+        try {
+            return emFactory.join();
+        } catch (CompletionException e) {
+            throw new PersistenceException("The market persistence unit failed to start", e.getCause());
+        }
+    }
+
+    /**
+     * @return the item symbols, once loaded
+     */
+    private SymbolTable symbols() {
+        try {
+            return symbols.join();
+        } catch (CompletionException e) {
+            throw new PersistenceException("The item symbols failed to load", e.getCause());
+        }
+    }
+
     // Transaction management
     private EntityManager beginTransaction()
     {
-        EntityManager em = emFactory.createEntityManager();
+        EntityManager em = emFactory().createEntityManager();
         EntityTransaction transaction = em.getTransaction();
         transaction.begin();
         return em;
@@ -434,7 +1819,27 @@ public class MarketImpl extends UnicastRemoteObject implements Market {
 
     private void commitTransaction(EntityManager em)
     {
-        em.getTransaction().commit();
+        List<CatalogChangeLog.Reservation> changes = uncommittedChanges.remove(em);
+        try {
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (changes != null)
+                changes.forEach(changeLog::discard);
+            throw e;
+        }
+        if (changes != null)
+            changes.forEach(changeLog::publish);
+    }
+
+    private void rollbackTransaction(EntityManager em)
+    {
+        List<CatalogChangeLog.Reservation> changes = uncommittedChanges.remove(em);
+        try {
+            em.getTransaction().rollback();
+        } finally {
+            if (changes != null)
+                changes.forEach(changeLog::discard);
+        }
     }
 
 }
@@ -0,0 +1,263 @@
+package market;
+
+
+import logging.AsyncLogger;
+import market.RejectedException.Reason;
+import metrics.MetricsRegistry;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Read-only replica of the market catalog.
+ *
+ * The replica loads a snapshot of the primary catalog, then tails its change log and
+ * serves listing and statistics queries from its own in-memory store, so these reads
+ * no longer compete with the trades on the primary. Several replicas can run side by side.
+ *
+ * Staleness is the time elapsed since the replica was last up to date with the primary;
+ * reads are rejected once it exceeds the configured bound.
+ */
+@SuppressWarnings("serial")
+public class MarketReplica extends UnicastRemoteObject implements MarketCatalog {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(MarketReplica.class);
+    private static final String USAGE = "java market.MarketReplica <LOCAL_REGISTRY_PORT_NUMBER> " +
+            "[<REPLICA_NAME> [<PRIMARY_MARKET_NAME>]]";
+    private static final int DEFAULT_LOCAL_REGISTRY_PORT_NUMBER = 1099;
+    private static final String DEFAULT_REPLICA_NAME = "MarketReplica";
+    private static final String DEFAULT_MARKET_NAME = "Market";
+    private static final int BATCH_SIZE = 4096;
+
+    private static final Comparator<ItemKey> ITEM_KEY_ORDER = (k1, k2) -> {
+        int cmp = k1.getName().compareTo(k2.getName());
+        return cmp != 0 ? cmp : Float.compare(k1.getPrice(), k2.getPrice());
+    };
+
+    private final CatalogSource primary;
+    private final long maxStalenessMillis;
+    private final long resyncIntervalMillis;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    // Replica store, only written by the sync thread
+    private final ConcurrentNavigableMap<ItemKey, ReplicaItem> items = new ConcurrentSkipListMap<>(ITEM_KEY_ORDER);
+    private final ConcurrentMap<String, int[]> stats = new ConcurrentHashMap<>();
+    private long epoch;
+    private long appliedSequence = -1; // -1 : snapshot needed
+    private long lastSnapshotTime;
+    private volatile long upToDateTime = 0;
+
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-replica-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor
+     * @param primary replication side of the primary market
+     * @param pollIntervalMillis delay between two pulls of the change log
+     * @param maxStalenessMillis staleness above which reads are rejected
+     * @param resyncIntervalMillis period of the full snapshot reloads, 0 to disable
+     * @throws RemoteException
+     */
+    public MarketReplica(CatalogSource primary, long pollIntervalMillis, long maxStalenessMillis,
+                         long resyncIntervalMillis) throws RemoteException {
+        super();
+        this.primary = primary;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.resyncIntervalMillis = resyncIntervalMillis;
+        syncer.scheduleWithFixedDelay(this::sync, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ArrayList<Item> getAllItems() throws RemoteException, RejectedException {
+        checkStaleness();
+
+        ArrayList<Item> result = new ArrayList<>(items.size());
+        for (ReplicaItem item : items.values())
+            result.add(new Item(item.name, item.price, item.amount));
+        return result;
+    }
+
+    @Override
+    public ArrayList<String> getStats(String username) throws RemoteException, RejectedException {
+        checkStaleness();
+
+        // Same rule as the primary : only the logged in traders, which only the primary knows
+        if (!primary.isLoggedIn(username)) {
+            metrics.increment(Reason.NOT_LOGGED_IN.getCounter());
+            throw new RejectedException(Reason.NOT_LOGGED_IN, "Get Statistics");
+        }
+
+        int[] userStats = stats.get(username);
+        if (userStats == null)
+            throw new RejectedException("Get Statistics failed: user " +
+                    username + " is not registered on the market.");
+
+        ArrayList<String> result = new ArrayList<>(2);
+        result.add(Market.INDEX_NB_TOTAL_ITEMS_BOUGHT, String.valueOf(userStats[Market.INDEX_NB_TOTAL_ITEMS_BOUGHT]));
+        result.add(Market.INDEX_NB_TOTAL_ITEMS_SOLD, String.valueOf(userStats[Market.INDEX_NB_TOTAL_ITEMS_SOLD]));
+        return result;
+    }
+
+    @Override
+    public long getStalenessMillis() {
+        long upToDate = upToDateTime;
+        return upToDate == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - upToDate;
+    }
+
+    private void checkStaleness() throws RejectedException {
+        long staleness = getStalenessMillis();
+        if (staleness != Long.MAX_VALUE)
+            metrics.histogram("replica.staleness").record(TimeUnit.MILLISECONDS.toNanos(staleness));
+        if (staleness > maxStalenessMillis) {
+            metrics.increment("replica.rejected.stale");
+            throw new RejectedException("Replica too stale (" +
+                    (staleness == Long.MAX_VALUE ? "never synchronized" : staleness + " ms") +
+                    "), use the primary market");
+        }
+    }
+
+    // Synchronization with the primary
+    private void sync() {
+        try {
+            long now = System.currentTimeMillis();
+            if (appliedSequence < 0 || (resyncIntervalMillis > 0 && now - lastSnapshotTime > resyncIntervalMillis))
+                loadSnapshot();
+
+            CatalogChanges batch;
+            do {
+                long pullTime = System.currentTimeMillis();
+                batch = primary.getCatalogChanges(epoch, appliedSequence, BATCH_SIZE);
+                if (batch.isResyncNeeded()) {
+                    loadSnapshot();
+                    return;
+                }
+
+                for (CatalogChange change : batch.getChanges())
+                    apply(change);
+                if (!batch.getChanges().isEmpty())
+                    appliedSequence = batch.getChanges().get(batch.getChanges().size() - 1).getSequence();
+
+                if (appliedSequence >= batch.getHeadSequence())
+                    upToDateTime = pullTime;
+            } while (appliedSequence < batch.getHeadSequence());
+
+        } catch (RemoteException e) {
+            LOG.warn("Replica cannot reach the primary market: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            LOG.error("Replica synchronization failed: {}", e);
+            appliedSequence = -1;
+        }
+    }
+
+    private void loadSnapshot() throws RemoteException {
+        long pullTime = System.currentTimeMillis();
+        CatalogChanges snapshot = primary.getCatalogSnapshot();
+
+        Set<ItemKey> staleItems = new HashSet<>(items.keySet());
+        Set<String> staleUsers = new HashSet<>(stats.keySet());
+        for (CatalogChange change : snapshot.getChanges()) {
+            apply(change);
+            if (change.getType() == CatalogChange.Type.ITEM)
+                staleItems.remove(new ItemKey(change.getName(), change.getPrice()));
+            else
+                staleUsers.remove(change.getName());
+        }
+        items.keySet().removeAll(staleItems);
+        stats.keySet().removeAll(staleUsers);
+
+        epoch = snapshot.getEpoch();
+        appliedSequence = snapshot.getHeadSequence();
+        lastSnapshotTime = pullTime;
+        metrics.increment("replica.snapshots");
+        LOG.info("Replica loaded a snapshot of {} rows at sequence {}", snapshot.getChanges().size(), appliedSequence);
+    }
+
+    private void apply(CatalogChange change) {
+        switch (change.getType()) {
+            case ITEM:
+                items.put(new ItemKey(change.getName(), change.getPrice()),
+                        new ReplicaItem(change.getName(), change.getPrice(), change.getAmount(), change.getSeller()));
+                break;
+            case ITEM_REMOVED:
+                items.remove(new ItemKey(change.getName(), change.getPrice()));
+                break;
+            case SELLER_REMOVED:
+                items.values().removeIf(item -> item.seller.equals(change.getSeller()));
+                break;
+            case USER:
+                int[] userStats = new int[2];
+                userStats[Market.INDEX_NB_TOTAL_ITEMS_BOUGHT] = change.getNbItemsBought();
+                userStats[Market.INDEX_NB_TOTAL_ITEMS_SOLD] = change.getNbItemsSold();
+                stats.put(change.getName(), userStats);
+                break;
+            case USER_REMOVED:
+                stats.remove(change.getName());
+                break;
+        }
+    }
+
+    public void shutdown() {
+        syncer.shutdown();
+    }
+
+    private static class ReplicaItem {
+        private final String name;
+        private final float price;
+        private final int amount;
+        private final String seller;
+
+        private ReplicaItem(String name, float price, int amount, String seller) {
+            this.name = name;
+            this.price = price;
+            this.amount = amount;
+            this.seller = seller;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 3 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        int registryPortNumber = DEFAULT_LOCAL_REGISTRY_PORT_NUMBER;
+        try {
+            if (args.length > 0)
+                registryPortNumber = Integer.parseInt(args[0]);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port number for the registry");
+            System.exit(1);
+        }
+        String replicaName = args.length > 1 ? args[1] : DEFAULT_REPLICA_NAME;
+        String marketName = args.length > 2 ? args[2] : DEFAULT_MARKET_NAME;
+
+        try {
+            Registry registry;
+            try {
+                registry = LocateRegistry.getRegistry(registryPortNumber);
+                registry.list();
+            } catch (RemoteException e) {
+                registry = LocateRegistry.createRegistry(registryPortNumber);
+            }
+
+            CatalogSource primary = (CatalogSource) registry.lookup(marketName);
+            MarketReplica replica = new MarketReplica(primary,
+                    Long.getLong("marketplace.replica.pollInterval", 100),
+                    Long.getLong("marketplace.replica.maxStaleness", 5000),
+                    Long.getLong("marketplace.replica.resyncInterval", 10 * 60 * 1000));
+            Naming.rebind("rmi://localhost:" + registryPortNumber + "/" + replicaName, replica);
+            System.out.println("Replica " + replicaName + " of " + marketName + " is ready.");
+
+        } catch (Exception e) {
+            System.err.println("The runtime failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
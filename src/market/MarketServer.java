@@ -1,7 +1,10 @@
 package market;
 
+import capture.WorkloadRecorder;
 import client.Client;
+import metrics.MetricsReporter;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
@@ -9,13 +12,14 @@ import java.rmi.registry.LocateRegistry;
 
 
 public class MarketServer {
-    private static final String USAGE = "java market.MarketImpl <LOCAL_REGISTRY_PORT_NUMBER>";
+    private static final String USAGE = "java market.MarketServer <LOCAL_REGISTRY_PORT_NUMBER> " +
+            "[<NB_SHARDS> [<SHARD_INDEX>]]";
     private static final int DEFAULT_LOCAL_REGISTRY_PORT_NUMBER = 1099;
     private static final String DEFAULT_MARKET_NAME = "Market";
     private static final String BANK = "Nordea";
 
     public static void main(String[] args) {
-        if (args.length > 1 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+        if (args.length > 3 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
             System.out.println(USAGE);
             System.exit(1);
         }
@@ -31,6 +35,27 @@ public class MarketServer {
             System.exit(1);
         }
 
+        // Sharded market : host every shard in this JVM, or only the given one
+        int nbShards = 0;
+        int firstShard = 0;
+        int lastShard = 0;
+        try {
+            if (args.length > 1) {
+                nbShards = Integer.parseInt(args[1]);
+                lastShard = nbShards - 1;
+            }
+            if (args.length > 2) {
+                firstShard = lastShard = Integer.parseInt(args[2]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid shard number");
+            System.exit(1);
+        }
+        if (args.length > 1 && (nbShards < 1 || firstShard < 0 || lastShard >= nbShards)) {
+            System.err.println("Invalid shard number");
+            System.exit(1);
+        }
+
         try {
             try {
                 LocateRegistry.getRegistry(registryPortNumber).list();
@@ -38,13 +63,53 @@ public class MarketServer {
                 LocateRegistry.createRegistry(registryPortNumber);
             }
 
+            // Optional capture of the calls, for a replay
+            WorkloadRecorder recorder = WorkloadRecorder.fromProperty();
+            if (recorder != null)
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+
             // Bind the market in the RMIRegistry
-            MarketImpl market = new MarketImpl(BANK, DEFAULT_LOCAL_REGISTRY_PORT_NUMBER);
-            Naming.rebind("rmi://localhost:" + registryPortNumber + "/" + DEFAULT_MARKET_NAME, market);
+            if (nbShards == 0) {
+                MarketImpl market = new MarketImpl(BANK, DEFAULT_LOCAL_REGISTRY_PORT_NUMBER);
+                Runtime.getRuntime().addShutdownHook(new Thread(market::checkpoint));
+                String name = "rmi://localhost:" + registryPortNumber + "/" + DEFAULT_MARKET_NAME;
+                Naming.rebind(name, recorder != null ? recorder.export(market, Market.class) : market);
+                exitOnFailedStart(market, name);
+            } else {
+                for (int shard = firstShard; shard <= lastShard; shard++) {
+                    MarketImpl market = new MarketImpl(BANK, DEFAULT_LOCAL_REGISTRY_PORT_NUMBER,
+                            "market_" + shard);
+                    Runtime.getRuntime().addShutdownHook(new Thread(market::checkpoint));
+                    String name = "rmi://localhost:" + registryPortNumber + "/" +
+                            ShardedMarket.shardName(DEFAULT_MARKET_NAME, shard);
+                    Naming.rebind(name, recorder != null ? recorder.export(market, Market.class) : market);
+                    exitOnFailedStart(market, name);
+                }
+            }
+            MetricsReporter.startDefault();
 
-        } catch (RemoteException | MalformedURLException re) {
+        } catch (IOException re) {
             System.err.println(re);
             System.exit(1);
         }
     }
+
+    /**
+     * A market whose startup failed is already stopped : give back its name and exit
+     * @param market
+     * @param name
+     */
+    private static void exitOnFailedStart(MarketImpl market, String name) {
+        market.started().whenComplete((v, e) -> {
+            if (e == null)
+                return;
+            try {
+                Naming.unbind(name);
+            } catch (Exception unbind) {
+                // Registry gone with this JVM, or name rebound since
+            }
+            System.err.println("Market startup failed: " + e.getCause());
+            System.exit(1);
+        });
+    }
 }
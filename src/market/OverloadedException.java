@@ -0,0 +1,21 @@
+package market;
+
+
+import java.rmi.RemoteException;
+
+/**
+ * Call refused by the admission control of the market. The client may retry later.
+ * Thrown on overload : no stack trace is captured.
+ */
+public class OverloadedException extends RemoteException {
+    private static final long serialVersionUID = 4172658833215004523L;
+
+    public OverloadedException(String reason) {
+        super(reason);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,74 @@
+package market;
+
+
+import javax.persistence.*;
+
+/**
+ * Hold of the bank to commit for a trade committed by the market : written in the transaction
+ * of the trade, deleted once the bank confirms the commit. The rows left by a stopped market
+ * are committed again at startup.
+ */
+@NamedQueries({
+        @NamedQuery(
+                name = "AllPendingSettlements",
+                query = "SELECT s FROM PendingSettlement s ORDER BY s.holdId"
+        )
+})
+
+@Entity(name = "PendingSettlement")
+@Table(name = "PENDING_SETTLEMENTS")
+public class PendingSettlement {
+
+    @Id
+    @Column(name = "hold_id", nullable = false)
+    private long holdId;
+
+    @Column(name = "buyer", nullable = false, updatable = false)
+    private String buyer;
+
+    @Column(name = "seller", nullable = false, updatable = false)
+    private String seller;
+
+    @Column(name = "amount", nullable = false, updatable = false)
+    private float amount;
+
+    @Column(name = "time", nullable = false, updatable = false)
+    private long time;
+
+    public PendingSettlement() { }
+
+    /**
+     * Constructor
+     * @param holdId hold of the bank paying the trade
+     * @param buyer
+     * @param seller
+     * @param amount total price of the trade
+     */
+    public PendingSettlement(long holdId, String buyer, String seller, float amount) {
+        this.holdId = holdId;
+        this.buyer = buyer;
+        this.seller = seller;
+        this.amount = amount;
+        this.time = System.currentTimeMillis();
+    }
+
+    public long getHoldId() {
+        return holdId;
+    }
+
+    public String getBuyer() {
+        return buyer;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public float getAmount() {
+        return amount;
+    }
+
+    public long getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,94 @@
+package market;
+
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Trades of an item over one period : open / high / low / close prices and volume
+ */
+public class PriceBar implements Serializable {
+    private static final long serialVersionUID = -3902117524006214713L;
+
+    public enum Resolution {
+        MINUTE(60 * 1000L), HOUR(60 * 60 * 1000L), DAY(24 * 60 * 60 * 1000L);
+
+        private final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long bucketStart(long time) {
+            return time - Math.floorMod(time, millis);
+        }
+    }
+
+    private final long start;
+    private final float open;
+    private final float high;
+    private final float low;
+    private final float close;
+    private final long volume;
+    private final int trades;
+
+    public PriceBar(long start, float open, float high, float low, float close, long volume, int trades) {
+        this.start = start;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.volume = volume;
+        this.trades = trades;
+    }
+
+    /**
+     * @return start of the period (ms since the epoch, UTC aligned)
+     */
+    public long getStart() {
+        return start;
+    }
+
+    public float getOpen() {
+        return open;
+    }
+
+    public float getHigh() {
+        return high;
+    }
+
+    public float getLow() {
+        return low;
+    }
+
+    public float getClose() {
+        return close;
+    }
+
+    /**
+     * @return number of items traded
+     */
+    public long getVolume() {
+        return volume;
+    }
+
+    public int getTrades() {
+        return trades;
+    }
+
+    @Override
+    public String toString() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(start)) +
+                " open : $" + open +
+                ", high : $" + high +
+                ", low : $" + low +
+                ", close : $" + close +
+                ", volume : " + volume +
+                ", trades : " + trades;
+    }
+}
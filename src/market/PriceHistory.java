@@ -0,0 +1,429 @@
+package market;
+
+
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-series store of the trade prices and volumes of each item name.
+ *
+ * Trades are appended to fixed size memory-mapped segment files (20 bytes per trade :
+ * time, name id, price, amount), the item names to an append-only dictionary. Each item
+ * keeps in memory its rollups at 1 minute, 1 hour and 1 day as columnar arrays sorted by
+ * time, so a range query is a binary search and a copy. The rollups are rebuilt from the
+ * segments at startup. Each resolution keeps its bars for a retention period : the older
+ * ones are dropped from memory once a minute, and after each segment replayed at startup.
+ *
+ * record() only queues the trade : the single writer thread appends it and updates the
+ * rollups. When the queue is full the trade is dropped from the history and counted.
+ */
+public class PriceHistory {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(PriceHistory.class);
+    private static final int RECORD_SIZE = 20;
+    private static final int SEGMENT_SIZE = RECORD_SIZE * (1 << 20); // 1M trades per segment
+    private static final String SEGMENT_PREFIX = "trades-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String NAMES_FILE = "names.dat";
+    private static final long FORCE_INTERVAL_MILLIS = 1000;
+    private static final long TRIM_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Path directory;
+    private final EnumMap<PriceBar.Resolution, Long> retentionMillis;
+    private final BlockingQueue<Trade> queue;
+    private final ConcurrentMap<String, ItemSeries> series = new ConcurrentHashMap<>();
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    // Writer thread only
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private FileOutputStream namesFile;
+    private DataOutputStream namesOut;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int segmentIndex = -1;
+    private boolean dirty = false;
+    private long lastTrim = System.currentTimeMillis();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor : loads the existing segments of the directory
+     * @param directory
+     * @param queueCapacity trades waiting for the writer thread
+     * @param retentionMillis time the bars of each resolution are kept in memory
+     * @throws IOException
+     */
+    public PriceHistory(Path directory, int queueCapacity, EnumMap<PriceBar.Resolution, Long> retentionMillis)
+            throws IOException {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(directory);
+
+        long start = System.currentTimeMillis();
+        List<String> names = loadNames();
+        long trades = replaySegments(names);
+        namesFile = new FileOutputStream(directory.resolve(NAMES_FILE).toFile(), true);
+        namesOut = new DataOutputStream(new BufferedOutputStream(namesFile));
+        LOG.info("Price history of {} items ({} trades) loaded in {} ms", names.size(), trades,
+                System.currentTimeMillis() - start);
+
+        writer = new Thread(this::write, "market-price-history");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Record a trade, without waiting for the disk
+     */
+    public void record(String itemName, float price, int amount) {
+        if (!queue.offer(new Trade(System.currentTimeMillis(), itemName, price, amount)))
+            metrics.increment("market.history.dropped");
+    }
+
+    /**
+     * Bars of an item whose period starts in [from, to]
+     */
+    public ArrayList<PriceBar> query(String itemName, long from, long to, PriceBar.Resolution resolution) {
+        ItemSeries itemSeries = series.get(itemName);
+        if (itemSeries == null)
+            return new ArrayList<>();
+        return itemSeries.bars[resolution.ordinal()].range(resolution.bucketStart(from), to);
+    }
+
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writer thread
+    private void write() {
+        List<Trade> batch = new ArrayList<>();
+        try {
+            while (running || !queue.isEmpty()) {
+                Trade first;
+                try {
+                    first = queue.poll(FORCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    first = queue.poll(); // Stopping : drain what is left
+                    if (first == null)
+                        break;
+                }
+
+                if (System.currentTimeMillis() - lastTrim >= TRIM_INTERVAL_MILLIS) {
+                    lastTrim = System.currentTimeMillis();
+                    trim(lastTrim);
+                }
+                if (first == null) {
+                    force(); // Idle
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch);
+                for (Trade trade : batch)
+                    append(trade);
+                batch.clear();
+            }
+            force();
+        } catch (IOException e) {
+            LOG.error("Price history writer stopped: {}", e);
+        } finally {
+            try {
+                namesOut.close();
+                if (segmentChannel != null)
+                    segmentChannel.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private void append(Trade trade) throws IOException {
+        Integer id = nameIds.get(trade.name);
+        if (id == null) {
+            // The name is on disk before the first trade referencing it : the mapped segment
+            // may be written back at any time
+            id = nameIds.size();
+            namesOut.writeUTF(trade.name);
+            namesOut.flush();
+            namesFile.getFD().sync();
+            nameIds.put(trade.name, id);
+        }
+
+        if (segment == null || segment.remaining() < RECORD_SIZE)
+            nextSegment();
+        segment.putLong(trade.time).putInt(id).putFloat(trade.price).putInt(trade.amount);
+        dirty = true;
+
+        apply(trade.name, trade.time, trade.price, trade.amount);
+    }
+
+    private void apply(String name, long time, float price, int amount) {
+        series.computeIfAbsent(name, n -> new ItemSeries()).add(time, price, amount);
+    }
+
+    /**
+     * Drop the bars older than the retention of their resolution, and the items left without bars
+     */
+    private void trim(long now) {
+        long start = System.nanoTime();
+        int dropped = 0;
+        for (Iterator<ItemSeries> it = series.values().iterator(); it.hasNext(); ) {
+            ItemSeries itemSeries = it.next();
+            int left = 0;
+            for (PriceBar.Resolution resolution : PriceBar.Resolution.values()) {
+                BarSeries bars = itemSeries.bars[resolution.ordinal()];
+                int size = bars.size();
+                left += bars.trim(resolution.bucketStart(now - retentionMillis.get(resolution)));
+                dropped += size - bars.size();
+            }
+            if (left == 0)
+                it.remove(); // Only the writer thread adds bars
+        }
+        if (dropped > 0) {
+            metrics.counter("market.history.trimmed").add(dropped);
+            metrics.histogram("market.history.trim").record(System.nanoTime() - start);
+        }
+    }
+
+    private void force() {
+        if (dirty) {
+            segment.force();
+            dirty = false;
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        force();
+        if (segmentChannel != null)
+            segmentChannel.close();
+
+        segmentIndex++;
+        segmentChannel = FileChannel.open(segmentPath(segmentIndex),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        metrics.increment("market.history.segments");
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    // Startup
+    private List<String> loadNames() throws IOException {
+        List<String> names = new ArrayList<>();
+        Path file = directory.resolve(NAMES_FILE);
+        if (!Files.exists(file))
+            return names;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true)
+                names.add(in.readUTF());
+        } catch (EOFException e) {
+            // End of the dictionary
+        }
+        for (int i = 0; i < names.size(); i++)
+            nameIds.put(names.get(i), i);
+        return names;
+    }
+
+    private long replaySegments(List<String> names) throws IOException {
+        long trades = 0;
+        while (Files.exists(segmentPath(segmentIndex + 1))) {
+            segmentIndex++;
+            try (FileChannel channel = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    long time = buffer.getLong();
+                    if (time == 0)
+                        break; // End of the written records
+                    int id = buffer.getInt();
+                    float price = buffer.getFloat();
+                    int amount = buffer.getInt();
+                    if (id < names.size())
+                        apply(names.get(id), time, price, amount);
+                    trades++;
+                }
+            }
+            trim(System.currentTimeMillis()); // Older segments never fill the heap
+        }
+
+        // Keep appending to the last segment
+        if (segmentIndex >= 0) {
+            segmentChannel = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            while (segment.remaining() >= RECORD_SIZE && segment.getLong(segment.position()) != 0)
+                segment.position(segment.position() + RECORD_SIZE);
+        }
+        return trades;
+    }
+
+    private static class Trade {
+        private final long time;
+        private final String name;
+        private final float price;
+        private final int amount;
+
+        private Trade(long time, String name, float price, int amount) {
+            this.time = time;
+            this.name = name;
+            this.price = price;
+            this.amount = amount;
+        }
+    }
+
+    private static class ItemSeries {
+        private final BarSeries[] bars = new BarSeries[PriceBar.Resolution.values().length];
+
+        private ItemSeries() {
+            for (PriceBar.Resolution resolution : PriceBar.Resolution.values())
+                bars[resolution.ordinal()] = new BarSeries(resolution);
+        }
+
+        private void add(long time, float price, int amount) {
+            for (BarSeries b : bars)
+                b.add(time, price, amount);
+        }
+    }
+
+    /**
+     * Bars of one item at one resolution, as columns sorted by start time
+     */
+    private static class BarSeries {
+        private final PriceBar.Resolution resolution;
+        private long[] start = new long[8];
+        private float[] open = new float[8];
+        private float[] high = new float[8];
+        private float[] low = new float[8];
+        private float[] close = new float[8];
+        private long[] volume = new long[8];
+        private int[] trades = new int[8];
+        private int size = 0;
+
+        private BarSeries(PriceBar.Resolution resolution) {
+            this.resolution = resolution;
+        }
+
+        private synchronized void add(long time, float price, int amount) {
+            long bucket = resolution.bucketStart(time);
+            int i;
+            if (size > 0 && start[size - 1] == bucket)
+                i = size - 1; // Usual case : the current bar
+            else {
+                i = Arrays.binarySearch(start, 0, size, bucket);
+                if (i < 0) {
+                    i = -i - 1;
+                    insert(i, bucket, price);
+                }
+            }
+
+            high[i] = Math.max(high[i], price);
+            low[i] = Math.min(low[i], price);
+            close[i] = price; // Trades of a period are recorded in time order
+            volume[i] += amount;
+            trades[i]++;
+        }
+
+        private void insert(int i, long bucket, float price) {
+            if (size == start.length) {
+                int capacity = size * 2;
+                start = Arrays.copyOf(start, capacity);
+                open = Arrays.copyOf(open, capacity);
+                high = Arrays.copyOf(high, capacity);
+                low = Arrays.copyOf(low, capacity);
+                close = Arrays.copyOf(close, capacity);
+                volume = Arrays.copyOf(volume, capacity);
+                trades = Arrays.copyOf(trades, capacity);
+            }
+            if (i < size) {
+                // Late trade in an empty period, rare
+                System.arraycopy(start, i, start, i + 1, size - i);
+                System.arraycopy(open, i, open, i + 1, size - i);
+                System.arraycopy(high, i, high, i + 1, size - i);
+                System.arraycopy(low, i, low, i + 1, size - i);
+                System.arraycopy(close, i, close, i + 1, size - i);
+                System.arraycopy(volume, i, volume, i + 1, size - i);
+                System.arraycopy(trades, i, trades, i + 1, size - i);
+            }
+            start[i] = bucket;
+            open[i] = price;
+            high[i] = price;
+            low[i] = price;
+            close[i] = price;
+            volume[i] = 0;
+            trades[i] = 0;
+            size++;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Drop the bars started before a time
+         * @return the number of bars left
+         */
+        private synchronized int trim(long before) {
+            int cut = Arrays.binarySearch(start, 0, size, before);
+            if (cut < 0)
+                cut = -cut - 1;
+            if (cut == 0)
+                return size;
+
+            size -= cut;
+            int capacity = start.length > 32 && size < start.length / 4 ? Math.max(8, size * 2) : start.length;
+            start = shift(start, cut, capacity);
+            open = shift(open, cut, capacity);
+            high = shift(high, cut, capacity);
+            low = shift(low, cut, capacity);
+            close = shift(close, cut, capacity);
+            volume = shift(volume, cut, capacity);
+            trades = shift(trades, cut, capacity);
+            return size;
+        }
+
+        private long[] shift(long[] column, int cut, int capacity) {
+            long[] shifted = capacity == column.length ? column : new long[capacity];
+            System.arraycopy(column, cut, shifted, 0, size);
+            return shifted;
+        }
+
+        private float[] shift(float[] column, int cut, int capacity) {
+            float[] shifted = capacity == column.length ? column : new float[capacity];
+            System.arraycopy(column, cut, shifted, 0, size);
+            return shifted;
+        }
+
+        private int[] shift(int[] column, int cut, int capacity) {
+            int[] shifted = capacity == column.length ? column : new int[capacity];
+            System.arraycopy(column, cut, shifted, 0, size);
+            return shifted;
+        }
+
+        private synchronized ArrayList<PriceBar> range(long from, long to) {
+            int first = Arrays.binarySearch(start, 0, size, from);
+            if (first < 0)
+                first = -first - 1;
+            ArrayList<PriceBar> result = new ArrayList<>();
+            for (int i = first; i < size && start[i] <= to; i++)
+                result.add(new PriceBar(start[i], open[i], high[i], low[i], close[i], volume[i], trades[i]));
+            return result;
+        }
+    }
+}
@@ -1,9 +1,88 @@
 package market;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Routine refusal of a market operation. Rejections are frequent (e.g. during a flash sale),
+ * so they capture no stack trace and carry a reason code and its arguments : the message is
+ * only formatted when asked for, usually by the client.
+ */
 final public class RejectedException extends Exception {
     private static final long serialVersionUID = -314439670131687936L;
 
+    public enum Reason {
+        ALREADY_LOGGED_IN("You are already logged in"),
+        NOT_LOGGED_IN("%s failed: you are not logged in / registered on the market"),
+        NOT_REGISTERED("%s failed: user %s is not registered on the market"),
+        ALREADY_REGISTERED("Registration failed: trader %s already registered"),
+        WRONG_PASSWORD("Login failed: wrong password"),
+        INVALID_PASSWORD("Invalid size of password : must contain at least 8 characters"),
+        NO_ACCOUNT("%s failed: you do not get an account at bank %s"),
+        ALREADY_LISTED("Sell failed: item %s already on the market"),
+        NOT_ON_MARKET("Buy failed: item %s no longer on the market"),
+        INSUFFICIENT_STOCK("Buy failed: you cannot buy %d items %s : there is only %d items remaining on the market"),
+        DUPLICATE_WISH("%s already placed a wish on %s"),
+        TOO_MANY_WISHES("Wish failed: too many items wished but never listed, at most %d"),
+        INVALID_AUCTION("Auction failed: invalid amount, price or duration"),
+        AUCTION_EXISTS("Auction failed: an auction is already open on %s"),
+        BID_REFUSED("Bid failed: %s"),
+        INVALID_ITEM("Sell failed: invalid item %s (%s)"),
+        INVALID_CHUNK("%s failed: a chunk holds at most %d rows"),
+        SESSION_CLOSED("%s failed: the session is closed"),
+        TOO_MANY_SESSIONS("%s failed: too many sessions open, at most %d"),
+        OTHER("%s");
+
+        private final String format;
+        private final String counter = "market.rejected." + name().toLowerCase();
+
+        Reason(String format) {
+            this.format = format;
+        }
+
+        /**
+         * @return name of the metrics counter of the rejections for this reason
+         */
+        public String getCounter() {
+            return counter;
+        }
+    }
+
+    private final Reason reason;
+    private final Object[] args;
+    private transient String message;
+
     public RejectedException(String reason) {
-        super(reason);
+        this(Reason.OTHER, reason);
+    }
+
+    /**
+     * Constructor
+     * @param reason
+     * @param args arguments of the message of the reason, serializable
+     */
+    public RejectedException(Reason reason, Object... args) {
+        super(null, null, false, false); // Stackless
+        this.reason = reason;
+        this.args = args;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    @Override
+    public String getMessage() {
+        if (message == null)
+            message = String.format(reason.format, args);
+        return message;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // The client only needs the text of the arguments, not e.g. the whole item and its seller
+        for (int i = 0; i < args.length; i++)
+            if (args[i] != null && !(args[i] instanceof Number) && !(args[i] instanceof String))
+                args[i] = args[i].toString();
+        out.defaultWriteObject();
     }
 }
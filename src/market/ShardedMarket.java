@@ -0,0 +1,569 @@
+package market;
+
+
+import client.Trader;
+import logging.AsyncLogger;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Client-side router of a sharded market.
+ *
+ * Item names are hash-partitioned across several market nodes, each one with its own
+ * database. sell / buy / wish go to the shard owning the item name, listings and
+ * statistics are gathered from every shard in parallel. Traders are registered and
+ * logged in on every shard, since each shard keeps its own users : when a shard refuses a
+ * login or a registration, it is undone on the shards where it succeeded.
+ */
+public class ShardedMarket implements Market {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ShardedMarket.class);
+    private final List<Market> shards;
+    private final ExecutorService executor;
+
+    public ShardedMarket(List<Market> shards) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("A sharded market needs at least one shard");
+
+        this.shards = new ArrayList<>(shards);
+        this.executor = Executors.newFixedThreadPool(this.shards.size(), r -> {
+            Thread t = new Thread(r, "market-shard-gather");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Look up the shards bound as marketName-0 ... marketName-(shardCount - 1)
+     */
+    public static ShardedMarket lookup(Registry registry, String marketName, int shardCount)
+            throws RemoteException, NotBoundException {
+        List<Market> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++)
+            shards.add((Market) registry.lookup(shardName(marketName, i)));
+        return new ShardedMarket(shards);
+    }
+
+    public static String shardName(String marketName, int shardIndex) {
+        return marketName + "-" + shardIndex;
+    }
+
+    public static int shardOf(String itemName, int shardCount) {
+        int h = itemName.hashCode();
+        h ^= (h >>> 16); // Spread the high bits, as HashMap does
+        return Math.floorMod(h, shardCount);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    private Market shardFor(String itemName) {
+        return shards.get(shardOf(itemName, shards.size()));
+    }
+
+    @Override
+    public void login(Trader trader, String password) throws RemoteException, RejectedException {
+        String traderName = trader.getClientName();
+        applyAll(shards, shard -> shard.login(trader, password), shard -> shard.logout(traderName));
+    }
+
+    @Override
+    public void logout(String traderName) throws RemoteException, RejectedException {
+        gather(shard -> {
+            shard.logout(traderName);
+            return null;
+        });
+    }
+
+    @Override
+    public void register(Trader trader, String password) throws RemoteException, RejectedException {
+        // The first shard decides (name already taken, password too short, ...)
+        shards.get(0).register(trader, password);
+        try {
+            applyAll(shards.subList(1, shards.size()), shard -> shard.register(trader, password),
+                    shard -> shard.unregister(trader));
+        } catch (RemoteException | RejectedException | RuntimeException e) {
+            undo(Collections.singletonList(shards.get(0)), shard -> shard.unregister(trader));
+            throw e;
+        }
+    }
+
+    @Override
+    public void unregister(Trader trader) throws RemoteException, RejectedException {
+        // Cannot be undone (the listings are deleted) : applied on every shard, a failed shard is
+        // left to a new unregistration
+        gather(shard -> {
+            shard.unregister(trader);
+            return null;
+        });
+    }
+
+    @Override
+    public void sell(Item item, Trader trader) throws RemoteException, RejectedException {
+        shardFor(item.getName()).sell(item, trader);
+    }
+
+    @Override
+    public void sell(Item item, Trader trader, String requestId) throws RemoteException, RejectedException {
+        shardFor(item.getName()).sell(item, trader, requestId);
+    }
+
+    @Override
+    public void buy(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException {
+        shardFor(item.getName()).buy(item, trader);
+    }
+
+    @Override
+    public void buy(Item item, Trader trader, String requestId)
+            throws RemoteException, RejectedException, bank.RejectedException {
+        shardFor(item.getName()).buy(item, trader, requestId);
+    }
+
+    @Override
+    public void wish(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException {
+        shardFor(item.getName()).wish(item, trader);
+    }
+
+    @Override
+    public ArrayList<Item> getAllItems() throws RemoteException {
+        try {
+            ArrayList<Item> items = new ArrayList<>();
+            for (ArrayList<Item> shardItems : gather(Market::getAllItems))
+                items.addAll(shardItems);
+            Collections.sort(items);
+            return items;
+        } catch (RejectedException e) {
+            throw new RemoteException("Listing failed on a shard", e); // Not thrown by getAllItems
+        }
+    }
+
+    @Override
+    public ArrayList<String> getStats(String username) throws RemoteException, RejectedException {
+        long bought = 0;
+        long sold = 0;
+        for (ArrayList<String> shardStats : gather(shard -> shard.getStats(username))) {
+            bought += Long.parseLong(shardStats.get(INDEX_NB_TOTAL_ITEMS_BOUGHT));
+            sold += Long.parseLong(shardStats.get(INDEX_NB_TOTAL_ITEMS_SOLD));
+        }
+
+        ArrayList<String> stats = new ArrayList<>(2);
+        stats.add(INDEX_NB_TOTAL_ITEMS_BOUGHT, String.valueOf(bought));
+        stats.add(INDEX_NB_TOTAL_ITEMS_SOLD, String.valueOf(sold));
+        return stats;
+    }
+
+    @Override
+    public Inventory getMyItems(Trader trader, int offset, int limit) throws RemoteException, RejectedException {
+        // Merge of the listings of the shards, each one read by pages the shard accepts : the
+        // listings before the offset are read and skipped
+        long first = Math.max(0, offset);
+        int size = Math.max(0, Math.min(limit, MarketImpl.MAX_INVENTORY_PAGE));
+        int chunk = (int) Math.min(first + size, MarketImpl.MAX_INVENTORY_PAGE);
+        List<Inventory> firstChunks = gather(shard -> shard.getMyItems(trader, 0, chunk));
+
+        long nbListings = 0;
+        long totalAmount = 0;
+        double stockValue = 0;
+        List<List<Item>> buffers = new ArrayList<>(shards.size());
+        int[] positions = new int[shards.size()];
+        int[] read = new int[shards.size()]; // Listings of the shard read so far
+        for (Inventory shardInventory : firstChunks) {
+            buffers.add(shardInventory.getItems());
+            read[buffers.size() - 1] = shardInventory.getItems().size();
+            nbListings += shardInventory.getNbListings();
+            totalAmount += shardInventory.getTotalAmount();
+            stockValue += shardInventory.getStockValue();
+        }
+
+        ArrayList<Item> page = new ArrayList<>(size);
+        for (long position = 0; chunk > 0 && position < first + size; position++) {
+            int next = -1;
+            for (int i = 0; i < shards.size(); i++) {
+                if (positions[i] == buffers.get(i).size() && buffers.get(i).size() == chunk) {
+                    // Buffer full and consumed : the shard may hold more
+                    buffers.set(i, shards.get(i).getMyItems(trader, read[i], chunk).getItems());
+                    positions[i] = 0;
+                    read[i] += buffers.get(i).size();
+                }
+                if (positions[i] < buffers.get(i).size() && (next < 0 ||
+                        buffers.get(i).get(positions[i]).compareTo(buffers.get(next).get(positions[next])) < 0))
+                    next = i;
+            }
+            if (next < 0)
+                break;
+            Item item = buffers.get(next).get(positions[next]++);
+            if (position >= first)
+                page.add(item);
+        }
+        return new Inventory(page, (int) first, nbListings, totalAmount, stockValue);
+    }
+
+    @Override
+    public CatalogImport openImport(Trader trader) throws RemoteException, RejectedException {
+        return new ShardedImport(openAll(shard -> shard.openImport(trader), CatalogImport::abort));
+    }
+
+    @Override
+    public CatalogExport openExport(Trader trader) throws RemoteException, RejectedException {
+        return new ShardedExport(openAll(shard -> shard.openExport(trader), CatalogExport::close));
+    }
+
+    @Override
+    public ArrayList<Item> searchItems(String query, int limit) throws RemoteException {
+        try {
+            ArrayList<Item> items = new ArrayList<>();
+            for (ArrayList<Item> shardItems : gather(shard -> shard.searchItems(query, limit)))
+                items.addAll(shardItems);
+            items.sort(Comparator.comparing(Item::getPrice));
+            return items.size() > limit ? new ArrayList<>(items.subList(0, limit)) : items;
+        } catch (RejectedException e) {
+            throw new RemoteException("Search failed on a shard", e); // Not thrown by searchItems
+        }
+    }
+
+    @Override
+    public ArrayList<TradeRecord> getTradeHistory(Trader trader, long beforeTime, long beforeId, int limit)
+            throws RemoteException, RejectedException {
+        // The ids of the shards overlap : the ids returned, and so the cursor, hold the shard index
+        // (id * shards + shard), which orders the executions of the shards at the same time
+        int nbShards = shards.size();
+        List<Callable<ArrayList<TradeRecord>>> calls = new ArrayList<>(nbShards);
+        for (int i = 0; i < nbShards; i++) {
+            int shard = i;
+            // Ids of the shard below the cursor : id * shards + shard < beforeId
+            long shardBeforeId = beforeId == Long.MAX_VALUE ? Long.MAX_VALUE :
+                    Math.floorDiv(beforeId - shard - 1, nbShards) + 1;
+            calls.add(() -> {
+                ArrayList<TradeRecord> shardTrades = new ArrayList<>();
+                for (TradeRecord trade : shards.get(shard).getTradeHistory(trader, beforeTime, shardBeforeId, limit))
+                    shardTrades.add(trade.withId(trade.getId() * nbShards + shard));
+                return shardTrades;
+            });
+        }
+
+        // Latest first over the pages of the shards
+        ArrayList<TradeRecord> trades = new ArrayList<>();
+        for (ArrayList<TradeRecord> shardTrades : gatherAll(calls))
+            trades.addAll(shardTrades);
+        trades.sort(Comparator.comparingLong(TradeRecord::getTime).thenComparingLong(TradeRecord::getId).reversed());
+        return trades.size() <= limit ? trades : new ArrayList<>(trades.subList(0, Math.max(0, limit)));
+    }
+
+    @Override
+    public ArrayList<PriceBar> getPriceHistory(String itemName, long from, long to, PriceBar.Resolution resolution)
+            throws RemoteException {
+        return shardFor(itemName).getPriceHistory(itemName, from, to, resolution);
+    }
+
+    @Override
+    public void subscribe(MarketDataListener listener, ArrayList<String> itemNames) throws RemoteException {
+        Map<Integer, ArrayList<String>> namesByShard = new HashMap<>();
+        for (String name : itemNames)
+            namesByShard.computeIfAbsent(shardOf(name, shards.size()), i -> new ArrayList<>()).add(name);
+
+        for (Map.Entry<Integer, ArrayList<String>> entry : namesByShard.entrySet())
+            shards.get(entry.getKey()).subscribe(listener, entry.getValue());
+    }
+
+    @Override
+    public void unsubscribe(MarketDataListener listener) throws RemoteException {
+        for (Market shard : shards)
+            shard.unsubscribe(listener);
+    }
+
+    @Override
+    public void startAuction(Item item, long durationMillis, Trader trader) throws RemoteException, RejectedException {
+        shardFor(item.getName()).startAuction(item, durationMillis, trader);
+    }
+
+    @Override
+    public void bid(Item item, Trader trader) throws RemoteException, RejectedException {
+        shardFor(item.getName()).bid(item, trader);
+    }
+
+    @Override
+    public ArrayList<AuctionInfo> getAuctions() throws RemoteException {
+        try {
+            ArrayList<AuctionInfo> auctions = new ArrayList<>();
+            for (ArrayList<AuctionInfo> shardAuctions : gather(Market::getAuctions))
+                auctions.addAll(shardAuctions);
+            return auctions;
+        } catch (RejectedException e) {
+            throw new RemoteException("Listing failed on a shard", e); // Not thrown by getAuctions
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Import routing each row to the session of its shard, the rows of a chunk being sent to
+     * the shards in parallel
+     */
+    private class ShardedImport implements CatalogImport {
+        private final List<CatalogImport> sessions;
+        private final long[][] rowsOfShard; // Row number in the import of each row sent to a shard
+        private final int[] nbRowsOfShard;
+        private long nbRows = 0;
+
+        private ShardedImport(List<CatalogImport> sessions) {
+            this.sessions = sessions;
+            this.rowsOfShard = new long[sessions.size()][16];
+            this.nbRowsOfShard = new int[sessions.size()];
+        }
+
+        @Override
+        public synchronized ArrayList<ImportError> send(ArrayList<Item> chunk)
+                throws RemoteException, RejectedException {
+            if (chunk.size() > MAX_CHUNK_SIZE)
+                throw new RejectedException(RejectedException.Reason.INVALID_CHUNK, "Import", MAX_CHUNK_SIZE);
+
+            List<ArrayList<Item>> chunks = new ArrayList<>(sessions.size());
+            for (int i = 0; i < sessions.size(); i++)
+                chunks.add(new ArrayList<>());
+            for (Item item : chunk) {
+                // Rows without a name are refused by the first shard
+                int shard = item == null || item.getName() == null ? 0 : shardOf(item.getName(), sessions.size());
+                chunks.get(shard).add(item);
+                if (nbRowsOfShard[shard] == rowsOfShard[shard].length)
+                    rowsOfShard[shard] = Arrays.copyOf(rowsOfShard[shard], 2 * nbRowsOfShard[shard]);
+                rowsOfShard[shard][nbRowsOfShard[shard]++] = nbRows++;
+            }
+
+            List<Callable<ArrayList<ImportError>>> calls = new ArrayList<>(sessions.size());
+            for (int i = 0; i < sessions.size(); i++) {
+                CatalogImport session = sessions.get(i);
+                ArrayList<Item> shardChunk = chunks.get(i);
+                calls.add(() -> shardChunk.isEmpty() ? new ArrayList<>() : session.send(shardChunk));
+            }
+            return renumber(gatherAll(calls));
+        }
+
+        @Override
+        public synchronized ArrayList<ImportError> finish() throws RemoteException, RejectedException {
+            List<Callable<ArrayList<ImportError>>> calls = new ArrayList<>(sessions.size());
+            for (CatalogImport session : sessions)
+                calls.add(session::finish);
+            return renumber(gatherAll(calls));
+        }
+
+        @Override
+        public synchronized void abort() throws RemoteException {
+            for (CatalogImport session : sessions)
+                session.abort();
+        }
+
+        private ArrayList<ImportError> renumber(List<ArrayList<ImportError>> errorsOfShards) {
+            ArrayList<ImportError> errors = new ArrayList<>();
+            for (int i = 0; i < errorsOfShards.size(); i++)
+                for (ImportError error : errorsOfShards.get(i))
+                    errors.add(error.atRow(rowsOfShard[i][(int) error.getRow()]));
+            errors.sort(Comparator.comparingLong(ImportError::getRow));
+            return errors;
+        }
+    }
+
+    /**
+     * Export merging the exports of the shards, each one by name then price
+     */
+    private static class ShardedExport implements CatalogExport {
+        private final List<CatalogExport> sessions;
+        private final List<ArrayList<Item>> buffers = new ArrayList<>();
+        private final int[] positions;
+        private final boolean[] done;
+
+        private ShardedExport(List<CatalogExport> sessions) {
+            this.sessions = sessions;
+            this.positions = new int[sessions.size()];
+            this.done = new boolean[sessions.size()];
+            for (int i = 0; i < sessions.size(); i++)
+                buffers.add(new ArrayList<>());
+        }
+
+        @Override
+        public synchronized ArrayList<Item> next(int max) throws RemoteException, RejectedException {
+            int n = Math.max(1, Math.min(max, CatalogImport.MAX_CHUNK_SIZE));
+            ArrayList<Item> items = new ArrayList<>(n);
+            while (items.size() < n) {
+                int next = -1;
+                for (int i = 0; i < sessions.size(); i++) {
+                    if (fill(i, n) && (next < 0 || head(i).compareTo(head(next)) < 0))
+                        next = i;
+                }
+                if (next < 0)
+                    break;
+                items.add(buffers.get(next).get(positions[next]++));
+            }
+            return items;
+        }
+
+        @Override
+        public synchronized void close() throws RemoteException {
+            for (int i = 0; i < sessions.size(); i++) {
+                if (!done[i])
+                    sessions.get(i).close();
+                done[i] = true;
+            }
+        }
+
+        private Item head(int shard) {
+            return buffers.get(shard).get(positions[shard]);
+        }
+
+        /**
+         * @return false if the export of the shard is over
+         */
+        private boolean fill(int shard, int max) throws RemoteException, RejectedException {
+            if (positions[shard] < buffers.get(shard).size())
+                return true;
+            if (done[shard])
+                return false;
+            ArrayList<Item> buffer = sessions.get(shard).next(max);
+            buffers.set(shard, buffer);
+            positions[shard] = 0;
+            done[shard] = buffer.isEmpty(); // Closed by the shard
+            return !buffer.isEmpty();
+        }
+    }
+
+    // Scatter-gather
+    private interface ShardCall<T> {
+        T call(Market shard) throws Exception;
+    }
+
+    private interface ShardUpdate {
+        void apply(Market shard) throws Exception;
+    }
+
+    private interface SessionClose<T> {
+        void close(T session) throws Exception;
+    }
+
+    /**
+     * Apply an update on shards in parallel. If it fails on a shard, undo it on the shards where
+     * it succeeded, then throw the failure.
+     */
+    private void applyAll(List<Market> targets, ShardUpdate update, ShardUpdate undo)
+            throws RemoteException, RejectedException {
+        List<Future<?>> futures = new ArrayList<>(targets.size());
+        for (Market shard : targets)
+            futures.add(executor.submit(() -> {
+                update.apply(shard);
+                return null;
+            }));
+
+        List<Market> applied = new ArrayList<>(targets.size());
+        Throwable failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+                applied.add(targets.get(i));
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new RemoteException("Interrupted while waiting for the shards", e);
+            }
+        }
+
+        if (failure != null) {
+            undo(applied, undo);
+            rethrow(failure);
+        }
+    }
+
+    private void undo(List<Market> targets, ShardUpdate undo) {
+        for (Market shard : targets) {
+            try {
+                undo.apply(shard);
+            } catch (Exception e) {
+                LOG.error("Shard {} left inconsistent: {}", shards.indexOf(shard), e);
+            }
+        }
+    }
+
+    /**
+     * Open a session on every shard in parallel. If a shard refuses, close the sessions opened
+     * on the other shards, then throw the refusal.
+     */
+    private <T> List<T> openAll(ShardCall<T> open, SessionClose<T> close) throws RemoteException, RejectedException {
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (Market shard : shards)
+            futures.add(executor.submit(() -> open.call(shard)));
+
+        List<T> opened = new ArrayList<>(shards.size());
+        Throwable failure = null;
+        for (Future<T> future : futures) {
+            try {
+                opened.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new RemoteException("Interrupted while waiting for the shards", e);
+            }
+        }
+
+        if (failure != null) {
+            for (T session : opened) {
+                try {
+                    close.close(session);
+                } catch (Exception e) {
+                    LOG.warn("Session left open on a shard: {}", e); // Until its lease or idle timeout
+                }
+            }
+            rethrow(failure);
+        }
+        return opened;
+    }
+
+    private <T> List<T> gather(ShardCall<T> call) throws RemoteException, RejectedException {
+        return gather(shards, call);
+    }
+
+    private <T> List<T> gather(List<Market> targets, ShardCall<T> call) throws RemoteException, RejectedException {
+        List<Callable<T>> calls = new ArrayList<>(targets.size());
+        for (Market shard : targets)
+            calls.add(() -> call.call(shard));
+        return gatherAll(calls);
+    }
+
+    private <T> List<T> gatherAll(List<Callable<T>> calls) throws RemoteException, RejectedException {
+        List<Future<T>> futures = new ArrayList<>(calls.size());
+        for (Callable<T> call : calls)
+            futures.add(executor.submit(call));
+
+        List<T> results = new ArrayList<>(calls.size());
+        Throwable failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for the shards", e);
+            }
+        }
+
+        if (failure != null)
+            rethrow(failure);
+        return results;
+    }
+
+    private static void rethrow(Throwable failure) throws RemoteException, RejectedException {
+        if (failure instanceof RejectedException)
+            throw (RejectedException) failure;
+        if (failure instanceof RemoteException)
+            throw (RemoteException) failure;
+        throw new RemoteException("Shard call failed", failure);
+    }
+}
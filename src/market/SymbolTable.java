@@ -0,0 +1,167 @@
+package market;
+
+
+import logging.AsyncLogger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntFunction;
+
+/**
+ * Market-wide table of the item names, each one given a dense int id (its symbol).
+ *
+ * Names are resolved once, at the API boundary : the in-memory state of the market is then
+ * indexed by symbol, in arrays (see PerSymbol) rather than in maps hashing and comparing the
+ * names. Symbols are persisted in their own transactions, before they are published, and
+ * loaded at startup : a name listed by a transaction rolled back keeps its symbol. Lookups are
+ * lock free, new names are serialized.
+ */
+public class SymbolTable {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(SymbolTable.class);
+    public static final int NO_SYMBOL = -1;
+
+    private final EntityManagerFactory emFactory;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[1024];
+    private int nextId = 0; // Guarded by this
+
+    /**
+     * Constructor : loads the persisted symbols
+     * @param emFactory
+     */
+    public SymbolTable(EntityManagerFactory emFactory) {
+        this.emFactory = emFactory;
+
+        long start = System.currentTimeMillis();
+        EntityManager em = emFactory.createEntityManager();
+        try {
+            List<ItemSymbol> symbols = em.createNamedQuery("AllItemSymbols", ItemSymbol.class).getResultList();
+            synchronized (this) {
+                for (ItemSymbol symbol : symbols)
+                    publish(symbol.getId(), symbol.getName());
+            }
+            LOG.info("{} item symbols loaded in {} ms", symbols.size(), System.currentTimeMillis() - start);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return symbol of the name, NO_SYMBOL if it was never interned
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : NO_SYMBOL;
+    }
+
+    /**
+     * @return name of the symbol, null if unknown
+     */
+    public String name(int id) {
+        String[] byId = names;
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Symbol of the name, persisted in its own transaction if the name is new
+     */
+    public int intern(String name) {
+        int id = lookup(name);
+        if (id != NO_SYMBOL)
+            return id;
+
+        internAll(Collections.singleton(name));
+        return lookup(name);
+    }
+
+    /**
+     * Intern names, the new ones persisted together in their own transaction : a symbol is
+     * published once committed, so that an id in use is never lost with a rolled back
+     * transaction of the caller
+     */
+    public void internAll(Collection<String> names) {
+        List<String> created = new ArrayList<>();
+        for (String name : new LinkedHashSet<>(names)) {
+            if (lookup(name) == NO_SYMBOL)
+                created.add(name);
+        }
+        if (created.isEmpty())
+            return;
+
+        synchronized (this) {
+            created.removeIf(name -> lookup(name) != NO_SYMBOL);
+            if (created.isEmpty())
+                return;
+
+            int first = nextId;
+            EntityManager em = emFactory.createEntityManager();
+            try {
+                em.getTransaction().begin();
+                for (int i = 0; i < created.size(); i++)
+                    em.persist(new ItemSymbol(first + i, created.get(i)));
+                em.getTransaction().commit();
+            } finally {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+                em.close();
+            }
+            for (int i = 0; i < created.size(); i++)
+                publish(first + i, created.get(i));
+        }
+    }
+
+    // Called with the lock held
+    private void publish(int id, String name) {
+        String[] byId = names;
+        if (id >= byId.length)
+            byId = Arrays.copyOf(byId, Math.max(byId.length * 2, id + 1));
+        byId[id] = name;
+        names = byId;
+        ids.put(name, id);
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    /**
+     * Per item state, in an array indexed by symbol. Reads are lock free.
+     */
+    public static class PerSymbol<T> {
+        private volatile Object[] values = new Object[1024];
+
+        @SuppressWarnings("unchecked")
+        public T get(int id) {
+            Object[] byId = values;
+            return id >= 0 && id < byId.length ? (T) byId[id] : null;
+        }
+
+        public T computeIfAbsent(int id, IntFunction<T> factory) {
+            T value = get(id);
+            if (value != null)
+                return value;
+
+            synchronized (this) {
+                value = get(id);
+                if (value == null) {
+                    Object[] byId = values;
+                    if (id >= byId.length)
+                        byId = Arrays.copyOf(byId, Math.max(byId.length * 2, id + 1));
+                    value = factory.apply(id);
+                    byId[id] = value;
+                    values = byId; // Publishes the value
+                }
+                return value;
+            }
+        }
+    }
+}
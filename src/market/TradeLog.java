@@ -0,0 +1,303 @@
+package market;
+
+
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * History of the executed trades, one row per execution in the TRADES table.
+ *
+ * record() only queues the trade : a single writer thread inserts the queued trades by
+ * batches, one transaction per batch, so that the trade path never waits for these inserts.
+ * When the queue is full the trade is dropped from the history and counted.
+ *
+ * The table is partitioned by day on its day column. Each archiving cycle moves the days
+ * older than the retention to gzip part files (trades-yyyy-MM-dd-<first id>-<last id>-<rows>.gz),
+ * read page by page along the id, then deletes the rows of the day in a single statement. A day
+ * is deleted only once its part is synced to disk. A part is never replaced : rows of the day
+ * committed late go to another part, and a cycle interrupted before the delete finds the part
+ * of the same rows already there. Interrupted with late rows, a cycle archives the rows of the
+ * previous part again : readers of the parts of a day take each id once.
+ */
+public class TradeLog {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(TradeLog.class);
+    private static final int ARCHIVE_MAGIC = 0x54524431; // "TRD1"
+    private static final int ARCHIVE_PAGE_SIZE = 5000;
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    private final Supplier<EntityManagerFactory> emFactory;
+    private final Path archiveDirectory;
+    private final int retentionDays;
+    private final int batchSize;
+    private final BlockingQueue<TradeRecord> queue;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-trade-archiver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor
+     * @param emFactory waits for the persistence unit to start
+     * @param archiveDirectory directory of the archived days
+     * @param queueCapacity trades waiting for the writer thread
+     * @param batchSize trades inserted per transaction
+     * @param retentionDays days kept in the table, today included (0 : never archived)
+     * @param archiveIntervalMillis delay between two archiving cycles
+     */
+    public TradeLog(Supplier<EntityManagerFactory> emFactory, Path archiveDirectory, int queueCapacity, int batchSize,
+                    int retentionDays, long archiveIntervalMillis) {
+        this.emFactory = emFactory;
+        this.archiveDirectory = archiveDirectory;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.retentionDays = retentionDays;
+
+        writer = new Thread(this::write, "market-trade-log");
+        writer.setDaemon(true);
+        writer.start();
+        if (retentionDays > 0)
+            archiver.scheduleWithFixedDelay(this::archive, archiveIntervalMillis, archiveIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record an execution, without waiting for the database
+     */
+    public void record(String buyer, String seller, String itemName, float price, int amount) {
+        if (!queue.offer(new TradeRecord(System.currentTimeMillis(), buyer, seller, itemName, price, amount)))
+            metrics.increment("market.trades.dropped");
+    }
+
+    /**
+     * Executions of a trader (as buyer or seller), latest first, before a position
+     * @param trader
+     * @param beforeTime time of the last execution of the previous page (Long.MAX_VALUE for the first page)
+     * @param beforeId id of the last execution of the previous page (Long.MAX_VALUE for the first page)
+     * @param limit
+     */
+    public ArrayList<TradeRecord> query(String trader, long beforeTime, long beforeId, int limit) {
+        // Both ends of the trades walk their own index from the position, the pages are merged
+        EntityManager em = emFactory.get().createEntityManager();
+        try {
+            List<TradeRecord> bought = page(em, "TradesOfBuyer", trader, beforeTime, beforeId, limit);
+            List<TradeRecord> sold = page(em, "TradesOfSeller", trader, beforeTime, beforeId, limit);
+            ArrayList<TradeRecord> trades = new ArrayList<>(Math.min(limit, bought.size() + sold.size()));
+            int b = 0;
+            int s = 0;
+            while (trades.size() < limit && (b < bought.size() || s < sold.size())) {
+                if (s == sold.size() || (b < bought.size() && isAfter(bought.get(b), sold.get(s))))
+                    trades.add(bought.get(b++));
+                else if (b < bought.size() && bought.get(b).getId() == sold.get(s).getId()) {
+                    trades.add(bought.get(b++)); // Traded with itself
+                    s++;
+                } else
+                    trades.add(sold.get(s++));
+            }
+            return trades;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static List<TradeRecord> page(EntityManager em, String query, String trader, long beforeTime,
+                                          long beforeId, int limit) {
+        return em.createNamedQuery(query, TradeRecord.class).setParameter("trader", trader).
+                setParameter("time", beforeTime).setParameter("id", beforeId).
+                setMaxResults(limit).getResultList();
+    }
+
+    private static boolean isAfter(TradeRecord a, TradeRecord b) {
+        return a.getTime() > b.getTime() || (a.getTime() == b.getTime() && a.getId() > b.getId());
+    }
+
+    public void close() {
+        archiver.shutdown();
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writer thread
+    private void write() {
+        List<TradeRecord> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            TradeRecord first;
+            try {
+                first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = queue.poll(); // Stopping : drain what is left
+                if (first == null)
+                    break;
+            }
+            if (first == null)
+                continue;
+
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            insert(batch);
+            batch.clear();
+        }
+    }
+
+    private void insert(List<TradeRecord> batch) {
+        long start = System.nanoTime();
+        EntityManager em = null;
+        try {
+            em = emFactory.get().createEntityManager();
+            em.getTransaction().begin();
+            for (TradeRecord trade : batch)
+                em.persist(trade);
+            em.getTransaction().commit();
+            metrics.counter("market.trades.recorded").add(batch.size());
+            metrics.histogram("market.trades.batch").record(System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            metrics.counter("market.trades.failed").add(batch.size());
+            LOG.error("{} trades not recorded: {}", batch.size(), e);
+            if (em != null && em.getTransaction().isActive())
+                em.getTransaction().rollback();
+        } finally {
+            if (em != null)
+                em.close();
+        }
+    }
+
+    // Archiver thread
+    private void archive() {
+        int firstKept = TradeRecord.dayOf(System.currentTimeMillis()) - retentionDays + 1;
+        try {
+            Integer day;
+            while ((day = firstDay()) != null && day < firstKept) {
+                long start = System.currentTimeMillis();
+                int deleted = deleteDay(day, archiveDay(day));
+                if (deleted == 0)
+                    break; // Rows of the day not visible yet, next cycle
+                metrics.counter("market.trades.archived").add(deleted);
+                LOG.info("Trades of {} archived: {} rows in {} ms", LocalDate.ofEpochDay(day), deleted,
+                        System.currentTimeMillis() - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Trade archiving cycle failed: {}", e);
+        }
+    }
+
+    private Integer firstDay() {
+        EntityManager em = emFactory.get().createEntityManager();
+        try {
+            return em.createNamedQuery("FirstTradeDay", Integer.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Write the rows of a day to a new part file : a header (magic, day), then per row
+     * id, time, buyer, seller, item, price and amount, then -1
+     * @return the id of the last row archived, -1 if none
+     */
+    private long archiveDay(int day) throws IOException {
+        Files.createDirectories(archiveDirectory);
+        Path tmp = archiveDirectory.resolve("trades-" + LocalDate.ofEpochDay(day) + ".tmp");
+        long first = -1;
+        long after = -1;
+        int rows = 0;
+        FileOutputStream fileOut = new FileOutputStream(tmp.toFile());
+        GZIPOutputStream gzip = new GZIPOutputStream(fileOut, 1 << 16);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip))) {
+            out.writeInt(ARCHIVE_MAGIC);
+            out.writeInt(day);
+
+            EntityManager em = emFactory.get().createEntityManager();
+            try {
+                List<TradeRecord> page;
+                do {
+                    page = em.createNamedQuery("TradesOfDay", TradeRecord.class).setParameter("day", day).
+                            setParameter("after", after).setMaxResults(ARCHIVE_PAGE_SIZE).getResultList();
+                    for (TradeRecord trade : page) {
+                        out.writeLong(trade.getId());
+                        out.writeLong(trade.getTime());
+                        out.writeUTF(trade.getBuyer());
+                        out.writeUTF(trade.getSeller());
+                        out.writeUTF(trade.getItemName());
+                        out.writeFloat(trade.getPrice());
+                        out.writeInt(trade.getAmount());
+                        if (first < 0)
+                            first = trade.getId();
+                        after = trade.getId();
+                        rows++;
+                    }
+                    em.clear();
+                } while (page.size() == ARCHIVE_PAGE_SIZE);
+            } finally {
+                em.close();
+            }
+            out.writeLong(-1);
+            out.flush();
+            gzip.finish();
+            fileOut.getFD().sync(); // Before the move, so that the rows are deleted only once on disk
+        }
+        if (rows == 0) {
+            Files.delete(tmp);
+            return -1;
+        }
+
+        // Rows only ever get added to a day : a part of the same range and count holds the same rows
+        Path part = archiveDirectory.resolve("trades-" + LocalDate.ofEpochDay(day) + "-" + first + "-" + after +
+                "-" + rows + ".gz");
+        if (Files.exists(part))
+            Files.delete(tmp);
+        else
+            Files.move(tmp, part, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(); // Before the delete, so that the part survives a crash
+        return after;
+    }
+
+    /**
+     * Sync the entries of the archive directory, where the platform allows to open a directory
+     */
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(archiveDirectory, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            LOG.debug("Archive directory {} not synced: {}", archiveDirectory, e);
+        }
+    }
+
+    /**
+     * Delete the rows of a day up to the last one archived
+     */
+    private int deleteDay(int day, long lastId) {
+        EntityManager em = emFactory.get().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            int deleted = em.createNamedQuery("DeleteTradesOfDay").setParameter("day", day).
+                    setParameter("last", lastId).executeUpdate();
+            em.getTransaction().commit();
+            return deleted;
+        } finally {
+            if (em.getTransaction().isActive())
+                em.getTransaction().rollback();
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package market;
+
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One execution of a trade (buy or auction), see TradeLog
+ */
+@NamedQueries({
+        @NamedQuery(
+                name = "TradesOfBuyer",
+                query = "SELECT t FROM TradeRecord t WHERE t.buyer = :trader AND " +
+                        "(t.time < :time OR (t.time = :time AND t.id < :id)) ORDER BY t.time DESC, t.id DESC",
+                hints = @QueryHint(name = "eclipselink.read-only", value = "true")
+        ),
+        @NamedQuery(
+                name = "TradesOfSeller",
+                query = "SELECT t FROM TradeRecord t WHERE t.seller = :trader AND " +
+                        "(t.time < :time OR (t.time = :time AND t.id < :id)) ORDER BY t.time DESC, t.id DESC",
+                hints = @QueryHint(name = "eclipselink.read-only", value = "true")
+        ),
+        @NamedQuery(
+                name = "FirstTradeDay",
+                query = "SELECT MIN(t.day) FROM TradeRecord t"
+        ),
+        @NamedQuery(
+                name = "TradesOfDay",
+                query = "SELECT t FROM TradeRecord t WHERE t.day = :day AND t.id > :after ORDER BY t.id",
+                hints = @QueryHint(name = "eclipselink.read-only", value = "true")
+        ),
+        @NamedQuery(
+                name = "DeleteTradesOfDay",
+                query = "DELETE FROM TradeRecord t WHERE t.day = :day AND t.id <= :last"
+        )
+})
+
+@Entity(name = "TradeRecord")
+@Table(name = "TRADES", indexes = {
+        @Index(name = "TRADES_DAY", columnList = "day"),
+        @Index(name = "TRADES_BUYER", columnList = "buyer, time"),
+        @Index(name = "TRADES_SELLER", columnList = "seller, time")
+})
+public class TradeRecord implements Serializable {
+    private static final long serialVersionUID = -3920416741873055612L;
+
+    @Id
+    @Column(name = "id", nullable = false)
+    @SequenceGenerator(name = "TRADES_SEQ", sequenceName = "TRADES_SEQ", allocationSize = 500)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "TRADES_SEQ")
+    private long id;
+
+    // Days since the epoch (UTC) of the execution : the rows of a day are archived together
+    @Column(name = "day", nullable = false, updatable = false)
+    private int day;
+
+    @Column(name = "time", nullable = false, updatable = false)
+    private long time;
+
+    @Column(name = "buyer", nullable = false, updatable = false)
+    private String buyer;
+
+    @Column(name = "seller", nullable = false, updatable = false)
+    private String seller;
+
+    @Column(name = "item", nullable = false, updatable = false)
+    private String itemName;
+
+    @Column(name = "price", nullable = false, updatable = false)
+    private float price;
+
+    @Column(name = "amount", nullable = false, updatable = false)
+    private int amount;
+
+    public TradeRecord() { }
+
+    /**
+     * Constructor
+     * @param time execution time, in milliseconds since the epoch
+     * @param buyer
+     * @param seller
+     * @param itemName
+     * @param price price per item
+     * @param amount number of items
+     */
+    public TradeRecord(long time, String buyer, String seller, String itemName, float price, int amount) {
+        this.time = time;
+        this.day = dayOf(time);
+        this.buyer = buyer;
+        this.seller = seller;
+        this.itemName = itemName;
+        this.price = price;
+        this.amount = amount;
+    }
+
+    /**
+     * @return a copy of the record under another id (the sharded market numbers the trades of its shards)
+     */
+    TradeRecord withId(long id) {
+        TradeRecord copy = new TradeRecord(time, buyer, seller, itemName, price, amount);
+        copy.id = id;
+        return copy;
+    }
+
+    /**
+     * @return the day (since the epoch, UTC) of a time in milliseconds
+     */
+    public static int dayOf(long timeMillis) {
+        return (int) Math.floorDiv(timeMillis, TimeUnit.DAYS.toMillis(1));
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getDay() {
+        return day;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getBuyer() {
+        return buyer;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
+    public float getPrice() {
+        return price;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%tF %<tT  %s -> %s : %d %s at $%.2f", time, seller, buyer, amount, itemName, price);
+    }
+}
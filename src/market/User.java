@@ -1,11 +1,16 @@
 package market;
 
 
-import javax.persistence.Column;
-import javax.persistence.Entity;
-import javax.persistence.Id;
+import javax.persistence.*;
 import java.io.Serializable;
 
+@NamedQueries({
+        @NamedQuery(
+                name = "AllUsers",
+                query = "SELECT u FROM MarketUser u"
+        )
+})
+
 @Entity(name = "MarketUser")
 public class User implements Serializable {
     @Id
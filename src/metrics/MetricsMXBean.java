@@ -0,0 +1,21 @@
+package metrics;
+
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics registry (registered as "marketplace:type=Metrics")
+ */
+public interface MetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    /**
+     * @return per timer : count, mean, p50, p99, p999 and max in microseconds
+     */
+    Map<String, String> getLatencies();
+
+    String getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,100 @@
+package metrics;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the latency histograms and counters of the market and the bank.
+ * A single instance is shared by everything running in the JVM and exposed through JMX.
+ */
+public class MetricsRegistry implements MetricsMXBean {
+    private static final String OBJECT_NAME = "marketplace:type=Metrics";
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(DEFAULT,
+                    new javax.management.ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.err.println("Metrics not exposed through JMX: " + e.getMessage());
+        }
+    }
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null)
+            histogram = histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+        return histogram;
+    }
+
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null)
+            counter = counters.computeIfAbsent(name, n -> new LongAdder());
+        return counter;
+    }
+
+    public void increment(String name) {
+        counter(name).increment();
+    }
+
+    /**
+     * Start timing one call of an operation
+     * @param name operation name, e.g. "market.buy"
+     */
+    public PhaseTimer startTimer(String name) {
+        return new PhaseTimer(this, name);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().sum());
+        return values;
+    }
+
+    @Override
+    public Map<String, String> getLatencies() {
+        Map<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            values.put(entry.getKey(), String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    h.getCount(), h.getMean() / 1000.0, h.getPercentile(50) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+        }
+        return values;
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("---------------- METRICS ----------------\n");
+        for (Map.Entry<String, String> entry : getLatencies().entrySet())
+            sb.append("  ").append(entry.getKey()).append(" : ").append(entry.getValue()).append('\n');
+        for (Map.Entry<String, Long> entry : getCounters().entrySet())
+            sb.append("  ").append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        sb.append("-----------------------------------------");
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram h : histograms.values())
+            h.reset();
+        for (LongAdder counter : counters.values())
+            counter.reset();
+    }
+}
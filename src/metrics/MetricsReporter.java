@@ -0,0 +1,40 @@
+package metrics;
+
+
+import logging.AsyncLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically dumps a snapshot of the metrics registry to the log.
+ * The period is read from the "marketplace.metrics.interval" system property (seconds, 0 disables).
+ */
+public class MetricsReporter {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger("metrics");
+    private static final long DEFAULT_INTERVAL_SECONDS = 60;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-reporter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static MetricsReporter startDefault() {
+        long interval = Long.getLong("marketplace.metrics.interval", DEFAULT_INTERVAL_SECONDS);
+        MetricsReporter reporter = new MetricsReporter();
+        if (interval > 0)
+            reporter.start(MetricsRegistry.getDefault(), interval);
+        return reporter;
+    }
+
+    public void start(MetricsRegistry registry, long intervalSeconds) {
+        scheduler.scheduleAtFixedRate(() -> LOG.info("{}", registry.getSnapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,55 @@
+package metrics;
+
+
+/**
+ * Times one call of an operation and splits it into phases.
+ * Remote calls to the bank and to the traders are timed explicitly, the remaining
+ * time is accounted to the DB phase (transaction work and local bookkeeping).
+ * A timer is owned by a single thread.
+ */
+public class PhaseTimer {
+    public enum Phase {
+        BANK("bank"), CALLBACK("callback");
+
+        private final String suffix;
+
+        Phase(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    private final MetricsRegistry registry;
+    private final String name;
+    private final long start;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long phaseStart;
+
+    PhaseTimer(MetricsRegistry registry, String name) {
+        this.registry = registry;
+        this.name = name;
+        this.start = System.nanoTime();
+    }
+
+    public void begin() {
+        phaseStart = System.nanoTime();
+    }
+
+    public void end(Phase phase) {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - phaseStart;
+    }
+
+    public void stop() {
+        long total = System.nanoTime() - start;
+        long local = total;
+        registry.histogram(name).record(total);
+
+        for (Phase phase : Phase.values()) {
+            long nanos = phaseNanos[phase.ordinal()];
+            if (nanos > 0) {
+                registry.histogram(name + "." + phase.suffix).record(nanos);
+                local -= nanos;
+            }
+        }
+        registry.histogram(name + ".db").record(local);
+    }
+}
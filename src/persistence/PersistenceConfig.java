@@ -0,0 +1,313 @@
+package persistence;
+
+
+import logging.AsyncLogger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates the entity manager factories of the persistence units, either against the
+ * Derby network server declared in persistence.xml (default) or against an embedded
+ * Derby engine running in the same JVM.
+ *
+ * System properties :
+ * - marketplace.derby.mode : "network" (default) or "embedded"
+ * - marketplace.derby.home : directory holding the embedded databases (derby.system.home)
+ * - derby.storage.pageCacheSize : page cache size in pages (embedded default : 4000)
+ * - derby.storage.logBufferSize : log buffer size in bytes (embedded default : 65536)
+ *
+ * In both modes the tables and sequences missing from the database (all of them in a fresh
+ * database, those of the entities added since otherwise) are created from the entities. The
+ * columns and indexes added since to existing tables are listed, by version, in the migration
+ * script of the unit (META-INF/sql/<unit>-migrate.sql). The versions applied to a database are
+ * recorded in its SCHEMA_VERSION table, and only the others run, once the tables exist.
+ */
+public final class PersistenceConfig {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(PersistenceConfig.class);
+    public static final String MODE_PROPERTY = "marketplace.derby.mode";
+    public static final String NETWORK = "network";
+    public static final String EMBEDDED = "embedded";
+
+    private static final String EMBEDDED_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+    private static final String DEFAULT_PAGE_CACHE_SIZE = "4000";
+    private static final String DEFAULT_LOG_BUFFER_SIZE = "65536";
+    private static final String MIGRATION_SCRIPT = "META-INF/sql/%s-migrate.sql";
+    private static final Pattern VERSION_LINE = Pattern.compile("^\\s*--\\s*version\\s+(\\d+)\\b.*");
+    private static final String VERSION_TABLE = "SCHEMA_VERSION";
+    // Derby SQL states of a change already applied : object already exists, object does not exist.
+    // Only tolerated while a database versioned for the first time catches up (see migrate)
+    private static final List<String> APPLIED_STATES = Arrays.asList("X0Y32", "X0Y68", "42X65");
+
+    private PersistenceConfig() { }
+
+    public static boolean isEmbedded() {
+        return EMBEDDED.equalsIgnoreCase(System.getProperty(MODE_PROPERTY, NETWORK));
+    }
+
+    public static EntityManagerFactory createEntityManagerFactory(String unitName) {
+        return createEntityManagerFactory(unitName, unitName);
+    }
+
+    /**
+     * @param unitName persistence unit declared in persistence.xml
+     * @param databaseName Derby database backing the unit
+     */
+    public static EntityManagerFactory createEntityManagerFactory(String unitName, String databaseName) {
+        Map<String, String> overrides = new HashMap<>();
+
+        if (isEmbedded()) {
+            configureEmbeddedEngine();
+            overrides.put("javax.persistence.jdbc.driver", EMBEDDED_DRIVER);
+            overrides.put("javax.persistence.jdbc.url", "jdbc:derby:" + databaseName + ";create=true");
+        } else if (!databaseName.equals(unitName)) {
+            overrides.put("javax.persistence.jdbc.url",
+                    "jdbc:derby://localhost:1527/" + databaseName + ";create=true");
+        }
+        SortedMap<Integer, List<String>> versions;
+        try {
+            versions = readScript(String.format(MIGRATION_SCRIPT, unitName));
+        } catch (IOException e) {
+            throw new PersistenceException("Migration script of " + unitName + " unreadable", e);
+        }
+
+        // The tables found before those missing are created tell a fresh database from an older one
+        overrides.put("eclipselink.ddl-generation", "none");
+        EntityManagerFactory probe = Persistence.createEntityManagerFactory(unitName, overrides);
+        Set<String> tables;
+        try {
+            tables = tables(probe);
+        } finally {
+            probe.close();
+        }
+
+        // Existing tables are left as they are
+        overrides.put("eclipselink.ddl-generation", "create-tables");
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory(unitName, overrides);
+        migrate(factory, unitName, versions, tables);
+        return factory;
+    }
+
+    /**
+     * Apply the versions of the migration script the database does not have yet, each in its
+     * own transaction with its record in SCHEMA_VERSION : a failing version fails the startup.
+     * A fresh database, created from the entities, has them all. A database older than the
+     * SCHEMA_VERSION table has some : its statements already applied are skipped, once.
+     * @param tables tables of the database before the missing ones were created
+     */
+    private static void migrate(EntityManagerFactory factory, String unitName,
+                                SortedMap<Integer, List<String>> versions, Set<String> tables) {
+        boolean versioned = tables.contains(VERSION_TABLE);
+        if (!versioned)
+            execute(factory, "CREATE TABLE " + VERSION_TABLE +
+                    " (version INTEGER NOT NULL PRIMARY KEY, applied_at BIGINT NOT NULL)");
+        if (tables.isEmpty()) {
+            for (int version : versions.keySet())
+                execute(factory, insertVersion(version));
+            return;
+        }
+
+        int current = versioned ? currentVersion(factory) : 0;
+        for (Map.Entry<Integer, List<String>> version : versions.tailMap(current + 1).entrySet()) {
+            if (versioned) {
+                List<String> statements = new ArrayList<>(version.getValue());
+                statements.add(insertVersion(version.getKey()));
+                try {
+                    execute(factory, statements.toArray(new String[0]));
+                } catch (PersistenceException e) {
+                    throw new PersistenceException("Migration of " + unitName + " to version " +
+                            version.getKey() + " failed", e);
+                }
+            } else {
+                for (String statement : version.getValue()) {
+                    try {
+                        execute(factory, statement);
+                    } catch (PersistenceException e) {
+                        if (!APPLIED_STATES.contains(sqlState(e)))
+                            throw new PersistenceException("Migration of " + unitName + " failed on: " +
+                                    statement, e);
+                    }
+                }
+                execute(factory, insertVersion(version.getKey()));
+            }
+            LOG.info("{} migrated to schema version {}", unitName, version.getKey());
+        }
+    }
+
+    /**
+     * Run statements in one transaction
+     */
+    private static void execute(EntityManagerFactory factory, String... statements) {
+        EntityManager em = factory.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (String statement : statements)
+                em.createNativeQuery(statement).executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive())
+                em.getTransaction().rollback();
+            em.close();
+        }
+    }
+
+    private static String insertVersion(int version) {
+        return "INSERT INTO " + VERSION_TABLE + " (version, applied_at) VALUES (" + version + ", " +
+                System.currentTimeMillis() + ")";
+    }
+
+    private static int currentVersion(EntityManagerFactory factory) {
+        EntityManager em = factory.createEntityManager();
+        try {
+            Object version = em.createNativeQuery("SELECT MAX(version) FROM " + VERSION_TABLE).getSingleResult();
+            return version != null ? ((Number) version).intValue() : 0;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return the tables of the schema of the unit
+     */
+    private static Set<String> tables(EntityManagerFactory factory) {
+        EntityManager em = factory.createEntityManager();
+        try {
+            Set<String> tables = new HashSet<>();
+            for (Object table : em.createNativeQuery("SELECT t.tablename FROM SYS.SYSTABLES t " +
+                    "JOIN SYS.SYSSCHEMAS s ON t.schemaid = s.schemaid " +
+                    "WHERE t.tabletype = 'T' AND s.schemaname = CURRENT SCHEMA").getResultList())
+                tables.add(String.valueOf(table));
+            return tables;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return the statements of a script, separated by ';', without the -- comments, by version :
+     * a "-- version <n>" line starts the statements of version n
+     */
+    private static SortedMap<Integer, List<String>> readScript(String resource) throws IOException {
+        SortedMap<Integer, List<String>> versions = new TreeMap<>();
+        InputStream in = PersistenceConfig.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null)
+            return versions;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            List<String> statements = null;
+            StringBuilder statement = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher version = VERSION_LINE.matcher(line);
+                if (version.matches()) {
+                    if (!statement.toString().trim().isEmpty())
+                        throw new IOException(resource + ": statement without ';' before " + line.trim());
+                    statements = new ArrayList<>();
+                    if (versions.put(Integer.valueOf(version.group(1)), statements) != null)
+                        throw new IOException(resource + ": version " + version.group(1) + " repeated");
+                    continue;
+                }
+                int comment = line.indexOf("--");
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                statement.append(line).append(' ');
+                int end;
+                while ((end = statement.indexOf(";")) >= 0) {
+                    String sql = statement.substring(0, end).trim();
+                    if (!sql.isEmpty()) {
+                        if (statements == null)
+                            throw new IOException(resource + ": statement outside a version: " + sql);
+                        statements.add(sql);
+                    }
+                    statement.delete(0, end + 1);
+                }
+            }
+            if (!statement.toString().trim().isEmpty())
+                throw new IOException(resource + ": statement without ';' at the end");
+        }
+        return versions;
+    }
+
+    private static String sqlState(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException)
+                return ((SQLException) cause).getSQLState();
+        }
+        return null;
+    }
+
+    /**
+     * Run read-only named queries on several connections at once, so that their SQL is
+     * generated and the connection pool is filled before the first requests
+     * @param factory
+     * @param connections number of connections opened concurrently
+     * @param queries named query -> parameters
+     */
+    public static void warmUp(EntityManagerFactory factory, int connections,
+                              Map<String, Map<String, Object>> queries) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(connections);
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Thread t = new Thread(() -> {
+                EntityManager em = factory.createEntityManager();
+                try {
+                    em.getTransaction().begin();
+                    for (Map.Entry<String, Map<String, Object>> query : queries.entrySet()) {
+                        Query q = em.createNamedQuery(query.getKey()).setMaxResults(1);
+                        for (Map.Entry<String, Object> parameter : query.getValue().entrySet())
+                            q.setParameter(parameter.getKey(), parameter.getValue());
+                        q.getResultList();
+                    }
+                    em.getTransaction().rollback();
+                } catch (RuntimeException e) {
+                    LOG.warn("Warm-up query failed: {}", e.getMessage()); // Best effort
+                } finally {
+                    em.close();
+                    done.countDown();
+                }
+            }, "persistence-warmup");
+            t.setDaemon(true);
+            threads.add(t);
+        }
+
+        for (Thread t : threads)
+            t.start();
+        done.await();
+    }
+
+    /**
+     * Derby reads its storage properties when the engine boots, so they must be set before
+     * the first embedded connection is opened.
+     */
+    private static synchronized void configureEmbeddedEngine() {
+        String home = System.getProperty("marketplace.derby.home");
+        if (home != null && System.getProperty("derby.system.home") == null)
+            System.setProperty("derby.system.home", home);
+
+        if (System.getProperty("derby.storage.pageCacheSize") == null)
+            System.setProperty("derby.storage.pageCacheSize", DEFAULT_PAGE_CACHE_SIZE);
+        if (System.getProperty("derby.storage.logBufferSize") == null)
+            System.setProperty("derby.storage.logBufferSize", DEFAULT_LOG_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,125 @@
+package startup;
+
+
+import logging.AsyncLogger;
+import metrics.MetricsRegistry;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the startup phases of a server concurrently, each one as soon as the phase it
+ * depends on is over, and reports how long each phase took. The durations are also
+ * recorded in the "startup.<server>.<phase>" histograms.
+ */
+public class StartupPipeline {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(StartupPipeline.class);
+
+    public interface Task<T> {
+        T run() throws Exception;
+    }
+
+    public interface Step<T, R> {
+        R run(T input) throws Exception;
+    }
+
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final ExecutorService executor;
+    private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<CompletableFuture<?>> phases = new CopyOnWriteArrayList<>();
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    /**
+     * Constructor
+     * @param name name of the server, used in the reports and the thread names
+     */
+    public StartupPipeline(String name) {
+        this.name = name;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, name + "-startup");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start a phase now
+     */
+    public <T> CompletableFuture<T> start(String phase, Task<T> task) {
+        return track(CompletableFuture.supplyAsync(() -> timed(phase, task), executor));
+    }
+
+    /**
+     * Start a phase once the previous one has succeeded
+     */
+    public <T, R> CompletableFuture<R> then(String phase, CompletableFuture<T> previous, Step<T, R> step) {
+        return track(previous.thenApplyAsync(input -> timed(phase, () -> step.run(input)), executor));
+    }
+
+    /**
+     * Report the total startup time once every phase is over, then release the startup threads
+     */
+    public CompletableFuture<Void> finish() {
+        CompletableFuture<Void> all = CompletableFuture.allOf(phases.toArray(new CompletableFuture<?>[0]));
+        all.whenComplete((v, e) -> {
+            long total = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            metrics.histogram("startup." + name).record(System.nanoTime() - startNanos);
+            synchronized (timings) {
+                if (e == null)
+                    LOG.info("{} started in {} ms, phases (ms): {}", name, total, timings);
+                else
+                    LOG.error("{} startup failed after {} ms, phases (ms): {}", name, total, timings);
+            }
+            executor.shutdown();
+        });
+        return all;
+    }
+
+    /**
+     * Call a task until it succeeds, waiting longer after each failure
+     * @param what description used in the log
+     * @param task
+     * @param initialDelayMillis delay after the first failure
+     * @param maxDelayMillis bound of the delay between two attempts
+     */
+    public static <T> T retry(String what, Task<T> task, long initialDelayMillis, long maxDelayMillis)
+            throws InterruptedException {
+        long delay = initialDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return task.run();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                LOG.warn("{} failed (attempt {}): {}, next attempt in {} ms", what, attempt, e.getMessage(), delay);
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, maxDelayMillis);
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> track(CompletableFuture<T> phase) {
+        phases.add(phase);
+        return phase;
+    }
+
+    private <T> T timed(String phase, Task<T> task) {
+        long start = System.nanoTime();
+        try {
+            T result = task.run();
+            LOG.info("{} startup: {} done in {} ms", name, phase, record(phase, start));
+            return result;
+        } catch (Exception e) {
+            LOG.error("{} startup: {} failed after {} ms: {}", name, phase, record(phase, start), e);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+        }
+    }
+
+    private long record(String phase, long start) {
+        long elapsed = System.nanoTime() - start;
+        metrics.histogram("startup." + name + "." + phase).record(elapsed);
+        timings.put(phase, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        return TimeUnit.NANOSECONDS.toMillis(elapsed);
+    }
+}